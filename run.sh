@@ -8,8 +8,9 @@ $JAVA_HOME/bin/javac \
     src/org/evergreen_ils/hatch/*.java
 
 [ -z "$1" ] && exit;
+shift
 
-# run
+# run; remaining args are hatch.xml properties (name=value)
 $JAVA_HOME/bin/java \
     -cp "$JETTY_HOME/lib/*:$JETTY_HOME/lib/websocket/*:lib/*:lib" \
-    org.evergreen_ils.hatch.Hatch
+    org.evergreen_ils.hatch.Hatch "$@"
@@ -0,0 +1,467 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Content-addressed value store shared by every origin of a profile
+ * directory, for the file backend.
+ *
+ * With a threshold set, FileIO stores values of that many bytes or
+ * more once, as profileDirectory/.blobs/xx/sha256, and writes a small
+ * reference file under the key instead: REF_MAGIC, the value's length
+ * and its SHA-256.  Writing a value whose blob already exists writes
+ * only the reference.
+ *
+ * Reference counts are counted from the reference files when the
+ * store is first used, which also removes blobs left unreferenced by
+ * a crash, and are kept current from then on.  A blob is deleted as
+ * soon as its last reference is.
+ *
+ * When other processes share the profile directory (see Coordinator),
+ * counts kept by one process would miss the others' references.
+ * Instead, blobs are stored and referenced under a lock on
+ * .blobs/.lock, and unreferenced blobs are swept, after counting
+ * every reference afresh, once every SWEEP_RELEASES releases.
+ */
+public class BlobStore {
+
+    /** Marks a reference file; text files never begin with NUL */
+    private static final byte[] REF_MAGIC = {0, 'H', 'R', '1'};
+
+    /** REF_MAGIC, value length, SHA-256 */
+    static final int REF_SIZE = REF_MAGIC.length + 8 + 32;
+
+    /** A reference to a blob */
+    static class Ref {
+        final String hash;
+        final long size;
+        Ref(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    /** Releases between sweeps, when shared with other processes */
+    private static final int SWEEP_RELEASES = 64;
+
+    /** Temporary files younger than this may still be being written */
+    private static final long TEMP_AGE = 60 * 60 * 1000;
+
+    /** Values this long or longer (UTF-8 bytes) are shared; 0 = never */
+    private static int threshold = 0;
+
+    /** profile directory => store */
+    private static final ConcurrentHashMap<String,BlobStore> stores =
+        new ConcurrentHashMap<String,BlobStore>();
+
+    private static final Logger logger = Log.getLogger("BlobStore");
+
+    private final File baseDir;
+    private final File blobDir;
+
+    /** True if other processes may use the store too */
+    private final boolean shared;
+    private FileChannel lockChannel;
+    private int releases = 0;
+
+    /**
+     * hash => reference count; null until counted.  When shared, the
+     * counts as of the last sweep.
+     */
+    private Map<String,Integer> counts;
+
+    private long blobBytes = 0;
+    private long hits = 0;
+    private long collected = 0;
+
+    /**
+     * Sets the size, in bytes, from which values are stored as shared
+     * blobs.  0, the default, turns sharing off for new writes; shared
+     * values already stored still read normally.
+     */
+    public static void setThreshold(int bytes) {
+        threshold = bytes;
+    }
+
+    /**
+     * Returns true if a value of this many bytes is stored as a blob.
+     */
+    static boolean applies(int bytes) {
+        return threshold > 0 && bytes >= threshold;
+    }
+
+    /**
+     * Returns the blob store of a profile directory.
+     */
+    static BlobStore forDirectory(String directory) {
+        BlobStore store = stores.get(directory);
+        if (store != null) return store;
+        store = new BlobStore(new File(directory));
+        BlobStore old = stores.putIfAbsent(directory, store);
+        return old != null ? old : store;
+    }
+
+    private BlobStore(File baseDir) {
+        this.baseDir = baseDir;
+        this.blobDir = new File(baseDir, ".blobs");
+        this.shared = Coordinator.isEnabled();
+    }
+
+    /**
+     * Returns the SHA-256 of a value, in hex.
+     */
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest) hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // always available
+        }
+    }
+
+    /**
+     * Reads a reference file.
+     *
+     * @return The reference, or null if the file is not one
+     */
+    static Ref readRef(File file) {
+        if (file == null || file.length() != REF_SIZE) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[REF_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, REF_MAGIC)) return null;
+            long size = in.readLong();
+            byte[] digest = new byte[32];
+            in.readFully(digest);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest) hex.append(String.format("%02x", b & 0xff));
+            return new Ref(hex.toString(), size);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a reference file in place of a key's value.
+     */
+    static void writeRef(File file, String hash, long size) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(file))) {
+            out.write(REF_MAGIC);
+            out.writeLong(size);
+            for (int i = 0; i < 64; i += 2)
+                out.writeByte(Integer.parseInt(hash.substring(i, i + 2), 16));
+        }
+    }
+
+    /**
+     * Returns the file of a blob.
+     */
+    File blobFile(String hash) {
+        return new File(new File(blobDir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Stores a value as a blob, if it is not stored yet, and writes a
+     * reference to it in place of a key's value.
+     *
+     * @param file The key's file
+     * @param hash The value's hash (see hash())
+     * @param bytes The value as UTF-8
+     * @return true if the blob already existed, so only the reference
+     * was written
+     */
+    boolean store(File file, String hash, byte[] bytes) throws IOException {
+        if (shared) return storeShared(file, hash, bytes);
+
+        boolean existed = acquire(hash, bytes);
+        try {
+            writeRef(file, hash, bytes.length);
+        } catch (IOException e) {
+            release(hash);
+            throw e;
+        }
+        return existed;
+    }
+
+    /**
+     * Adds a reference to the blob of a value, storing the blob first
+     * if it does not exist yet.
+     *
+     * @return true if the blob already existed, so nothing was written
+     */
+    private boolean acquire(String hash, byte[] bytes) throws IOException {
+        synchronized (this) {
+            load();
+            Integer count = counts.get(hash);
+            if (count != null) {
+                counts.put(hash, count + 1);
+                hits++;
+                return true;
+            }
+        }
+
+        // written outside the lock, so other writers need not wait
+        File target = blobFile(hash);
+        File tmp = writeTemp(target, bytes);
+
+        synchronized (this) {
+            Integer count = counts.get(hash);
+            if (count != null) {
+                // another writer stored it meanwhile
+                tmp.delete();
+                counts.put(hash, count + 1);
+                hits++;
+                return true;
+            }
+            Files.move(tmp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            counts.put(hash, 1);
+            blobBytes += target.length();
+            return false;
+        }
+    }
+
+    /**
+     * store(), when shared with other processes.  A sweep cannot run
+     * between storing the blob and writing the reference, since both
+     * happen under the shared lock.
+     */
+    private boolean storeShared(File file, String hash, byte[] bytes)
+        throws IOException {
+
+        File target = blobFile(hash);
+        File tmp = target.isFile() ? null : writeTemp(target, bytes);
+        try {
+            synchronized (this) {
+                FileLock lock = lockShared();
+                try {
+                    load();
+                    boolean existed = target.isFile();
+                    if (existed) {
+                        hits++;
+                    } else {
+                        if (tmp == null) tmp = writeTemp(target, bytes);
+                        Files.move(tmp.toPath(), target.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                        tmp = null;
+                        blobBytes += target.length();
+                    }
+                    writeRef(file, hash, bytes.length);
+                    return existed;
+                } finally {
+                    unlockShared(lock);
+                }
+            }
+        } finally {
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    /** Writes a blob's value to a temporary file beside the store */
+    private File writeTemp(File target, byte[] bytes) throws IOException {
+        File dir = target.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Unable to create " + dir);
+        File tmp = File.createTempFile("blob", ".tmp", blobDir);
+        try {
+            FileIO.writeValue(tmp, bytes);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        return tmp;
+    }
+
+    /**
+     * Counts references, if not yet counted.  Call before replacing or
+     * removing a reference file which will then be released, so the
+     * count includes it.  When shared, releases recount afresh anyway.
+     */
+    synchronized void prepare() {
+        if (!shared) load();
+    }
+
+    /**
+     * Drops a reference to a blob, deleting the blob with its last.
+     * When shared, unreferenced blobs are left to the next sweep.
+     */
+    synchronized void release(String hash) {
+        if (shared) {
+            if (++releases % SWEEP_RELEASES != 0) return;
+            FileLock lock = lockShared();
+            try {
+                counts = null;
+                load();
+            } finally {
+                unlockShared(lock);
+            }
+            return;
+        }
+
+        load();
+        Integer count = counts.get(hash);
+        if (count == null) return;
+        if (count > 1) {
+            counts.put(hash, count - 1);
+            return;
+        }
+
+        counts.remove(hash);
+        File file = blobFile(hash);
+        long length = file.length();
+        if (file.delete()) {
+            blobBytes -= length;
+            collected++;
+        } else {
+            logger.warn("Unable to delete unreferenced blob " + hash);
+        }
+    }
+
+    /**
+     * Locks the store against other processes.  Callers hold this
+     * store's monitor.
+     *
+     * @return The lock, or null if it could not be had, in which case
+     * the caller goes ahead uncoordinated
+     */
+    private FileLock lockShared() {
+        try {
+            if (lockChannel == null) {
+                if (!blobDir.isDirectory()) blobDir.mkdirs();
+                lockChannel = FileChannel.open(
+                    new File(blobDir, ".lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            return lockChannel.lock();
+        } catch (IOException e) {
+            logger.warn("Unable to lock " + blobDir, e);
+            return null;
+        }
+    }
+
+    private static void unlockShared(FileLock lock) {
+        if (lock == null) return;
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // released when the channel closes regardless
+        }
+    }
+
+    /**
+     * Counts the references in every origin directory, then removes
+     * blobs nothing refers to.  When shared, callers hold the shared
+     * lock.
+     */
+    private void load() {
+        if (counts != null) return;
+        counts = new HashMap<String,Integer>();
+        if (!blobDir.isDirectory()) return;
+
+        long start = System.currentTimeMillis();
+        File[] dirs = baseDir.listFiles();
+        if (dirs == null) dirs = new File[0];
+        for (File dir : dirs) {
+            if (!dir.isDirectory() || dir.equals(blobDir)) continue;
+            File[] files = dir.listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                Ref ref = readRef(file);
+                if (ref == null) continue;
+                Integer count = counts.get(ref.hash);
+                counts.put(ref.hash, count == null ? 1 : count + 1);
+            }
+        }
+
+        int swept = 0;
+        blobBytes = 0;
+        File[] shards = blobDir.listFiles();
+        if (shards == null) shards = new File[0];
+        for (File shard : shards) {
+            File[] blobs = shard.isDirectory() ? shard.listFiles() : null;
+            if (blobs == null) {
+                // a temporary file from an interrupted write, unless
+                // another process is writing it now
+                if (shard.getName().endsWith(".tmp")
+                    && (!shared || start - shard.lastModified() > TEMP_AGE)
+                    && shard.delete()) swept++;
+                continue;
+            }
+            for (File blob : blobs) {
+                if (counts.containsKey(blob.getName())) {
+                    blobBytes += blob.length();
+                } else if (blob.delete()) {
+                    swept++;
+                }
+            }
+        }
+        collected += swept;
+
+        logger.info("Blob store " + blobDir + ": " + counts.size()
+            + " blobs, " + swept + " unreferenced removed, in "
+            + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Returns statistics for every blob store in use.
+     */
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        long blobs = 0, refs = 0, bytes = 0, hits = 0, collected = 0;
+        for (BlobStore store : stores.values()) {
+            synchronized (store) {
+                if (store.counts == null) continue;
+                blobs += store.counts.size();
+                for (int count : store.counts.values()) refs += count;
+                bytes += store.blobBytes;
+                hits += store.hits;
+                collected += store.collected;
+            }
+        }
+        stats.put("blobs", blobs);
+        stats.put("references", refs);
+        stats.put("bytes", bytes);
+        stats.put("writesSkipped", hits);
+        stats.put("collected", collected);
+        stats.put("threshold", threshold);
+        return stats;
+    }
+}
@@ -0,0 +1,363 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CBOR (RFC 7049) encoder / decoder for the binary message protocol.
+ *
+ * Decoded values use the same types org.eclipse.jetty.util.ajax.JSON
+ * produces, so request handling code need not care which encoding the
+ * client chose: maps become HashMap&lt;String,Object&gt;, arrays become
+ * Object[], integers become Long, floats become Double.  Byte strings
+ * decode to byte[].
+ */
+public class Cbor {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+
+    /** Marker returned by readItem() when a "break" byte is read */
+    private static final Object BREAK_MARKER = new Object();
+
+    /** Deepest nesting of arrays, maps and tags accepted */
+    static final int MAX_DEPTH = 256;
+
+    // -- encoding --------------------------------------------------
+
+    /**
+     * Encodes a value as CBOR.
+     *
+     * @param value A Map, Collection, array, String, Number, Boolean,
+     * byte[] or null.  Other objects are encoded as their toString().
+     * @return The encoded bytes.
+     */
+    public static byte[] encode(Object value) {
+        Encoder enc = new Encoder();
+        enc.write(value);
+        return enc.toByteArray();
+    }
+
+    private static class Encoder {
+        private byte[] buf = new byte[256];
+        private int len = 0;
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+
+        private void put(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        private void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+        }
+
+        private void head(int major, long value) {
+            int mt = major << 5;
+            if (value < 24) {
+                put(mt | (int) value);
+            } else if (value < 0x100) {
+                put(mt | 24);
+                put((int) value);
+            } else if (value < 0x10000) {
+                put(mt | 25);
+                put((int) (value >> 8));
+                put((int) value);
+            } else if (value < 0x100000000L) {
+                put(mt | 26);
+                for (int shift = 24; shift >= 0; shift -= 8)
+                    put((int) (value >> shift));
+            } else {
+                put(mt | 27);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    put((int) (value >> shift));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void write(Object value) {
+            if (value == null) {
+                put(0xf6);
+
+            } else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                head(MAJOR_TEXT, bytes.length);
+                put(bytes);
+
+            } else if (value instanceof Boolean) {
+                put(((Boolean) value).booleanValue() ? 0xf5 : 0xf4);
+
+            } else if (value instanceof Double || value instanceof Float) {
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                put(0xfb);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    put((int) (bits >> shift));
+
+            } else if (value instanceof Number) {
+                long num = ((Number) value).longValue();
+                if (num >= 0) head(MAJOR_UNSIGNED, num);
+                else head(MAJOR_NEGATIVE, -1 - num);
+
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                head(MAJOR_BYTES, bytes.length);
+                put(bytes);
+
+            } else if (value instanceof Map) {
+                Map<Object,Object> map = (Map<Object,Object>) value;
+                head(MAJOR_MAP, map.size());
+                for (Map.Entry<Object,Object> entry : map.entrySet()) {
+                    write(String.valueOf(entry.getKey()));
+                    write(entry.getValue());
+                }
+
+            } else if (value instanceof Collection) {
+                Collection<Object> list = (Collection<Object>) value;
+                head(MAJOR_ARRAY, list.size());
+                for (Object item : list) write(item);
+
+            } else if (value instanceof Object[]) {
+                Object[] list = (Object[]) value;
+                head(MAJOR_ARRAY, list.length);
+                for (Object item : list) write(item);
+
+            } else {
+                write(value.toString());
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+    }
+
+    // -- decoding --------------------------------------------------
+
+    /**
+     * Decodes a single CBOR data item.
+     *
+     * @param buf Buffer containing the encoded item
+     * @param offset Start of the item within buf
+     * @param length Number of bytes available
+     * @return The decoded value
+     * @throws IllegalArgumentException if the data is not valid CBOR.
+     */
+    public static Object decode(byte[] buf, int offset, int length) {
+        Decoder dec = new Decoder(buf, offset, offset + length);
+        Object value = dec.readItem();
+        if (value == BREAK_MARKER)
+            throw new IllegalArgumentException("Unexpected CBOR break");
+        return value;
+    }
+
+    private static class Decoder {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        /** Arrays, maps and tags enclosing the item being read */
+        private int depth = 0;
+
+        Decoder(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        private int next() {
+            if (pos >= end)
+                throw new IllegalArgumentException("Truncated CBOR data");
+            return buf[pos++] & 0xff;
+        }
+
+        private long readLength(int info) {
+            if (info < 24) return info;
+            int bytes;
+            switch (info) {
+                case 24: bytes = 1; break;
+                case 25: bytes = 2; break;
+                case 26: bytes = 4; break;
+                case 27: bytes = 8; break;
+                default:
+                    throw new IllegalArgumentException(
+                        "Invalid CBOR additional info " + info);
+            }
+            long value = 0;
+            for (int i = 0; i < bytes; i++) value = (value << 8) | next();
+            return value;
+        }
+
+        private int readSize(int info) {
+            long size = readLength(info);
+            if (size < 0 || size > end - pos)
+                throw new IllegalArgumentException("Invalid CBOR length " + size);
+            return (int) size;
+        }
+
+        private byte[] readBytes(int major, int info) {
+            if (info != INDEFINITE) {
+                int size = readSize(info);
+                byte[] out = Arrays.copyOfRange(buf, pos, pos + size);
+                pos += size;
+                return out;
+            }
+
+            // indefinite length: concatenate definite-length chunks
+            java.io.ByteArrayOutputStream chunks =
+                new java.io.ByteArrayOutputStream();
+            while (true) {
+                int ib = next();
+                if (ib == BREAK) break;
+                if ((ib >> 5) != major)
+                    throw new IllegalArgumentException("Invalid CBOR chunk");
+                int size = readSize(ib & 0x1f);
+                chunks.write(buf, pos, size);
+                pos += size;
+            }
+            return chunks.toByteArray();
+        }
+
+        Object readItem() {
+            int ib = next();
+            int major = ib >> 5;
+            int info = ib & 0x1f;
+
+            switch (major) {
+                case MAJOR_UNSIGNED:
+                    return readLength(info);
+
+                case MAJOR_NEGATIVE:
+                    return -1 - readLength(info);
+
+                case MAJOR_BYTES:
+                    return readBytes(major, info);
+
+                case MAJOR_TEXT:
+                    if (info != INDEFINITE) {
+                        int size = readSize(info);
+                        String text = new String(
+                            buf, pos, size, StandardCharsets.UTF_8);
+                        pos += size;
+                        return text;
+                    }
+                    return new String(
+                        readBytes(major, info), StandardCharsets.UTF_8);
+
+                case MAJOR_ARRAY: {
+                    nest();
+                    List<Object> list = new ArrayList<Object>();
+                    if (info == INDEFINITE) {
+                        Object item;
+                        while ((item = readItem()) != BREAK_MARKER)
+                            list.add(item);
+                    } else {
+                        long size = readLength(info);
+                        for (long i = 0; i < size; i++) list.add(value());
+                    }
+                    depth--;
+                    return list.toArray();
+                }
+
+                case MAJOR_MAP: {
+                    nest();
+                    HashMap<String,Object> map = new HashMap<String,Object>();
+                    if (info == INDEFINITE) {
+                        Object key;
+                        while ((key = readItem()) != BREAK_MARKER)
+                            map.put(String.valueOf(key), value());
+                    } else {
+                        long size = readLength(info);
+                        for (long i = 0; i < size; i++)
+                            map.put(String.valueOf(value()), value());
+                    }
+                    depth--;
+                    return map;
+                }
+
+                case MAJOR_TAG:
+                    // tags carry semantics we don't use; keep the content
+                    readLength(info);
+                    nest();
+                    Object tagged = value();
+                    depth--;
+                    return tagged;
+
+                default: // MAJOR_SIMPLE
+                    switch (info) {
+                        case 20: return Boolean.FALSE;
+                        case 21: return Boolean.TRUE;
+                        case 22: return null;
+                        case 23: return null; // undefined
+                        case 25: return halfToDouble((int) readLength(info));
+                        case 26: return (double) Float.intBitsToFloat(
+                                    (int) readLength(info));
+                        case 27: return Double.longBitsToDouble(
+                                    readLength(info));
+                        case INDEFINITE: return BREAK_MARKER;
+                        default:
+                            if (info == 24) next();
+                            return null;
+                    }
+            }
+        }
+
+        /** Enters an array, map or tag, if not nested too deeply */
+        private void nest() {
+            if (++depth > MAX_DEPTH)
+                throw new IllegalArgumentException("CBOR nested too deeply");
+        }
+
+        /** Reads an item which may not be a break marker */
+        private Object value() {
+            Object item = readItem();
+            if (item == BREAK_MARKER)
+                throw new IllegalArgumentException("Unexpected CBOR break");
+            return item;
+        }
+
+        private static double halfToDouble(int half) {
+            int exp = (half >> 10) & 0x1f;
+            int mant = half & 0x3ff;
+            double val;
+            if (exp == 0) val = Math.scalb((double) mant, -24);
+            else if (exp != 31) val = Math.scalb((double) (mant + 1024), exp - 25);
+            else val = mant == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            return (half & 0x8000) != 0 ? -val : val;
+        }
+    }
+}
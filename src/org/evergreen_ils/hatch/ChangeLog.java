@@ -0,0 +1,311 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Per-origin change sequence, for incremental resync.
+ *
+ * Every write through Storage takes the origin's next sequence number.
+ * Only the latest change of each key is kept, ordered by sequence, so
+ * a client which saw everything up to some sequence can ask for just
+ * the keys changed or removed since.
+ *
+ * Changes are logged to profileDirectory/origin.changes, one
+ * [seq,"key","set"|"remove"] record per line, and replayed on first
+ * use after a restart.  Only the newest maxEntries keys are kept; a
+ * [floor] record marks the sequence below which changes were dropped.
+ * Clients asking from before the floor must resync in full.
+ *
+ * Processes sharing the profile directory (see Coordinator) draw
+ * sequence numbers from the origin's shared counter and append to the
+ * same log, reading each other's records as they change.
+ */
+public class ChangeLog {
+
+    /** The change log of one origin */
+    private static class Space {
+        final String directory;
+        final String origin;
+        final LineLog log;
+
+        /** seq => key, the latest change of each key */
+        final TreeMap<Long,String> bySeq = new TreeMap<Long,String>();
+
+        /** key => latest seq */
+        final Map<String,Long> byKey = new HashMap<String,Long>();
+
+        /** seqs of removals */
+        final Map<Long,Boolean> removed = new HashMap<Long,Boolean>();
+
+        long seq = 0;
+        long floor = 0;
+
+        Space(String directory, String origin) {
+            this.directory = directory;
+            this.origin = origin;
+            this.log = new LineLog(new File(directory, origin + ".changes"));
+        }
+    }
+
+    /** Most keys whose latest change is kept per origin */
+    private static int maxEntries = 10000;
+
+    /** directory + "\0" + origin => Space */
+    private static final ConcurrentHashMap<String,Space> spaces =
+        new ConcurrentHashMap<String,Space>();
+
+    private static final Logger logger = Log.getLogger("ChangeLog");
+
+    /**
+     * Sets how many keys' latest changes are kept per origin.
+     */
+    public static void setMaxEntries(int max) {
+        maxEntries = max;
+    }
+
+    private static Space space(String directory, String origin) {
+        String id = directory + "\0" + origin;
+        Space space = spaces.get(id);
+        if (space != null) return space;
+
+        synchronized (spaces) {
+            space = spaces.get(id);
+            if (space == null) {
+                space = new Space(directory, origin);
+                synchronized (space) {
+                    load(space);
+                }
+                spaces.put(id, space);
+            }
+            return space;
+        }
+    }
+
+    /**
+     * Records a change.  Callers hold the key's Storage lock, so
+     * sequence order matches the order of writes to each key.
+     *
+     * @param directory The profile directory
+     * @param origin The cleaned origin
+     * @param key The changed key
+     * @param removed True if the key was removed
+     * @return The change's sequence number
+     */
+    @SuppressWarnings("try")
+    public static long record(
+        String directory, String origin, String key, boolean removed) {
+
+        Space space = space(directory, origin);
+        Coordinator coord = Coordinator.forOrigin(directory, origin);
+        synchronized (space) {
+            try (Coordinator.Held held =
+                    coord == null ? null : coord.lockHeader()) {
+                long seq;
+                if (coord != null) {
+                    readNew(space);
+                    seq = coord.nextSeq(space.seq);
+                } else {
+                    seq = space.seq + 1;
+                }
+                space.seq = seq;
+                apply(space, seq, key, removed);
+                trim(space);
+
+                try {
+                    space.log.append(
+                        new Object[] {seq, key, removed ? "remove" : "set"});
+
+                    int records = space.log.getRecords();
+                    if (records > 1000 && records > space.bySeq.size() * 2)
+                        compact(space);
+
+                } catch (IOException e) {
+                    logger.warn("Unable to log change of " + key, e);
+                }
+                return seq;
+            }
+        }
+    }
+
+    /**
+     * Reads changes logged by other processes sharing the profile
+     * directory, if the origin's log has changed.
+     */
+    static void refresh(String directory, String origin) {
+        Space space = spaces.get(directory + "\0" + origin);
+        if (space == null) return;
+        synchronized (space) {
+            readNew(space);
+        }
+    }
+
+    private static void readNew(Space space) {
+        if (!space.log.isStale()) return;
+        try {
+            if (space.log.isReplaced()) {
+                space.bySeq.clear();
+                space.byKey.clear();
+                space.removed.clear();
+                space.log.load(handler(space));
+            } else {
+                space.log.readNew(handler(space));
+            }
+            trim(space);
+        } catch (IOException e) {
+            logger.warn("Unable to read " + space.log.getFile(), e);
+        }
+    }
+
+    /** Applies records read from the log */
+    private static LineLog.Handler handler(final Space space) {
+        return new LineLog.Handler() {
+            public void record(Object[] rec) {
+                long seq = ((Number) rec[0]).longValue();
+                space.seq = Math.max(space.seq, seq);
+                if (rec.length == 1) {
+                    space.floor = Math.max(space.floor, seq);
+                } else {
+                    apply(space, seq, (String) rec[1], "remove".equals(rec[2]));
+                }
+            }
+        };
+    }
+
+    private static void apply(Space space, long seq, String key, boolean removed) {
+        Long old = space.byKey.get(key);
+        if (old != null && old > seq) return; // already superseded
+        space.byKey.put(key, seq);
+        if (old != null) {
+            space.bySeq.remove(old);
+            space.removed.remove(old);
+        }
+        space.bySeq.put(seq, key);
+        if (removed) space.removed.put(seq, true);
+    }
+
+    /** Drops the oldest changes past maxEntries, raising the floor */
+    private static void trim(Space space) {
+        Iterator<Map.Entry<Long,String>> it = space.bySeq.entrySet().iterator();
+        while (space.bySeq.size() > maxEntries && it.hasNext()) {
+            Map.Entry<Long,String> oldest = it.next();
+            space.floor = oldest.getKey();
+            space.byKey.remove(oldest.getValue());
+            space.removed.remove(oldest.getKey());
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the origin's latest sequence number.
+     */
+    public static long sequence(String directory, String origin) {
+        Space space = space(directory, origin);
+        synchronized (space) {
+            return space.seq;
+        }
+    }
+
+    /**
+     * Returns the changes after a sequence number.
+     *
+     * @param since The last sequence the client has seen; 0 for all
+     * @param limit Most changes to return
+     * @return {seq, changes: [{key, seq, action}], more} or, if changes
+     * after since are no longer known, {seq, reset: true}.  "seq" is
+     * the sequence to ask from next time.
+     */
+    public static Map<String,Object> since(
+        String directory, String origin, long since, int limit) {
+
+        Space space = space(directory, origin);
+        Map<String,Object> result = new HashMap<String,Object>();
+
+        synchronized (space) {
+            // a cursor from before truncation, or from a log since lost
+            if (since < space.floor || since > space.seq) {
+                result.put("seq", space.seq);
+                result.put("reset", true);
+                return result;
+            }
+
+            List<Map<String,Object>> changes = new ArrayList<Map<String,Object>>();
+            long last = since;
+            boolean more = false;
+            for (Map.Entry<Long,String> e :
+                    space.bySeq.tailMap(since, false).entrySet()) {
+                if (changes.size() >= limit) {
+                    more = true;
+                    break;
+                }
+                Map<String,Object> change = new HashMap<String,Object>();
+                change.put("key", e.getValue());
+                change.put("seq", e.getKey());
+                change.put("action",
+                    space.removed.containsKey(e.getKey()) ? "remove" : "set");
+                changes.add(change);
+                last = e.getKey();
+            }
+
+            result.put("seq", more ? last : space.seq);
+            result.put("changes", changes);
+            result.put("more", more);
+        }
+        return result;
+    }
+
+    /** Replays an origin's log */
+    private static void load(Space space) {
+        try {
+            space.log.load(handler(space));
+        } catch (IOException e) {
+            logger.warn("Unable to read " + space.log.getFile(), e);
+            return;
+        }
+
+        trim(space);
+        logger.info("Loaded change log for " + space.origin
+            + " at sequence " + space.seq);
+    }
+
+    /**
+     * Rewrites an origin's log with only the kept changes.  Callers
+     * hold the space's lock, and the origin's Coordinator header lock
+     * if there is one.
+     */
+    private static void compact(Space space) throws IOException {
+        List<Object[]> kept = new ArrayList<Object[]>();
+        // the floor record also carries the sequence forward when
+        // every change has been trimmed
+        kept.add(new Object[] {space.bySeq.isEmpty() ? space.seq : space.floor});
+        for (Map.Entry<Long,String> e : space.bySeq.entrySet()) {
+            kept.add(new Object[] {e.getKey(), e.getValue(),
+                space.removed.containsKey(e.getKey()) ? "remove" : "set"});
+        }
+        space.log.rewrite(kept);
+    }
+}
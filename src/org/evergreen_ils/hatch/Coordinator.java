@@ -0,0 +1,344 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Coordination between Hatch processes sharing a profile directory.
+ *
+ * Each origin has a small file, profileDirectory/origin.lock, mapped
+ * into memory by every process using the origin.  It holds:
+ *
+ *   MAGIC, a modification counter, the change sequence (see
+ *   ChangeLog), one counter per key stripe, then the origin's storage
+ *   usage (see Quotas): a counted flag, bytes and keys
+ *
+ * A write holds an advisory lock on its stripe's bytes of the file, so
+ * writes to a key are serialized across processes as Storage's key
+ * locks serialize them within one; stripes match those locks.  When
+ * the write is done, it bumps its stripe's counter and the modification
+ * counter, under a lock on the header.
+ *
+ * Before using anything it caches, Storage calls sync().  If the
+ * modification counter has moved by more than this process's own
+ * writes, sync() finds the stripes whose counters changed and has them
+ * invalidated, so caches may be kept without serving stale values.
+ * Checking costs one read of shared memory.
+ *
+ * Every process using the file holds a shared lock on its last bytes.
+ * A process which finds no other holding one is alone, and discards the
+ * usage counts, which a crash may have left wrong, to be counted again.
+ *
+ * Off by default; one Hatch per profile directory needs none of it.
+ */
+public class Coordinator {
+
+    /** Receives the stripes changed by other processes */
+    interface Listener {
+        void changed(boolean[] stripes);
+    }
+
+    /** A lock held in the coordination file; closing releases it */
+    class Held implements Closeable {
+        private final FileLock lock;
+        private final int stripe;
+        private final boolean write;
+
+        Held(FileLock lock, int stripe, boolean write) {
+            this.lock = lock;
+            this.stripe = stripe;
+            this.write = write;
+        }
+
+        public void close() {
+            try {
+                if (write) bump(stripe);
+            } finally {
+                release(lock);
+                if (stripe < 0) headerLock.unlock();
+            }
+        }
+    }
+
+    private static final long MAGIC = 0x48617463684c6b31L; // "HatchLk1"
+
+    /** Key stripes; must match Storage's key locks */
+    static final int STRIPES = 64;
+
+    private static final int COUNTER = 8;
+    private static final int SEQ = 16;
+    private static final int HEADER_SIZE = 32;
+    private static final int USAGE = HEADER_SIZE + STRIPES * 8;
+    private static final int LIVE = USAGE + 24;
+    private static final int FILE_SIZE = LIVE + 8;
+
+    private static boolean enabled = false;
+
+    /** directory + "\0" + origin => coordinator */
+    private static final ConcurrentHashMap<String,Coordinator> coordinators =
+        new ConcurrentHashMap<String,Coordinator>();
+
+    private static final AtomicLong foreignChanges = new AtomicLong();
+    private static final AtomicLong lockFailures = new AtomicLong();
+
+    private static final Logger logger = Log.getLogger("Coordinator");
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+
+    /** Held while we use the file; see LIVE */
+    private final FileLock live;
+
+    /** Serializes header locks within this process */
+    private final ReentrantLock headerLock = new ReentrantLock();
+
+    /** Serializes sync() and the invalidation it triggers */
+    private final Object syncLock = new Object();
+
+    /** Modification counter as of our last sync or write */
+    private volatile long known;
+
+    /** Stripe counters as of our last sync or write */
+    private final long[] seen = new long[STRIPES];
+
+    /**
+     * Coordinates with other Hatch processes sharing the profile
+     * directory.  Set before storage is first used.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the coordinator of an origin, or null if coordination is
+     * off or the coordination file cannot be used.
+     *
+     * @param directory The profile directory
+     * @param origin The cleaned origin
+     */
+    static Coordinator forOrigin(String directory, String origin) {
+        if (!enabled) return null;
+        String id = directory + "\0" + origin;
+        Coordinator coord = coordinators.get(id);
+        if (coord != null) return coord;
+
+        synchronized (coordinators) {
+            coord = coordinators.get(id);
+            if (coord != null) return coord;
+            try {
+                coord = new Coordinator(new File(directory, origin + ".lock"));
+            } catch (IOException e) {
+                logger.warn("Unable to coordinate storage of " + origin
+                    + " with other processes", e);
+                return null;
+            }
+            coordinators.put(id, coord);
+            return coord;
+        }
+    }
+
+    private Coordinator(File file) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory()) dir.mkdirs();
+
+        @SuppressWarnings("resource") // closed by the channel
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        // the first process to get here sizes and marks the file
+        FileLock lock = channel.lock(0, 8, false);
+        try {
+            if (channel.size() < FILE_SIZE) raf.setLength(FILE_SIZE);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            if (map.getLong(0) != MAGIC) map.putLong(0, MAGIC);
+
+            FileLock alone = channel.tryLock(LIVE, 8, false);
+            if (alone != null) {
+                map.putLong(USAGE, 0);
+                alone.release();
+            }
+            live = channel.lock(LIVE, 8, true);
+        } finally {
+            lock.release();
+        }
+
+        known = map.getLong(COUNTER);
+        for (int i = 0; i < STRIPES; i++) seen[i] = stripeCounter(i);
+    }
+
+    private long stripeCounter(int stripe) {
+        return map.getLong(HEADER_SIZE + stripe * 8);
+    }
+
+    /**
+     * Locks a key stripe in other processes.  Callers hold Storage's
+     * lock for the stripe, which keeps threads of this process out.
+     *
+     * @param write If true, closing the lock counts a write to the
+     * stripe
+     * @return The lock, or null if the file could not be locked, in
+     * which case the write goes ahead uncoordinated
+     */
+    Held lockStripe(int stripe, boolean write) {
+        try {
+            return new Held(channel.lock(HEADER_SIZE + stripe * 8, 8, false),
+                stripe, write);
+        } catch (IOException e) {
+            lockFailures.incrementAndGet();
+            logger.warn("Unable to lock " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Locks the header: the counters, and the origin's shared logs
+     * (see LineLog).  Header locks do not nest.
+     *
+     * @return The lock, or null if the file could not be locked
+     */
+    Held lockHeader() {
+        headerLock.lock();
+        try {
+            return new Held(channel.lock(COUNTER, 16, false), -1, false);
+        } catch (IOException e) {
+            headerLock.unlock();
+            lockFailures.incrementAndGet();
+            logger.warn("Unable to lock " + file, e);
+            return null;
+        } catch (RuntimeException e) {
+            headerLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the next change sequence number.  Callers hold the
+     * header lock.
+     *
+     * @param least The highest sequence number seen by the caller
+     */
+    long nextSeq(long least) {
+        long seq = Math.max(map.getLong(SEQ), least) + 1;
+        map.putLong(SEQ, seq);
+        return seq;
+    }
+
+    /**
+     * Returns the origin's storage usage, { bytes, keys }, or null if
+     * it has not been counted since the file was last used.  Callers
+     * hold the header lock.
+     */
+    long[] getUsage() {
+        if (map.getLong(USAGE) == 0) return null;
+        return new long[] {map.getLong(USAGE + 8), map.getLong(USAGE + 16)};
+    }
+
+    /**
+     * Stores the origin's storage usage.  Callers hold the header lock.
+     */
+    void putUsage(long bytes, long keys) {
+        map.putLong(USAGE + 8, bytes);
+        map.putLong(USAGE + 16, keys);
+        map.putLong(USAGE, 1);
+    }
+
+    /** Counts a write to a stripe, which the caller has locked */
+    @SuppressWarnings("try")
+    private void bump(int stripe) {
+        long before;
+        long count = stripeCounter(stripe) + 1;
+        try (Held held = lockHeader()) {
+            before = map.getLong(COUNTER);
+            map.putLong(COUNTER, before + 1);
+            map.putLong(HEADER_SIZE + stripe * 8, count);
+        }
+
+        synchronized (syncLock) {
+            seen[stripe] = count;
+            // with no other writes in between, ours is the only news
+            if (before == known) known = before + 1;
+        }
+    }
+
+    /**
+     * Invalidates whatever other processes have changed since our last
+     * sync or write.
+     *
+     * @param listener Invalidates caches for the changed stripes
+     */
+    void sync(Listener listener) {
+        if (map.getLong(COUNTER) == known) return;
+
+        synchronized (syncLock) {
+            long now = map.getLong(COUNTER);
+            if (now == known) return;
+
+            boolean[] changed = new boolean[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                long count = stripeCounter(i);
+                if (count != seen[i]) {
+                    changed[i] = true;
+                    seen[i] = count;
+                }
+            }
+            known = now;
+            foreignChanges.incrementAndGet();
+
+            // before anyone else passes sync() and reads a cache
+            listener.changed(changed);
+        }
+    }
+
+    private static void release(FileLock lock) {
+        try {
+            if (lock.isValid()) lock.release();
+        } catch (IOException e) {
+            // released when the channel closes regardless
+        }
+    }
+
+    /**
+     * Returns coordination statistics.
+     */
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("enabled", enabled);
+        stats.put("origins", coordinators.size());
+        stats.put("foreignChanges", foreignChanges.get());
+        stats.put("lockFailures", lockFailures.get());
+        return stats;
+    }
+}
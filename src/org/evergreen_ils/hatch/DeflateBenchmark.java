@@ -0,0 +1,117 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Compression level benchmark for DeflateExtension.
+ *
+ * Compresses sample payloads (a print receipt and a 500 row "get"
+ * reply), or the files named on the command line, at each level the
+ * way DeflateExtension does, and prints the bytes saved and the CPU
+ * time spent per message.
+ *
+ * Example:
+ *
+ *   java -cp ... org.evergreen_ils.hatch.DeflateBenchmark [file ...]
+ */
+public class DeflateBenchmark {
+
+    /** A receipt-style print job, as sent by the browser client */
+    private static String samplePrint() {
+        StringBuilder buf = new StringBuilder(
+            "<html><head><style>body{font-family:sans-serif;font-size:10pt}" +
+            "td{padding:2px}</style></head><body><div>Checkout Receipt</div>" +
+            "<table>");
+        for (int i = 0; i < 40; i++) {
+            buf.append("<tr><td>").append(i + 1).append("</td><td>")
+               .append("The title of item number ").append(i * 7919 % 10007)
+               .append("</td><td>Barcode 3").append(1000000 + i * 37)
+               .append("</td><td>Due 2015-0").append(1 + i % 9)
+               .append("-1").append(i % 10).append("</td></tr>");
+        }
+        return buf.append("</table><div>Thank you!</div></body></html>")
+            .toString();
+    }
+
+    /** A cached org settings / copy location list, as stored via set */
+    private static String sampleGet() {
+        StringBuilder buf = new StringBuilder("{\"msgid\":1,\"content\":[");
+        for (int i = 0; i < 500; i++) {
+            if (i > 0) buf.append(',');
+            buf.append("{\"id\":").append(i)
+               .append(",\"name\":\"Location ").append(i * 31 % 997)
+               .append("\",\"owning_lib\":").append(i % 12)
+               .append(",\"holdable\":\"t\",\"opac_visible\":\"")
+               .append(i % 3 == 0 ? "f" : "t").append("\"}");
+        }
+        return buf.append("]}").toString();
+    }
+
+    /**
+     * Compresses each payload at every level and prints the size saved
+     * and time spent per message.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String,byte[]> payloads = new LinkedHashMap<String,byte[]>();
+        if (args.length == 0) {
+            payloads.put("print receipt",
+                samplePrint().getBytes(StandardCharsets.UTF_8));
+            payloads.put("get 500 rows",
+                sampleGet().getBytes(StandardCharsets.UTF_8));
+        } else {
+            for (String file : args)
+                payloads.put(file, Files.readAllBytes(Paths.get(file)));
+        }
+
+        byte[] out = new byte[1 << 20];
+        System.out.println(String.format("%-16s %5s %9s %9s %7s %10s %9s",
+            "payload", "level", "bytes", "deflated", "saved", "us/msg", "MB/s"));
+
+        for (Map.Entry<String,byte[]> entry : payloads.entrySet()) {
+            byte[] in = entry.getValue();
+            if (out.length < in.length * 2) out = new byte[in.length * 2];
+
+            for (int level = 1; level <= 9; level++) {
+                Deflater def = new Deflater(level, true);
+                int size = 0;
+                int rounds = Math.max(50, 20000000 / Math.max(1, in.length));
+                long start = 0;
+                for (int i = -rounds; i < rounds; i++) {
+                    if (i == 0) start = System.nanoTime(); // after warmup
+                    def.reset();
+                    def.setInput(in);
+                    size = def.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+                }
+                long nanos = (System.nanoTime() - start) / rounds;
+                def.end();
+                size -= DeflateExtension.TAIL.length;
+
+                System.out.println(String.format(
+                    "%-16s %5d %9d %9d %6.1f%% %10.1f %9.1f",
+                    entry.getKey(), level, in.length, size,
+                    100.0 * (in.length - size) / in.length,
+                    nanos / 1000.0, in.length / (nanos / 1000.0)));
+            }
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.MappedByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.websocket.api.BadPayloadException;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.MessageTooLargeException;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.extensions.AbstractExtension;
+import org.eclipse.jetty.websocket.common.frames.DataFrame;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * permessage-deflate (RFC 7692) websocket extension.
+ *
+ * Replaces Jetty's built-in implementation, which always compresses at
+ * level 9, compresses every message however small, and allocates new
+ * buffers for each frame.  Here:
+ *
+ * - The compression level is configurable.
+ * - Messages smaller than minCompressSize are sent uncompressed (with
+ *   RSV1 clear, which the RFC permits per message).
+ * - Both directions run without context takeover, so a Deflater is only
+ *   needed while a message is being compressed.  Deflaters are shared
+ *   between connections through a small pool instead of each connection
+ *   pinning its own compression window.
+ * - Output buffers come from Jetty's ByteBufferPool.
+ * - Incoming messages may inflate to no more than the policy's maximum
+ *   message size; a connection sending more is closed with 1009.
+ *
+ * Configured from hatch.xml; see setCompressionLevel() and friends.
+ * Running this class directly measures the CPU cost and savings of each
+ * level for the files named on the command line, or for representative
+ * print and get payloads if none are given.
+ */
+public class DeflateExtension extends AbstractExtension {
+
+    /** Our logger instance */
+    private static final Logger logger = Log.getLogger("DeflateExtension");
+
+    /** Appended to / stripped from each compressed message (RFC 7692 7.2.1) */
+    static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    private static boolean enabled = true;
+    private static int compressionLevel = Deflater.BEST_SPEED;
+    private static int minCompressSize = 1024;
+    private static int deflaterPoolSize = 16;
+
+    /** Idle deflaters, shared by all connections */
+    private static final ConcurrentLinkedQueue<Deflater> deflaterPool =
+        new ConcurrentLinkedQueue<Deflater>();
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+
+    /** Fallback when Jetty has not provided a buffer pool */
+    private static final ByteBufferPool defaultBufferPool =
+        new MappedByteBufferPool();
+
+    // statistics ------------------------------------------------------
+    private static final AtomicLong messagesCompressed = new AtomicLong();
+    private static final AtomicLong messagesSkipped = new AtomicLong();
+    private static final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private static final AtomicLong bytesAfterCompression = new AtomicLong();
+    private static final AtomicLong compressNanos = new AtomicLong();
+
+    /** Deflater for the outgoing message currently being sent */
+    private Deflater deflater;
+
+    /** True while the outgoing message is being compressed */
+    private boolean outgoingCompressed;
+
+    /** Inflater for incoming messages; created on first use */
+    private Inflater inflater;
+
+    /** True while the incoming message is compressed */
+    private boolean incomingCompressed;
+
+    /** Bytes the incoming message has inflated to so far */
+    private long incomingSize;
+
+    /** Most bytes the incoming message may inflate to */
+    private long incomingLimit;
+
+    /**
+     * Enables or disables permessage-deflate.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the Deflater compression level, 1 (fastest) to 9 (smallest).
+     */
+    public static void setCompressionLevel(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid level " + level);
+        compressionLevel = level;
+    }
+
+    /**
+     * Sets the smallest outgoing message, in bytes, which is compressed.
+     */
+    public static void setMinCompressSize(int size) {
+        minCompressSize = size;
+    }
+
+    /**
+     * Sets the number of idle Deflaters kept for reuse.
+     */
+    public static void setDeflaterPoolSize(int size) {
+        deflaterPoolSize = size;
+    }
+
+    /**
+     * Returns compression statistics for all connections.
+     */
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new LinkedHashMap<String,Object>();
+        stats.put("enabled", enabled);
+        stats.put("level", compressionLevel);
+        stats.put("minCompressSize", minCompressSize);
+        stats.put("messagesCompressed", messagesCompressed.get());
+        stats.put("messagesSkipped", messagesSkipped.get());
+        stats.put("bytesIn", bytesBeforeCompression.get());
+        stats.put("bytesOut", bytesAfterCompression.get());
+        stats.put("compressMillis", compressNanos.get() / 1000000);
+        return stats;
+    }
+
+    @Override
+    public String getName() {
+        return "permessage-deflate";
+    }
+
+    @Override
+    public boolean isRsv1User() {
+        return true;
+    }
+
+    /**
+     * Negotiates the extension parameters.  We always answer with
+     * no context takeover in both directions; window sizes are left at
+     * the default of 15 bits, which is all java.util.zip supports.
+     */
+    @Override
+    public void setConfig(ExtensionConfig requested) {
+        ExtensionConfig negotiated = new ExtensionConfig(requested.getName());
+        negotiated.setParameter("server_no_context_takeover");
+        negotiated.setParameter("client_no_context_takeover");
+        super.setConfig(negotiated);
+    }
+
+    private ByteBufferPool bufferPool() {
+        ByteBufferPool pool = getBufferPool();
+        return pool != null ? pool : defaultBufferPool;
+    }
+
+    private static Deflater acquireDeflater() {
+        Deflater def = deflaterPool.poll();
+        if (def != null) {
+            pooledDeflaters.decrementAndGet();
+            def.setLevel(compressionLevel);
+            return def;
+        }
+        return new Deflater(compressionLevel, true);
+    }
+
+    private static void releaseDeflater(Deflater def) {
+        def.reset();
+        if (pooledDeflaters.incrementAndGet() <= deflaterPoolSize) {
+            deflaterPool.offer(def);
+        } else {
+            pooledDeflaters.decrementAndGet();
+            def.end();
+        }
+    }
+
+    /**
+     * Copies the readable bytes of a buffer into an array if it is not
+     * already backed by one.
+     */
+    private static byte[] arrayOf(ByteBuffer buf, int[] offset) {
+        if (buf.hasArray()) {
+            offset[0] = buf.arrayOffset() + buf.position();
+            return buf.array();
+        }
+        byte[] copy = new byte[buf.remaining()];
+        buf.slice().get(copy);
+        offset[0] = 0;
+        return copy;
+    }
+
+    // -- outgoing -----------------------------------------------------
+
+    @Override
+    public void outgoingFrame(
+        Frame frame, WriteCallback callback, BatchMode batchMode) {
+
+        if (OpCode.isControlFrame(frame.getOpCode())) {
+            nextOutgoingFrame(frame, callback, batchMode);
+            return;
+        }
+
+        boolean continuation = frame.getType().isContinuation();
+
+        if (!continuation) {
+            // first frame of a message; decide whether to compress it.
+            // Messages sent whole (the usual case) under the threshold
+            // go out as-is.
+            outgoingCompressed = enabled && !(frame.isFin()
+                && frame.getPayloadLength() < minCompressSize);
+        }
+
+        if (!outgoingCompressed) {
+            if (!continuation) messagesSkipped.incrementAndGet();
+            nextOutgoingFrame(frame, callback, batchMode);
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (deflater == null) deflater = acquireDeflater();
+
+        ByteBuffer payload = frame.getPayload();
+        int length = payload == null ? 0 : payload.remaining();
+
+        if (length > 0) {
+            int[] offset = new int[1];
+            byte[] input = arrayOf(payload, offset);
+            deflater.setInput(input, offset[0], length);
+        }
+
+        final ByteBufferPool pool = bufferPool();
+        ByteBuffer out = pool.acquire(length + (length >> 10) + 64, false);
+        BufferUtil.clearToFill(out);
+
+        while (true) {
+            if (!out.hasRemaining()) {
+                ByteBuffer bigger = pool.acquire(out.capacity() * 2, false);
+                BufferUtil.clearToFill(bigger);
+                out.flip();
+                bigger.put(out);
+                pool.release(out);
+                out = bigger;
+            }
+            int written = deflater.deflate(out.array(),
+                out.arrayOffset() + out.position(), out.remaining(),
+                Deflater.SYNC_FLUSH);
+            out.position(out.position() + written);
+            if (written == 0 && deflater.needsInput() && out.hasRemaining())
+                break;
+        }
+
+        // a sync flush always ends with the empty-block marker; the RFC
+        // has us drop it from the final frame of the message.
+        if (frame.isFin() && out.position() >= TAIL.length)
+            out.position(out.position() - TAIL.length);
+
+        BufferUtil.flipToFlush(out, 0);
+
+        if (frame.isFin()) {
+            releaseDeflater(deflater);
+            deflater = null;
+        }
+
+        DataFrame compressed = new DataFrame(frame, continuation);
+        compressed.setRsv1(!continuation);
+        compressed.setPayload(out);
+        compressed.setFin(frame.isFin());
+
+        if (!continuation) messagesCompressed.incrementAndGet();
+        bytesBeforeCompression.addAndGet(length);
+        bytesAfterCompression.addAndGet(out.remaining());
+        compressNanos.addAndGet(System.nanoTime() - start);
+
+        final ByteBuffer release = out;
+        nextOutgoingFrame(compressed, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                pool.release(release);
+                if (callback != null) callback.writeFailed(x);
+            }
+
+            @Override
+            public void writeSuccess() {
+                pool.release(release);
+                if (callback != null) callback.writeSuccess();
+            }
+        }, batchMode);
+    }
+
+    // -- incoming -----------------------------------------------------
+
+    @Override
+    public void incomingFrame(Frame frame) {
+        if (OpCode.isControlFrame(frame.getOpCode())) {
+            nextIncomingFrame(frame);
+            return;
+        }
+
+        boolean continuation = frame.getType().isContinuation();
+        if (!continuation) {
+            incomingCompressed = frame.isRsv1();
+            incomingSize = 0;
+            incomingLimit = maxMessageSize(frame.getOpCode());
+        }
+
+        if (!incomingCompressed) {
+            nextIncomingFrame(frame);
+            return;
+        }
+
+        // The client honours client_no_context_takeover, but keeping one
+        // inflater for the connection decodes correctly either way.
+        if (inflater == null) inflater = new Inflater(true);
+
+        ByteBuffer payload = frame.getPayload();
+        int length = payload == null ? 0 : payload.remaining();
+
+        ByteBufferPool pool = bufferPool();
+        ByteBuffer out = pool.acquire(Math.max(1024, length * 4), false);
+        BufferUtil.clearToFill(out);
+
+        // a small frame may inflate to any size: stop at the limit
+        long allowed = incomingLimit - incomingSize;
+        if (length > 0) {
+            int[] offset = new int[1];
+            byte[] input = arrayOf(payload, offset);
+            inflater.setInput(input, offset[0], length);
+            out = inflate(pool, out, allowed);
+        }
+        if (frame.isFin()) {
+            inflater.setInput(TAIL);
+            out = inflate(pool, out, allowed);
+        }
+        incomingSize += out.position();
+
+        BufferUtil.flipToFlush(out, 0);
+
+        DataFrame plain = new DataFrame(frame, continuation);
+        plain.setRsv1(false);
+        plain.setPayload(out);
+        plain.setFin(frame.isFin());
+
+        try {
+            // the next layer copies the payload into the message
+            nextIncomingFrame(plain);
+        } finally {
+            pool.release(out);
+        }
+    }
+
+    /**
+     * Returns the policy's largest message of a type, or no limit.
+     */
+    private long maxMessageSize(byte opcode) {
+        WebSocketPolicy policy = getPolicy();
+        if (policy == null) return Long.MAX_VALUE;
+        int max = opcode == OpCode.TEXT ? policy.getMaxTextMessageSize()
+            : policy.getMaxBinaryMessageSize();
+        return max > 0 ? max : Long.MAX_VALUE;
+    }
+
+    /**
+     * Inflates the pending input onto out, growing it as needed.  On
+     * error, the buffer is released before the exception is thrown.
+     *
+     * @param allowed Most bytes out may hold
+     * @throws MessageTooLargeException if the output would exceed allowed
+     * @throws BadPayloadException if the input is not valid deflate data
+     */
+    private ByteBuffer inflate(ByteBufferPool pool, ByteBuffer out,
+        long allowed) {
+
+        try {
+            while (true) {
+                if (!out.hasRemaining()) {
+                    ByteBuffer bigger = pool.acquire(out.capacity() * 2, false);
+                    BufferUtil.clearToFill(bigger);
+                    out.flip();
+                    bigger.put(out);
+                    pool.release(out);
+                    out = bigger;
+                }
+                int read = inflater.inflate(out.array(),
+                    out.arrayOffset() + out.position(), out.remaining());
+                out.position(out.position() + read);
+                if (out.position() > allowed) {
+                    throw new MessageTooLargeException(
+                        "Inflated message exceeds " + incomingLimit + " bytes");
+                }
+                if (read == 0 && (inflater.needsInput() || inflater.finished()))
+                    return out;
+            }
+        } catch (DataFormatException e) {
+            pool.release(out);
+            throw new BadPayloadException(e);
+        } catch (RuntimeException e) {
+            pool.release(out);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (deflater != null) {
+            releaseDeflater(deflater);
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        super.doStop();
+    }
+}
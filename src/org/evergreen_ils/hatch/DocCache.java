@@ -0,0 +1,160 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * Parsed values of recently queried keys, so repeated queries against
+ * a large value skip reading and parsing it.
+ *
+ * Entries are kept in LRU order and bounded by the total length of
+ * their source text.  Storage invalidates a key whenever it writes it.
+ * Cached values are shared and must not be modified.
+ */
+public class DocCache {
+
+    private static class Doc {
+        final Object value;
+        final long size;
+        Doc(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /** Marks a cached key whose value did not exist */
+    private static final Object MISSING = new Object();
+
+    /** Total source characters to keep; 0 disables the cache */
+    private static long maxChars = 16 * 1024 * 1024;
+
+    /** origin + "\0" + key => parsed value, in access order */
+    private static final LinkedHashMap<String,Doc> docs =
+        new LinkedHashMap<String,Doc>(64, 0.75f, true);
+
+    /** Bumped on every invalidation, to detect writes during a load */
+    private static long generation = 0;
+
+    private static long chars = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+
+    /**
+     * Sets the cache size, in characters of source text.  0 disables it.
+     */
+    public static synchronized void setMaxChars(long max) {
+        maxChars = max;
+        trim();
+    }
+
+    private static String id(String origin, String key) {
+        return origin + "\0" + key;
+    }
+
+    /**
+     * Returns the parsed value of a key, reading and parsing it through
+     * the storage if it is not cached.
+     *
+     * @param origin The cleaned origin
+     * @param storage Storage for the origin
+     * @param key The key
+     * @return The parsed value, or null if the key does not exist
+     * @throws IllegalStateException if the value is not valid JSON
+     */
+    public static Object get(String origin, StorageBackend storage, String key) {
+        String id = id(origin, key);
+        long gen;
+        synchronized (DocCache.class) {
+            Doc doc = docs.get(id);
+            if (doc != null) {
+                hits++;
+                return doc.value == MISSING ? null : doc.value;
+            }
+            misses++;
+            gen = generation;
+        }
+
+        String text = storage.get(key);
+        Object value = text == null ? null : JSON.parse(text);
+        long size = text == null ? 1 : text.length();
+
+        synchronized (DocCache.class) {
+            // skip caching if a write may have landed since our read
+            if (gen == generation
+                && size <= maxChars / 4 && !docs.containsKey(id)) {
+                docs.put(id, new Doc(value == null ? MISSING : value, size));
+                chars += size;
+                trim();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Drops the cached value of a key.
+     */
+    public static synchronized void invalidate(String origin, String key) {
+        generation++;
+        Doc doc = docs.remove(id(origin, key));
+        if (doc != null) chars -= doc.size;
+    }
+
+    /**
+     * Drops the cached values of an origin's keys in the given lock
+     * stripes (see Storage.stripe()), after other processes sharing
+     * the profile directory have written to them.
+     */
+    public static synchronized void invalidate(String origin, boolean[] stripes) {
+        generation++;
+        String prefix = id(origin, "");
+        Iterator<Map.Entry<String,Doc>> it = docs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String,Doc> e = it.next();
+            String id = e.getKey();
+            if (!id.startsWith(prefix)) continue;
+            if (!stripes[Storage.stripe(origin, id.substring(prefix.length()))])
+                continue;
+            chars -= e.getValue().size;
+            it.remove();
+        }
+    }
+
+    private static void trim() {
+        Iterator<Doc> it = docs.values().iterator();
+        while (chars > maxChars && it.hasNext()) {
+            chars -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns cache statistics.
+     */
+    public static synchronized Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("entries", docs.size());
+        stats.put("chars", chars);
+        stats.put("maxChars", maxChars);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        return stats;
+    }
+}
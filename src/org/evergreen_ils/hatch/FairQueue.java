@@ -0,0 +1,280 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Blocking queue which shares its consumers fairly between flows
+ * (one flow per client connection), using deficit round robin.
+ *
+ * Each flow has its own FIFO.  Active flows are visited in turn, and
+ * each visit earns a flow (quantum * weight) credit; items are taken
+ * from the flow while its credit covers their cost.  A flow with many
+ * queued items therefore gets no more than its weighted share of
+ * consumer time while other flows are waiting.
+ *
+ * In serial mode, a flow has at most one item in progress at a time:
+ * the next item from that flow is not handed out until done() is
+ * called for the previous one.  This keeps each connection's requests
+ * in order when there are several consumers.
+ *
+ * @param <T> Queued item type
+ */
+public class FairQueue<T> {
+
+    /** An item taken from the queue */
+    public static class Item<T> {
+        final Object flow;
+        final T value;
+        final int cost;
+
+        Item(Object flow, T value, int cost) {
+            this.flow = flow;
+            this.value = value;
+            this.cost = cost;
+        }
+
+        public T getValue() {
+            return value;
+        }
+    }
+
+    private static class Flow<T> {
+        final Object key;
+        final ArrayDeque<Item<T>> items = new ArrayDeque<Item<T>>();
+        int weight = 1;
+        long deficit = 0;
+        boolean busy = false;
+        boolean active = false;
+
+        Flow(Object key) {
+            this.key = key;
+        }
+    }
+
+    private final String name;
+    private final int quantum;
+    private final boolean serial;
+
+    /** Most items a single flow may have queued; 0 for no limit */
+    private int maxPerFlow = 0;
+
+    private final Map<Object,Flow<T>> flows = new HashMap<Object,Flow<T>>();
+
+    /** Flows with queued items, in round robin order */
+    private final ArrayDeque<Flow<T>> active = new ArrayDeque<Flow<T>>();
+
+    private int size = 0;
+    private long taken = 0;
+    private long rejected = 0;
+
+    /**
+     * @param name Name used in statistics
+     * @param quantum Credit per visit for a flow of weight 1, in the
+     * same units as item cost.
+     * @param serial If true, only one item per flow is handed out at
+     * a time.
+     */
+    public FairQueue(String name, int quantum, boolean serial) {
+        this.name = name;
+        this.quantum = Math.max(1, quantum);
+        this.serial = serial;
+    }
+
+    /**
+     * Sets the most items a single flow may have queued.
+     *
+     * @param max Item limit; 0 for no limit.
+     */
+    public synchronized void setMaxPerFlow(int max) {
+        maxPerFlow = max;
+    }
+
+    /**
+     * Adds an item.
+     *
+     * @param flow Flow key, e.g. the client connection
+     * @param weight Relative share of consumer time for the flow
+     * @param value The item
+     * @param cost Item cost; items of cost 1 are simply counted.
+     * @return False if the flow already has the maximum number of
+     * items queued.
+     */
+    public synchronized boolean offer(
+        Object flow, int weight, T value, int cost) {
+        return offer(flow, weight, value, cost, 0);
+    }
+
+    /**
+     * Adds an item, waiting for room if the flow's queue is full.
+     * Waiting holds up only the caller, which for a connection's
+     * reader thread pushes back on that client alone.
+     *
+     * @param waitMillis Longest time to wait for room
+     * @return False if there was still no room after waitMillis.
+     */
+    public synchronized boolean offer(
+        Object flow, int weight, T value, int cost, long waitMillis) {
+
+        Flow<T> f = flowFor(flow);
+        long deadline = System.currentTimeMillis() + waitMillis;
+
+        while (maxPerFlow > 0 && f.items.size() >= maxPerFlow) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rejected++;
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected++;
+                return false;
+            }
+            f = flowFor(flow); // may have been dropped while idle
+        }
+
+        f.weight = Math.max(1, weight);
+        f.items.add(new Item<T>(flow, value, Math.max(1, cost)));
+        size++;
+
+        if (!f.active) {
+            f.active = true;
+            f.deficit = 0;
+            active.add(f);
+        }
+
+        notifyAll();
+        return true;
+    }
+
+    private Flow<T> flowFor(Object flow) {
+        Flow<T> f = flows.get(flow);
+        if (f == null) {
+            f = new Flow<T>(flow);
+            flows.put(flow, f);
+        }
+        return f;
+    }
+
+    /**
+     * Removes the next item, waiting until one is available.
+     */
+    public synchronized Item<T> take() throws InterruptedException {
+        while (true) {
+            Item<T> item = poll();
+            if (item != null) {
+                if (maxPerFlow > 0) notifyAll(); // room for a waiting offer
+                return item;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Returns the next item by deficit round robin, or null if no
+     * flow has an item ready.
+     */
+    private Item<T> poll() {
+        // every pass adds credit to each waiting flow, so as long as
+        // one flow is not busy, an item is eventually found.
+        while (!active.isEmpty()) {
+            Flow<T> f = active.peek();
+
+            if (serial && f.busy) {
+                if (allBusy()) return null;
+                active.add(active.poll());
+                continue;
+            }
+
+            Item<T> head = f.items.peek();
+            if (head.cost > f.deficit) {
+                // out of credit: earn more and move to the back
+                f.deficit += (long) quantum * f.weight;
+                active.add(active.poll());
+                continue;
+            }
+
+            f.items.poll();
+            f.deficit -= head.cost;
+            size--;
+            taken++;
+
+            if (f.items.isEmpty()) {
+                // idle flows don't bank credit
+                active.poll();
+                f.active = false;
+                f.deficit = 0;
+                if (!serial) flows.remove(f.key);
+            }
+
+            if (serial) f.busy = true;
+            return head;
+        }
+        return null;
+    }
+
+    private boolean allBusy() {
+        for (Flow<T> f : active) {
+            if (!f.busy) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks an item as finished, allowing the next item from its flow
+     * to be handed out.  Only needed in serial mode.
+     */
+    public synchronized void done(Item<T> item) {
+        Flow<T> f = flows.get(item.flow);
+        if (f == null) return;
+        f.busy = false;
+        if (!f.active) flows.remove(item.flow);
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of queued items.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of items queued for one flow.
+     */
+    public synchronized int size(Object flow) {
+        Flow<T> f = flows.get(flow);
+        return f == null ? 0 : f.items.size();
+    }
+
+    /**
+     * Returns queue statistics.
+     */
+    public synchronized Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("name", name);
+        stats.put("queued", size);
+        stats.put("activeFlows", active.size());
+        stats.put("taken", taken);
+        stats.put("rejected", rejected);
+        return stats;
+    }
+}
@@ -16,12 +16,110 @@
 package org.evergreen_ils.hatch;
 
 import java.io.*;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 
-public class FileIO {
+/**
+ * File storage backend: one file per key under basePath/origin.
+ *
+ * Values of compressThreshold bytes or more are stored deflated.  A
+ * compressed file starts with MAGIC, the value's total length and the
+ * offset of its trailing run of stored (uncompressed) blocks, then
+ * holds a series of blocks.  Small appends are added as stored blocks,
+ * and once the trailing run reaches MERGE_BLOCK bytes it is replaced by
+ * one deflated block, so appending never rewrites more than that.
+ * Values built up by appending to a plain file stay plain, so that
+ * ranges of them can be read in place.  Files without the marker are
+ * plain text, as always.
+ *
+ * With a BlobStore threshold set, large values are instead stored once
+ * per profile directory and the key's file only refers to them.
+ */
+public class FileIO implements StorageBackend {
+
+    /** Marks a compressed file; text files never begin with NUL */
+    private static final byte[] MAGIC = {0, 'H', 'Z', '1'};
+
+    /** MAGIC, uncompressed length, offset of the trailing stored blocks */
+    private static final int HEADER_SIZE = MAGIC.length + 16;
+
+    /** Block types */
+    private static final int BLOCK_STORED = 0;
+    private static final int BLOCK_DEFLATED = 1;
+
+    /** Blocks shorter than this are not worth deflating */
+    private static final int MIN_DEFLATE_BLOCK = 128;
+
+    /** Size at which trailing stored blocks are merged and deflated */
+    private static final int MERGE_BLOCK = 4096;
+
+    /** Values this long or longer (UTF-8 bytes) are compressed; 0 = never */
+    private static int compressThreshold = 8192;
+
+    /** Deflate level for stored values */
+    private static int compressLevel = Deflater.BEST_SPEED;
+
+    /**
+     * Charset of plain files written by older versions, which used the
+     * platform's.  Files are written as UTF-8 now; a plain file which
+     * is not valid UTF-8 is read in this charset instead.
+     */
+    private static final Charset LEGACY_CHARSET = Charset.defaultCharset();
+
+    /** Most paths remembered as holding valid UTF-8 */
+    private static final int MAX_UTF8_FILES = 10000;
+
+    /** Paths of plain files known to hold UTF-8 */
+    private static final Set<String> utf8Files =
+        Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    /** Record (line) start offsets of plain files, by path */
+    static class RecordIndex {
+        /** Bytes of the file indexed so far */
+        long scanned = 0;
+        /** True if the next byte scanned begins a record */
+        boolean afterLineFeed = true;
+        long[] starts = new long[64];
+        int count = 0;
+
+        void add(long start) {
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = start;
+        }
+    }
+
+    /** Most record indexes kept; least recently used go first */
+    private static final int MAX_RECORD_INDEXES = 16;
+
+    private static final Map<String,RecordIndex> recordIndexes =
+        new LinkedHashMap<String,RecordIndex>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                Map.Entry<String,RecordIndex> eldest) {
+                return size() > MAX_RECORD_INDEXES;
+            }
+        };
 
     /** All files are read from and written to this directory */
     String basePath;
@@ -37,6 +135,22 @@ public class FileIO {
 
     static { Arrays.sort(illegalChars); }
 
+    /**
+     * Sets the size, in bytes, from which values are stored
+     * compressed.  0 turns compression off for new writes; compressed
+     * values already stored still read normally.
+     */
+    public static void setCompressThreshold(int bytes) {
+        compressThreshold = bytes;
+    }
+
+    /**
+     * Sets the deflate level (1-9) for compressed values.
+     */
+    public static void setCompressLevel(int level) {
+        compressLevel = level;
+    }
+
     public static String cleanFileName(String badFileName) {
         char lastChar = 0;
         StringBuilder cleanName = new StringBuilder();
@@ -126,11 +240,32 @@ public class FileIO {
     public boolean set(String key, String text) {
         logger.info("set => " + key);
         File file = getFile(key);
+        dropRecordIndex(file);
 
         if (text == null) return false;
+        BlobStore.Ref old = oldRef(file);
 
         try {
 
+            // large values are stored once, shared with other keys
+            if (BlobStore.applies(text.length() * 3)) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                if (BlobStore.applies(bytes.length)) {
+                    setShared(file, bytes);
+                    release(old);
+                    return true;
+                }
+            }
+
+            if (compressThreshold > 0 && text.length() * 3 >= compressThreshold) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length >= compressThreshold) {
+                    writeCompressed(file, bytes);
+                    release(old);
+                    return true;
+                }
+            }
+
             // delete the file if it exists
             if (!file.exists() && !file.createNewFile()) {
                 logger.info(
@@ -139,8 +274,9 @@ public class FileIO {
             }
 
             // destructive write (replace existing text)
-            Writer outStream = new BufferedWriter(
-                new FileWriter(file.getAbsoluteFile()));
+            Writer outStream = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file.getAbsoluteFile()),
+                StandardCharsets.UTF_8));
 
             outStream.write(text);
             outStream.close();
@@ -151,9 +287,57 @@ public class FileIO {
             return false;
         }
 
+        release(old);
         return true;
     }
 
+    /**
+     * Stores a value as a blob and refers the file to it.
+     */
+    private void setShared(File file, byte[] bytes) throws IOException {
+        blobs().store(file, BlobStore.hash(bytes), bytes);
+    }
+
+    /**
+     * Reads the reference a key's file holds before the file is
+     * replaced or removed, making sure the blob store has counted it
+     * first: counted afterwards, it would be released twice.
+     */
+    private BlobStore.Ref oldRef(File file) {
+        BlobStore.Ref ref = BlobStore.readRef(file);
+        if (ref != null) blobs().prepare();
+        return ref;
+    }
+
+    /** Drops a reference a key's file held before it was replaced */
+    private void release(BlobStore.Ref old) {
+        if (old != null) blobs().release(old.hash);
+    }
+
+    private BlobStore blobs() {
+        return BlobStore.forDirectory(basePath);
+    }
+
+    /**
+     * Returns the file holding a key's data: the blob it refers to,
+     * or the file itself.
+     */
+    private File dataFile(File file) {
+        BlobStore.Ref ref = BlobStore.readRef(file);
+        return ref == null ? file : blobs().blobFile(ref.hash);
+    }
+
+    /**
+     * Writes a whole value to a file, compressed if it is large enough.
+     */
+    static void writeValue(File file, byte[] bytes) throws IOException {
+        if (compressThreshold > 0 && bytes.length >= compressThreshold) {
+            writeCompressed(file, bytes);
+        } else {
+            Files.write(file.toPath(), bytes);
+        }
+    }
+
     /**
      * Appends content to a file.
      *
@@ -167,8 +351,29 @@ public class FileIO {
         logger.info("append => " + key);
         File file = getFile(key);
 
+        // a shared value is copied out before it changes
+        if (BlobStore.readRef(file) != null) {
+            String value = getRaw(key);
+            return value != null && set(key, value + text);
+        }
+
         try {
 
+            if (isCompressed(file)) {
+                appendBlock(file, text.getBytes(StandardCharsets.UTF_8));
+                return true;
+            }
+
+            // a plain file stays plain however long it grows, so logs
+            // built by appending can be range read in place; one left
+            // in the platform charset is converted first
+            if (file.exists() && charset(file) != StandardCharsets.UTF_8) {
+                byte[] old = Files.readAllBytes(file.toPath());
+                Files.write(file.toPath(),
+                    new String(old, LEGACY_CHARSET).getBytes(StandardCharsets.UTF_8));
+                markUtf8(file);
+            }
+
             // create the file if it doesn's already exist
             if (!file.exists() && !file.createNewFile()) {
                 logger.info(
@@ -177,8 +382,9 @@ public class FileIO {
             }
 
             // non-destructive write (append)
-            Writer outStream = new BufferedWriter(
-                new FileWriter(file.getAbsoluteFile(), true));
+            Writer outStream = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file.getAbsoluteFile(), true),
+                StandardCharsets.UTF_8));
             outStream.write(text);
             outStream.close();
 
@@ -191,6 +397,55 @@ public class FileIO {
         return true;
     }
 
+    /**
+     * Returns the charset of a plain file: UTF-8, unless the file was
+     * written by an older version in another platform charset and is
+     * not valid UTF-8.
+     */
+    static Charset charset(File file) throws IOException {
+        if (LEGACY_CHARSET.equals(StandardCharsets.UTF_8)
+            || utf8Files.contains(file.getPath())) {
+            return StandardCharsets.UTF_8;
+        }
+
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try (Reader reader = new InputStreamReader(
+                new FileInputStream(file), decoder)) {
+            char[] buf = new char[8192];
+            while (reader.read(buf) >= 0) {
+                // decoding is the check
+            }
+        } catch (CharacterCodingException e) {
+            return LEGACY_CHARSET;
+        } catch (FileNotFoundException e) {
+            return StandardCharsets.UTF_8; // written as UTF-8 when created
+        }
+        markUtf8(file);
+        return StandardCharsets.UTF_8;
+    }
+
+    /** Remembers that a plain file holds UTF-8 */
+    private static void markUtf8(File file) {
+        if (utf8Files.size() >= MAX_UTF8_FILES) utf8Files.clear();
+        utf8Files.add(file.getPath());
+    }
+
+    /**
+     * Returns text as get() reads it back once stored: with its line
+     * breaks removed.
+     */
+    static String joinLines(String text) {
+        if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+        StringBuilder buf = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\n' && c != '\r') buf.append(c);
+        }
+        return buf.toString();
+    }
+
     /**
      * Gets the text contents of a file.
      *
@@ -201,14 +456,18 @@ public class FileIO {
         logger.info("get => " + key);
         File file = getFile(key);
         if (!file.exists()) return null;
+        file = dataFile(file);
 
         String line;
         StringBuffer buf = new StringBuffer();
 
-        try {
-            BufferedReader reader = new BufferedReader(
-                new FileReader(file.getAbsoluteFile()));
+        try (BufferedReader reader = new BufferedReader(isCompressed(file) ?
+                new StringReader(readCompressed(file)) :
+                new InputStreamReader(new FileInputStream(
+                    file.getAbsoluteFile()), charset(file)))) {
 
+            // compressed values are read line by line too, so they
+            // come back exactly as they would uncompressed
             while ( (line = reader.readLine()) != null) {
                 buf.append(line);
             }
@@ -230,12 +489,16 @@ public class FileIO {
     public boolean remove(String key) {
         logger.info("remove => " + key);
         File file = getFile(key);
+        dropRecordIndex(file);
+        BlobStore.Ref old = oldRef(file);
         try {
-            if (file.exists() && !file.delete()) {
+            // already gone, perhaps removed by another process: done
+            if (!file.delete() && file.exists()) {
                 logger.info(
                     "Unable to delete file: " + file.getCanonicalPath());
                 return false;
             }
+            release(old);
             return true;
         } catch (IOException e) {
             logger.warn("Error deleting key: " + key);
@@ -244,6 +507,203 @@ public class FileIO {
         }
     }
 
+    /**
+     * Returns the size of a file in bytes, or -1 if it does not exist.
+     *
+     * @param key The relative file name (key)
+     */
+    public long size(String key) {
+        File file = getFile(key);
+        if (file == null || !file.isFile()) return -1;
+
+        BlobStore.Ref ref = BlobStore.readRef(file);
+        if (ref != null) return ref.size;
+
+        if (file.length() >= HEADER_SIZE) {
+            try (DataInputStream in = new DataInputStream(
+                    new FileInputStream(file))) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (Arrays.equals(magic, MAGIC)) return in.readLong();
+            } catch (IOException e) {
+                logger.warn("Error reading key: " + key);
+                logger.warn(e);
+            }
+        }
+        return file.length();
+    }
+
+    /**
+     * Returns true if a file holds a compressed value.
+     */
+    static boolean isCompressed(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) return false;
+        byte[] magic = new byte[MAGIC.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(magic);
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Replaces a file with a compressed value, as a single block.
+     */
+    private static void writeCompressed(File file, byte[] bytes)
+        throws IOException {
+
+        dropRecordIndex(file);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeBlock(new DataOutputStream(buf), bytes);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(MAGIC);
+            out.writeLong(bytes.length);
+            out.writeLong(HEADER_SIZE + buf.size());
+            buf.writeTo(out);
+        }
+    }
+
+    /**
+     * Appends to a compressed file, then updates its header.
+     */
+    private static void appendBlock(File file, byte[] bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(MAGIC.length);
+            long total = raf.readLong();
+            long tail = raf.readLong();
+            long end = raf.length();
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            if (end - tail + bytes.length < MERGE_BLOCK) {
+                // small: add a stored block to the trailing run
+                writeBlock(new DataOutputStream(buf), bytes);
+                raf.seek(end);
+                raf.write(buf.toByteArray());
+
+            } else {
+                // replace the trailing run with one deflated block
+                byte[] run = new byte[(int) (end - tail)];
+                raf.seek(tail);
+                raf.readFully(run);
+                ByteArrayOutputStream raw = new ByteArrayOutputStream();
+                DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(run));
+                while (in.available() > 0) {
+                    in.readByte();
+                    in.readInt();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    raw.write(data);
+                }
+                raw.write(bytes);
+
+                writeBlock(new DataOutputStream(buf), raw.toByteArray());
+                raf.seek(tail);
+                raf.write(buf.toByteArray());
+                raf.setLength(tail + buf.size());
+                tail += buf.size();
+            }
+
+            raf.seek(MAGIC.length);
+            raf.writeLong(total + bytes.length);
+            raf.writeLong(tail);
+        }
+    }
+
+    /** Writes: type, raw length, stored length, data */
+    private static void writeBlock(DataOutputStream out, byte[] bytes)
+        throws IOException {
+
+        byte[] data = bytes;
+        int type = BLOCK_STORED;
+
+        if (bytes.length >= MIN_DEFLATE_BLOCK) {
+            Deflater deflater = new Deflater(compressLevel);
+            try {
+                deflater.setInput(bytes);
+                deflater.finish();
+                ByteArrayOutputStream buf =
+                    new ByteArrayOutputStream(bytes.length / 4 + 64);
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    buf.write(chunk, 0, deflater.deflate(chunk));
+                }
+                if (buf.size() < bytes.length) {
+                    data = buf.toByteArray();
+                    type = BLOCK_DEFLATED;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        out.writeByte(type);
+        out.writeInt(bytes.length);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Reads every block of a compressed file.
+     */
+    private static String readCompressed(File file) throws IOException {
+        return readCompressed(
+            new BufferedInputStream(new FileInputStream(file)), file.getName());
+    }
+
+    /**
+     * Reads every block of a compressed value, closing the stream.
+     *
+     * @param name File name for messages
+     */
+    private static String readCompressed(InputStream stream, String name)
+        throws IOException {
+
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+
+        try (DataInputStream in = new DataInputStream(stream)) {
+            in.skipBytes(HEADER_SIZE);
+
+            int type;
+            while ((type = in.read()) != -1) {
+                int rawLength = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+
+                if (type == BLOCK_STORED) {
+                    value.write(data);
+                    continue;
+                }
+
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(data);
+                    byte[] raw = new byte[rawLength];
+                    int len = 0;
+                    while (len < rawLength && !inflater.finished()) {
+                        int n = inflater.inflate(raw, len, rawLength - len);
+                        if (n == 0 && inflater.needsInput()) break;
+                        len += n;
+                    }
+                    if (len != rawLength)
+                        throw new IOException("Corrupt block in " + name);
+                    value.write(raw);
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt block in " + name, e);
+                } finally {
+                    inflater.end();
+                }
+            }
+        } catch (EOFException e) {
+            // a block cut short by a crash mid-append; keep the rest
+            logger.warn("Truncated block in " + name);
+        }
+
+        return new String(value.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     /**
      * Returns the full list of stored keys.
      *
@@ -285,4 +745,193 @@ public class FileIO {
 
         return (String[]) nameList.toArray(new String[0]);
     }
+
+    /**
+     * Returns the exact stored text of a key, line breaks included,
+     * or null if it does not exist.  (get() joins lines.)
+     */
+    public String getRaw(String key) {
+        File file = getFile(key);
+        if (file == null || !file.isFile()) return null;
+        file = dataFile(file);
+        try {
+            if (isCompressed(file)) return readCompressed(file);
+            return new String(Files.readAllBytes(file.toPath()),
+                charset(file));
+        } catch (IOException e) {
+            logger.warn("Error reading key: " + key);
+            logger.warn(e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file holding a key's value as stored, compressed or
+     * not, or null if it does not exist.  For a shared value, this is
+     * its blob.
+     */
+    File storedFile(String key) {
+        File file = getFile(key);
+        return file == null || !file.isFile() ? null : dataFile(file);
+    }
+
+    /**
+     * Replaces a key's file with bytes of a channel holding a file as
+     * stored (see storedFile()).  The bytes are copied with
+     * transferFrom(), into a temporary file which is then renamed.
+     *
+     * @param src The channel to copy from
+     * @param position Offset of the file in src
+     * @param count Length of the file
+     * @return success or failure
+     */
+    boolean setStored(String key, FileChannel src, long position, long count) {
+        logger.info("setStored => " + key);
+        File file = getFile(key);
+        if (file == null) return false;
+        dropRecordIndex(file);
+        utf8Files.remove(file.getPath()); // archived bytes may be older
+        BlobStore.Ref old = oldRef(file);
+
+        File tmp = null;
+        try {
+            // beside, not inside, the origin directory, so keys() never
+            // lists it, but on the same file system for the rename
+            tmp = File.createTempFile(originDomain, ".tmp", new File(basePath));
+            try (FileChannel out = FileChannel.open(
+                    tmp.toPath(), StandardOpenOption.WRITE)) {
+                long done = 0;
+                while (done < count) {
+                    long n = out.transferFrom(
+                        src.position(position + done), done, count - done);
+                    if (n <= 0) throw new EOFException("Source ended early");
+                    done += n;
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            release(old);
+            return true;
+
+        } catch (IOException e) {
+            logger.warn("Error in setStored() with key " + key);
+            logger.warn(e);
+            if (tmp != null) tmp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the value held in the bytes of a stored file.
+     */
+    static String decodeStored(byte[] bytes) throws IOException {
+        if (bytes.length >= HEADER_SIZE
+            && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC))
+            return readCompressed(new ByteArrayInputStream(bytes), "snapshot");
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the file of a key if it is stored as plain text, so its
+     * bytes may be read directly; null if it is missing or compressed.
+     */
+    File plainFile(String key) throws IOException {
+        File file = getFile(key);
+        if (file == null || !file.isFile()) return null;
+        file = dataFile(file);
+        return isCompressed(file) ? null : file;
+    }
+
+    /**
+     * Reads up to length bytes of a plain file from offset, with a
+     * positioned read, so the rest of the file is never loaded.
+     */
+    static byte[] readRange(File file, long offset, int length)
+        throws IOException {
+
+        try (FileChannel channel =
+                FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (offset >= size || length <= 0) return new byte[0];
+            ByteBuffer buf = ByteBuffer.allocate(
+                (int) Math.min(length, size - offset));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0) break;
+            }
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+    }
+
+    /**
+     * Returns the offsets at which the last records (lines) of a plain
+     * file begin, oldest first.  The file is indexed once and then only
+     * its newly appended bytes are scanned.
+     *
+     * @param last Most records to return
+     */
+    static long[] recordStarts(File file, int last) throws IOException {
+        String path = file.getAbsolutePath();
+        RecordIndex index;
+        synchronized (recordIndexes) {
+            index = recordIndexes.get(path);
+            if (index == null) {
+                index = new RecordIndex();
+                recordIndexes.put(path, index);
+            }
+        }
+
+        synchronized (index) {
+            try (FileChannel channel =
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < index.scanned) {
+                    // replaced behind our back; start over
+                    index.scanned = 0;
+                    index.count = 0;
+                    index.afterLineFeed = true;
+                }
+
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                long pos = index.scanned;
+                boolean atStart = index.afterLineFeed;
+                while (pos < size) {
+                    buf.clear();
+                    int n = channel.read(buf, pos);
+                    if (n <= 0) break;
+                    for (int i = 0; i < n; i++) {
+                        if (atStart) index.add(pos + i);
+                        atStart = buf.get(i) == '\n';
+                    }
+                    pos += n;
+                }
+                index.scanned = pos;
+                index.afterLineFeed = atStart;
+            }
+
+            int from = Math.max(0, index.count - last);
+            return Arrays.copyOfRange(index.starts, from, index.count);
+        }
+    }
+
+    private static void dropRecordIndex(File file) {
+        if (file == null) return;
+        synchronized (recordIndexes) {
+            recordIndexes.remove(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Drops the record indexes of every file in a directory, which
+     * another process may have rewritten.
+     */
+    static void dropRecordIndexes(File dir) {
+        String prefix = dir.getAbsolutePath() + File.separator;
+        synchronized (recordIndexes) {
+            Iterator<String> it = recordIndexes.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(prefix)) it.remove();
+            }
+        }
+    }
 }
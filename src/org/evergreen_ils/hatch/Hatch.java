@@ -48,10 +48,10 @@ import javafx.concurrent.Service;
 import javafx.concurrent.Task;
 import javafx.event.EventHandler;
 import javafx.concurrent.WorkerStateEvent;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.eclipse.jetty.util.ajax.JSON;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import java.io.FileInputStream;
@@ -90,10 +90,17 @@ public class Hatch extends Application {
     /** Our logger instance */
     static final Logger logger = Log.getLogger("Hatch");
 
+    /** Print job cost units: one per job plus one per 64K of content */
+    private static final int PRINT_QUANTUM = 4;
+    private static final int PRINT_COST_BYTES = 64 * 1024;
+
     /** Message queue for passing messages from the Jetty thread into
-     * the JavaFX Application thread */
-    private static LinkedBlockingQueue<Map> requestQueue =
-        new LinkedBlockingQueue<Map>();
+     * the JavaFX Application thread.  Print jobs are taken fairly
+     * from each connection, weighted by origin. */
+    private static FairQueue<Map<String,Object>> requestQueue =
+        new FairQueue<Map<String,Object>>("print", PRINT_QUANTUM, false);
+
+    static { requestQueue.setMaxPerFlow(64); }
 
     /**
      * Printable region containing a browser
@@ -121,7 +128,7 @@ public class Hatch extends Application {
                         logger.info("MsgListenService waiting for a message...");
                         try {
                             // take() blocks until a message is available
-                            return requestQueue.take();
+                            return requestQueue.take().getValue();
                         } catch (InterruptedException e) {
                             // interrupted, go back and listen
                             continue;
@@ -140,29 +147,67 @@ public class Hatch extends Application {
     public void start(Stage primaryStage) {
         this.primaryStage = primaryStage;
         startMsgTask();
+        PrintJournal.replay(HatchWebSocketHandler.getProfileDirectory());
     }
 
     /**
      * Queues a message for processing by the queue processing thread.
+     *
+     * @return False if the requesting connection already has too many
+     * print jobs queued.
      */
-    public static void enqueueMessage(Map<String,Object> params) {
+    public static boolean enqueueMessage(Map<String,Object> params) {
         logger.debug("queueing print message");
-        requestQueue.offer(params);
+        HatchWebSocketHandler socket =
+            (HatchWebSocketHandler) params.get("socket");
+        long length = PrintSpool.contentLength(params);
+        int cost = 1 + (int) Math.min(length / PRINT_COST_BYTES, 1 << 20);
+
+        return requestQueue.offer(socket,
+            RateLimiter.weightFor(socket == null ? null : socket.getOrigin()),
+            params, cost);
+    }
+
+    /**
+     * Sets the most print jobs one connection may have queued.
+     */
+    public static void setMaxQueuedPrintJobs(int max) {
+        requestQueue.setMaxPerFlow(max);
+    }
+
+    /**
+     * Returns print queue statistics.
+     */
+    static Map<String,Object> getQueueStats() {
+        return requestQueue.getStats();
     }
 
     /**
      * Build a browser view from the print content, tell the
      * browser to print itself.
+     *
+     * Spooled content (see PrintSpool) is loaded from its file, which
+     * is deleted once the job has printed or failed to load.  It is
+     * loaded with JavaScript off: from a file: URL, scripts could read
+     * other local files.
      */
     private void handlePrint(Map<String,Object> params) {
         String content = (String) params.get("content");
         String contentType = (String) params.get("contentType");
+        PrintSpool.Handle spooled = PrintSpool.get(params);
 
-        if (content == null) {
+        if (content == null && spooled == null) {
             logger.warn("handlePrint() called with no content");
             return;
         }
 
+        // a reprint of a page rendered before skips loading and layout
+        if (new PrintManager().printCached(params)) {
+            PrintSpool.release(params);
+            startMsgTask();
+            return;
+        }
+
         browser = new BrowserView();
         Scene scene = new Scene(browser);
         primaryStage.setScene(scene);
@@ -177,14 +222,30 @@ public class Hatch extends Application {
                     // Avoid nested UI event loops -- runLater
                     Platform.runLater(new Runnable() {
                         @Override public void run() {
-                            new PrintManager().print(browser.webEngine, params);
+                            try {
+                                new PrintManager().print(browser.webView, params);
+                            } finally {
+                                PrintSpool.release(params);
+                            }
                         }
                     });
+                } else if (newState == State.FAILED
+                    || newState == State.CANCELLED) {
+                    PrintSpool.release(params);
+                    ((HatchWebSocketHandler) params.get("socket")).reply(
+                        "Unable to load print content", (Long) params.get("msgid"), false);
                 }
             });
 
-        logger.info("printing " + content.length() + " bytes of " + contentType);
-        browser.webEngine.loadContent(content, contentType);
+        if (spooled != null) {
+            logger.info("printing " + spooled.length + " chars of " + contentType
+                + " from " + spooled.file.getName());
+            browser.webEngine.setJavaScriptEnabled(false);
+            browser.webEngine.load(spooled.getUrl());
+        } else {
+            logger.info("printing " + content.length() + " bytes of " + contentType);
+            browser.webEngine.loadContent(content, contentType);
+        }
 
         // After queueing up the HTML for printing, go back to listening
         // for new messages.
@@ -227,19 +288,46 @@ public class Hatch extends Application {
         service.start();
     }
 
+    /**
+     * Builds (but does not start) a Jetty server from the provided
+     * configuration file.
+     *
+     * @param configFile Path to the Jetty XML configuration file.
+     * @param properties Values for Property references within the
+     * configuration (e.g. jetty.port).  May be null.
+     * @return The configured server.
+     */
+    static Server buildServer(String configFile,
+        Map<String,String> properties) throws Exception {
+
+        XmlConfiguration configuration =
+            new XmlConfiguration(new FileInputStream(configFile));
+
+        if (properties != null)
+            configuration.getProperties().putAll(properties);
+
+        return (Server) configuration.configure();
+    }
+
     /**
      * Hatch main.
      *
-     * Reads the Jetty configuration, starts the Jetty server thread, 
+     * Reads the Jetty configuration, starts the Jetty server thread,
      * then launches the JavaFX Application thread.
+     *
+     * Arguments of the form name=value set Property values used in
+     * hatch.xml, e.g. threads.type=virtual
      */
     public static void main(String[] args) throws Exception {
 
-        // build a server from our hatch.xml configuration file
-        XmlConfiguration configuration =
-            new XmlConfiguration(new FileInputStream("hatch.xml"));
+        Map<String,String> properties = new HashMap<String,String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) properties.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
 
-        Server server = (Server) configuration.configure();
+        // build a server from our hatch.xml configuration file
+        Server server = buildServer("hatch.xml", properties);
 
         logger.info("Starting Jetty server");
 
@@ -0,0 +1,547 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import javafx.application.Application;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Websocket load generator for Hatch.
+ *
+ * Starts Hatch in-process (Jetty only, plus the JavaFX thread when print
+ * requests are part of the workload) against a temporary profile
+ * directory, or targets an already running instance via --url.  It then
+ * opens N websocket clients against /hatch and replays a mixed
+ * get/set/append/keys/print workload at a fixed aggregate rate.
+ *
+ * Latency is measured per msgid round trip, from the moment the request
+ * was *scheduled* to be sent, so a stalled server is not hidden by the
+ * generator backing off (coordinated omission).
+ *
+ * Example:
+ *
+ *   java -cp ... org.evergreen_ils.hatch.HatchLoadTest \
+ *     --clients 50 --rate 1000 --duration 60 \
+ *     --origins https://a.example.org,https://b.example.org \
+ *     --mix get=50,set=25,append=10,keys=15
+ */
+public class HatchLoadTest {
+
+    /** Workload actions in reporting order */
+    static final String[] ACTIONS = {"get", "set", "append", "keys", "print"};
+
+    // command line options ------------------------------------------
+    int clientCount = 10;
+    double rate = 200;
+    int durationSecs = 30;
+    int warmupSecs = 5;
+    int valueSize = 256;
+    int keyCount = 100;
+    long timeoutMillis = 10000;
+    String url;
+    String configFile = "hatch.xml";
+    String printer;
+    String[] origins = {"http://localhost"};
+    boolean cbor = false;
+    boolean deflate = false;
+    Map<String,Integer> mix = new LinkedHashMap<String,Integer>();
+
+    /** Set once warmup completes; samples before this are discarded */
+    volatile boolean recording = false;
+
+    /** Per-action statistics */
+    final Map<String,ActionStats> stats = new HashMap<String,ActionStats>();
+
+    /** Start time of the measured phase */
+    long measureStart;
+
+    public HatchLoadTest() {
+        mix.put("get", 50);
+        mix.put("set", 25);
+        mix.put("append", 10);
+        mix.put("keys", 15);
+        for (String action : ACTIONS) stats.put(action, new ActionStats());
+    }
+
+    /**
+     * Growable array of latency samples, in nanoseconds.
+     */
+    static class ActionStats {
+        final AtomicLong attempted = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        private long[] samples = new long[1024];
+        private int count = 0;
+
+        synchronized void record(long nanos) {
+            if (count == samples.length)
+                samples = Arrays.copyOf(samples, count * 2);
+            samples[count++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(samples, count);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    /**
+     * A request which has been sent and is awaiting its reply.
+     */
+    static class Pending {
+        final String action;
+        final long scheduledAt;
+        final boolean measured;
+
+        Pending(String action, long scheduledAt, boolean measured) {
+            this.action = action;
+            this.scheduledAt = scheduledAt;
+            this.measured = measured;
+        }
+    }
+
+    /**
+     * A single websocket client connection.
+     */
+    @WebSocket
+    public class LoadClient {
+        final int id;
+        final String origin;
+        final Random random;
+        final ConcurrentHashMap<Long,Pending> pending =
+            new ConcurrentHashMap<Long,Pending>();
+        final AtomicLong nextMsgid = new AtomicLong(1);
+        volatile Session session;
+        long nextSendAt;
+
+        LoadClient(int id, String origin) {
+            this.id = id;
+            this.origin = origin;
+            this.random = new Random(id);
+        }
+
+        @OnWebSocketMessage
+        @SuppressWarnings("unchecked")
+        public void onMessage(String message) {
+            handleReply(System.nanoTime(),
+                (Map<String,Object>) JSON.parse(message));
+        }
+
+        @OnWebSocketMessage
+        @SuppressWarnings("unchecked")
+        public void onMessage(byte[] buf, int offset, int length) {
+            handleReply(System.nanoTime(),
+                (Map<String,Object>) Cbor.decode(buf, offset, length));
+        }
+
+        void handleReply(long now, Map<String,Object> reply) {
+            Long msgid = (Long) reply.get("msgid");
+            Pending req = msgid == null ? null : pending.remove(msgid);
+            if (req == null || !req.measured) return;
+
+            ActionStats stat = stats.get(req.action);
+            if (reply.containsKey("error")) {
+                stat.errors.incrementAndGet();
+            } else {
+                stat.ok.incrementAndGet();
+                stat.record(now - req.scheduledAt);
+            }
+        }
+
+        @OnWebSocketClose
+        public void onClose(int statusCode, String reason) {
+            session = null;
+        }
+
+        /**
+         * Sends the next request of the mix.  Called at a fixed rate
+         * from the shared scheduler.
+         */
+        void tick(long period) {
+            long scheduledAt = nextSendAt;
+            nextSendAt += period;
+            send(pickAction(), scheduledAt);
+        }
+
+        String pickAction() {
+            int total = 0;
+            for (int weight : mix.values()) total += weight;
+            int pick = random.nextInt(total);
+            for (Map.Entry<String,Integer> entry : mix.entrySet()) {
+                pick -= entry.getValue();
+                if (pick < 0) return entry.getKey();
+            }
+            return "get";
+        }
+
+        String key() {
+            return key(random.nextInt(keyCount));
+        }
+
+        String key(int k) {
+            return "loadtest-" + id + "-" + k;
+        }
+
+        void send(String action, long scheduledAt) {
+            send(action, key(), scheduledAt);
+        }
+
+        /**
+         * @param key The key of a get or set; ignored by other actions
+         */
+        void send(String action, String key, long scheduledAt) {
+            Map<String,Object> msg = new HashMap<String,Object>();
+            long msgid = nextMsgid.getAndIncrement();
+            msg.put("msgid", msgid);
+            msg.put("action", action);
+
+            switch (action) {
+                case "get":
+                    msg.put("key", key);
+                    break;
+                case "set":
+                    msg.put("key", key);
+                    msg.put("value", jsonValue(valueSize));
+                    break;
+                case "append":
+                    // kept apart from the get/set keys so that reads
+                    // always see a valid JSON document.
+                    msg.put("key", "loadtest-log-" + id);
+                    msg.put("value", jsonValue(valueSize) + "\n");
+                    break;
+                case "keys":
+                    msg.put("key", "loadtest-" + id + "-");
+                    break;
+                case "print":
+                    Map<String,Object> config = new HashMap<String,Object>();
+                    config.put("printer", printer);
+                    msg.put("config", config);
+                    msg.put("contentType", "text/html");
+                    msg.put("content", "<html><body><pre>"
+                        + jsonValue(valueSize) + "</pre></body></html>");
+                    msg.put("showDialog", false);
+                    break;
+            }
+
+            Session sess = session;
+            ActionStats stat = stats.get(action);
+            boolean measured = recording;
+            if (measured) stat.attempted.incrementAndGet();
+            if (sess == null) {
+                if (measured) stat.errors.incrementAndGet();
+                return;
+            }
+
+            if (measured) stat.sent.incrementAndGet();
+            pending.put(msgid, new Pending(action, scheduledAt, measured));
+            if (cbor) {
+                sess.getRemote().sendBytesByFuture(
+                    ByteBuffer.wrap(Cbor.encode(msg)));
+            } else {
+                sess.getRemote().sendStringByFuture(JSON.toString(msg));
+            }
+        }
+
+        /**
+         * Counts requests which have not been answered within the
+         * timeout as timed out.
+         */
+        void expirePending(long now) {
+            long limit = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (Map.Entry<Long,Pending> entry : pending.entrySet()) {
+                Pending req = entry.getValue();
+                if (now - req.scheduledAt > limit
+                        && pending.remove(entry.getKey()) != null
+                        && req.measured) {
+                    stats.get(req.action).timeouts.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a JSON-encoded string value of roughly the requested size.
+     */
+    static String jsonValue(int size) {
+        StringBuilder buf = new StringBuilder(size + 2);
+        buf.append('"');
+        for (int i = 0; i < size; i++) buf.append((char) ('a' + (i % 26)));
+        buf.append('"');
+        return buf.toString();
+    }
+
+    /**
+     * Starts Jetty from our configuration file on an ephemeral port,
+     * with plain HTTP only, storing data in a temporary profile directory.
+     *
+     * @return The websocket URL for the in-process server.
+     */
+    String startInProcess() throws Exception {
+        File profile = Files.createTempDirectory("hatch-load").toFile();
+        profile.deleteOnExit();
+
+        Map<String,String> props = new HashMap<String,String>();
+        props.put("jetty.port", "0");
+        Server server = Hatch.buildServer(configFile, props);
+
+        // the load test speaks ws://, so avoid requiring a keystore.
+        for (Connector connector : server.getConnectors()) {
+            if (connector.getConnectionFactory(
+                    SslConnectionFactory.class) != null) {
+                server.removeConnector(connector);
+            }
+        }
+
+        HatchWebSocketHandler.setProfileDirectory(profile.getPath());
+        // all load clients may share one origin, and the offered
+        // rate is ours to choose
+        SessionRegistry.setMaxConnectionsPerOrigin(0);
+        RateLimiter.setSessionLimit(0, 1);
+        RateLimiter.setOriginLimit(0, 1);
+        server.start();
+
+        if (mix.containsKey("print")) {
+            // printing happens in the FX thread, which launch() owns
+            Thread fx = new Thread(new Runnable() {
+                public void run() { Application.launch(Hatch.class); }
+            });
+            fx.setDaemon(true);
+            fx.start();
+        }
+
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        System.out.println("In-process Hatch on port " + port
+            + ", profile directory " + profile);
+        return "ws://localhost:" + port + "/hatch";
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String val = i + 1 < args.length ? args[i + 1] : null;
+            switch (arg) {
+                case "--clients":  clientCount = Integer.parseInt(val); i++; break;
+                case "--rate":     rate = Double.parseDouble(val); i++; break;
+                case "--duration": durationSecs = Integer.parseInt(val); i++; break;
+                case "--warmup":   warmupSecs = Integer.parseInt(val); i++; break;
+                case "--value-size": valueSize = Integer.parseInt(val); i++; break;
+                case "--keys":     keyCount = Integer.parseInt(val); i++; break;
+                case "--timeout":  timeoutMillis = Long.parseLong(val); i++; break;
+                case "--url":      url = val; i++; break;
+                case "--config":   configFile = val; i++; break;
+                case "--printer":  printer = val; i++; break;
+                case "--origins":  origins = val.split(","); i++; break;
+                case "--cbor":     cbor = true; break;
+                case "--deflate":  deflate = true; break;
+                case "--mix":
+                    mix.clear();
+                    for (String part : val.split(",")) {
+                        String[] kv = part.split("=");
+                        if (!stats.containsKey(kv[0]))
+                            throw new IllegalArgumentException(
+                                "Unknown action in mix: " + kv[0]);
+                        mix.put(kv[0], Integer.parseInt(kv[1]));
+                    }
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (mix.containsKey("print") && printer == null)
+            throw new IllegalArgumentException("--printer required for print");
+    }
+
+    void run() throws Exception {
+        String target = url != null ? url : startInProcess();
+
+        WebSocketClient wsClient = new WebSocketClient();
+        wsClient.getPolicy().setMaxTextMessageSize(Integer.MAX_VALUE);
+        wsClient.getPolicy().setMaxBinaryMessageSize(Integer.MAX_VALUE);
+        if (deflate) {
+            // use Jetty's own implementation on the client side
+            wsClient.getExtensionFactory().register("permessage-deflate",
+                org.eclipse.jetty.websocket.common.extensions
+                    .compress.PerMessageDeflateExtension.class);
+        }
+        wsClient.start();
+
+        List<LoadClient> clients = new ArrayList<LoadClient>();
+        for (int i = 0; i < clientCount; i++) {
+            LoadClient client = new LoadClient(i, origins[i % origins.length]);
+            ClientUpgradeRequest request = new ClientUpgradeRequest();
+            request.setHeader("Origin", client.origin);
+            if (cbor) request.setSubProtocols(HatchWebSocketHandler.CBOR_PROTOCOL);
+            if (deflate) request.addExtensions("permessage-deflate");
+            client.session = wsClient.connect(
+                client, new URI(target), request).get(10, TimeUnit.SECONDS);
+            clients.add(client);
+        }
+        System.out.println("Connected " + clientCount + " clients to " + target);
+
+        // seed every key so that reads return real values
+        long seedAt = System.nanoTime();
+        for (LoadClient client : clients) {
+            for (int k = 0; k < keyCount; k++)
+                client.send("set", client.key(k), seedAt);
+        }
+
+        ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+        // each client sends at rate / clients; stagger their start times
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) * clientCount / rate);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients.size(); i++) {
+            final LoadClient client = clients.get(i);
+            long offset = period * i / clients.size();
+            client.nextSendAt = start + offset;
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() { client.tick(period); }
+            }, offset, period, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSecs));
+        measureStart = System.nanoTime();
+        recording = true;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSecs));
+        recording = false;
+        long measureEnd = System.nanoTime();
+
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+
+        // give outstanding requests a chance to complete
+        long drainUntil = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < drainUntil) {
+            boolean idle = true;
+            for (LoadClient client : clients) {
+                for (Pending req : client.pending.values()) {
+                    if (req.measured) { idle = false; break; }
+                }
+            }
+            if (idle) break;
+            Thread.sleep(50);
+        }
+
+        long now = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (LoadClient client : clients) client.expirePending(now);
+
+        report(measureEnd - measureStart);
+
+        for (LoadClient client : clients) {
+            if (client.session != null) client.session.close();
+        }
+        wsClient.stop();
+        System.exit(0);
+    }
+
+    static String millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) return "-";
+        int idx = (int) Math.ceil(quantile * sorted.length) - 1;
+        idx = Math.max(0, Math.min(sorted.length - 1, idx));
+        return String.format("%.2f", sorted[idx] / 1e6);
+    }
+
+    void report(long elapsedNanos) {
+        double secs = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.println(String.format(
+            "%-8s %9s %9s %8s %8s %9s %9s %9s %9s %9s",
+            "action", "sent", "ok/s", "errors", "timeout",
+            "err%", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+
+        long totalSent = 0, totalAttempted = 0, totalOk = 0, totalBad = 0;
+        ActionStats all = new ActionStats();
+
+        for (String action : ACTIONS) {
+            ActionStats stat = stats.get(action);
+            long sent = stat.sent.get();
+            long attempted = stat.attempted.get();
+            if (sent == 0 && !mix.containsKey(action)) continue;
+
+            long bad = stat.errors.get() + stat.timeouts.get();
+            long[] sorted = stat.sorted();
+            for (long sample : sorted) all.record(sample);
+
+            totalSent += sent;
+            totalAttempted += attempted;
+            totalOk += stat.ok.get();
+            totalBad += bad;
+
+            System.out.println(String.format(
+                "%-8s %9d %9.1f %8d %8d %8.2f%% %9s %9s %9s %9s",
+                action, sent, stat.ok.get() / secs,
+                stat.errors.get(), stat.timeouts.get(),
+                attempted == 0 ? 0.0 : 100.0 * bad / attempted,
+                millis(sorted, 0.50), millis(sorted, 0.99),
+                millis(sorted, 0.999), millis(sorted, 1.0)));
+        }
+
+        long[] sorted = all.sorted();
+        System.out.println(String.format(
+            "%-8s %9d %9.1f %17d %8.2f%% %9s %9s %9s %9s",
+            "total", totalSent, totalOk / secs, totalBad,
+            totalAttempted == 0 ? 0.0 : 100.0 * totalBad / totalAttempted,
+            millis(sorted, 0.50), millis(sorted, 0.99),
+            millis(sorted, 0.999), millis(sorted, 1.0)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        HatchLoadTest test = new HatchLoadTest();
+        test.parseArgs(args);
+        try {
+            test.run();
+        } catch (Exception e) {
+            // the in-process server would otherwise keep us running
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
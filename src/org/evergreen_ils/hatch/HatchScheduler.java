@@ -0,0 +1,148 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Shared timer for short, non-blocking housekeeping tasks
+ * (notification flushes, heartbeats).
+ *
+ * Tasks run on a small pool of daemon threads, so a pending task never
+ * holds the JVM open.  Tasks which do disk I/O (write-behind flushes,
+ * expiry sweeps) run on a separate daemon thread of their own, so a
+ * slow disk does not hold up the others.  Anything else which may
+ * block for long belongs on its own thread.
+ */
+public class HatchScheduler {
+
+    /** Number of scheduler threads */
+    private static int poolSize = 2;
+
+    private static ScheduledExecutorService executor;
+    private static ScheduledExecutorService ioExecutor;
+
+    private static final Logger logger = Log.getLogger("HatchScheduler");
+
+    /**
+     * Sets the number of scheduler threads.  Only effective before the
+     * first task is scheduled.
+     */
+    public static void setPoolSize(int size) {
+        poolSize = Math.max(1, size);
+    }
+
+    /**
+     * Returns the shared executor, creating it on first use.
+     */
+    public static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) executor = newExecutor(poolSize, "hatch-sched-");
+        return executor;
+    }
+
+    /**
+     * Returns the executor for disk I/O tasks, creating it on first use.
+     */
+    private static synchronized ScheduledExecutorService getIoExecutor() {
+        if (ioExecutor == null) ioExecutor = newExecutor(1, "hatch-io-");
+        return ioExecutor;
+    }
+
+    private static ScheduledExecutorService newExecutor(
+        int size, final String name) {
+
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newScheduledThreadPool(size,
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(
+                        task, name + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+    }
+
+    /**
+     * Runs a task once after a delay.
+     *
+     * @param task The task
+     * @param delay Delay in milliseconds
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return getExecutor().schedule(
+            guard(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task repeatedly with a fixed delay between runs.
+     *
+     * @param task The task
+     * @param interval Milliseconds from the end of one run to the
+     * start of the next.
+     */
+    public static ScheduledFuture<?> repeat(Runnable task, long interval) {
+        return getExecutor().scheduleWithFixedDelay(
+            guard(task), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a disk I/O task once after a delay, on the I/O thread.
+     *
+     * @param task The task
+     * @param delay Delay in milliseconds
+     */
+    public static ScheduledFuture<?> scheduleIO(Runnable task, long delay) {
+        return getIoExecutor().schedule(
+            guard(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a disk I/O task repeatedly, on the I/O thread.
+     *
+     * @param task The task
+     * @param interval Milliseconds from the end of one run to the
+     * start of the next.
+     */
+    public static ScheduledFuture<?> repeatIO(Runnable task, long interval) {
+        return getIoExecutor().scheduleWithFixedDelay(
+            guard(task), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wraps a task so that an exception is logged instead of silently
+     * cancelling future runs.
+     */
+    private static Runnable guard(final Runnable task) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.warn("Scheduled task failed", e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,193 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Builds the Jetty server thread pool from hatch.xml.
+ *
+ * "queued" is a QueuedThreadPool with a bounded job queue; when both
+ * threads and queue are exhausted, new work is rejected instead of
+ * piling up without limit.
+ *
+ * "virtual" runs each job on its own virtual thread (JDK 21+), so
+ * threads blocked in file or CUPS calls cost next to nothing.  On
+ * older JDKs it falls back to "queued".
+ */
+public class HatchThreadPool {
+
+    /** Executor based pool which tracks its own activity */
+    static class VirtualThreadPool extends ExecutorThreadPool {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicLong jobs = new AtomicLong();
+
+        VirtualThreadPool(ExecutorService executor) {
+            super(executor);
+        }
+
+        private Runnable track(final Runnable job) {
+            return new Runnable() {
+                public void run() {
+                    int now = active.incrementAndGet();
+                    int max;
+                    while (now > (max = peak.get())
+                        && !peak.compareAndSet(max, now)) { }
+                    try {
+                        job.run();
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void execute(Runnable job) {
+            jobs.incrementAndGet();
+            super.execute(track(job));
+        }
+
+        @Override
+        public boolean dispatch(Runnable job) {
+            jobs.incrementAndGet();
+            return super.dispatch(track(job));
+        }
+
+        @Override
+        public int getThreads() {
+            return active.get();
+        }
+
+        @Override
+        public int getIdleThreads() {
+            return 0;
+        }
+
+        @Override
+        public boolean isLowOnThreads() {
+            return false;
+        }
+    }
+
+    /** The pool handed to the server, for statistics */
+    private static ThreadPool pool;
+
+    private static final Logger logger = Log.getLogger("HatchThreadPool");
+
+    /**
+     * Creates the server thread pool.
+     *
+     * @param type "queued" or "virtual"
+     * @param minThreads Threads kept alive when idle ("queued" only)
+     * @param maxThreads Most threads ("queued" only)
+     * @param queueSize Most jobs waiting for a thread ("queued" only)
+     * @param idleTimeout Milliseconds before an idle thread above
+     * minThreads exits ("queued" only)
+     */
+    public static ThreadPool create(String type,
+        int minThreads, int maxThreads, int queueSize, int idleTimeout) {
+
+        if ("virtual".equals(type)) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                logger.info("Using virtual threads for the server");
+                pool = new VirtualThreadPool(executor);
+                return pool;
+            }
+            logger.warn("Virtual threads require JDK 21 or later; " +
+                "using a queued thread pool");
+
+        } else if (!"queued".equals(type)) {
+            logger.warn("Unknown thread pool type " + type
+                + "; using a queued thread pool");
+        }
+
+        // jobs wait in a bounded queue once every thread is busy
+        QueuedThreadPool qtp = new QueuedThreadPool(
+            maxThreads, minThreads, idleTimeout,
+            new BlockingArrayQueue<Runnable>(
+                Math.min(queueSize, 64), 64, queueSize));
+        qtp.setName("hatch-qtp");
+        logger.info("Server thread pool: " + minThreads + "-" + maxThreads
+            + " threads, queue " + queueSize);
+
+        pool = qtp;
+        return pool;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), if this JDK has it.
+     * Looked up reflectively, since we still build for Java 8.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns server thread pool statistics, or null if the pool was
+     * not created by this class.
+     */
+    public static Map<String,Object> getStats() {
+        ThreadPool current = pool;
+        if (current == null) return null;
+
+        Map<String,Object> stats = new HashMap<String,Object>();
+
+        if (current instanceof QueuedThreadPool) {
+            QueuedThreadPool qtp = (QueuedThreadPool) current;
+            int threads = qtp.getThreads();
+            int idle = qtp.getIdleThreads();
+            stats.put("type", "queued");
+            stats.put("threads", threads);
+            stats.put("idleThreads", idle);
+            stats.put("busyThreads", threads - idle);
+            stats.put("minThreads", qtp.getMinThreads());
+            stats.put("maxThreads", qtp.getMaxThreads());
+            stats.put("utilization",
+                (double) (threads - idle) / qtp.getMaxThreads());
+            stats.put("queueDepth", qtp.getQueueSize());
+            stats.put("lowOnThreads", qtp.isLowOnThreads());
+
+        } else {
+            VirtualThreadPool vtp = (VirtualThreadPool) current;
+            stats.put("type", "virtual");
+            stats.put("activeThreads", vtp.active.get());
+            stats.put("peakThreads", vtp.peak.get());
+            stats.put("jobs", vtp.jobs.get());
+            stats.put("queueDepth", 0);
+        }
+
+        return stats;
+    }
+}
@@ -18,10 +18,15 @@ package org.evergreen_ils.hatch;
 import java.io.IOException;
 import java.io.File;
 import java.io.BufferedReader;
+import java.nio.ByteBuffer;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketFrame;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 import javax.servlet.ServletConfig;
@@ -37,9 +42,21 @@ import java.util.Map;
 @WebSocket
 public class HatchWebSocketHandler {
 
+    /**
+     * WebSocket subprotocol which selects CBOR-encoded binary messages.
+     * Connections without it speak JSON text messages.
+     */
+    public static final String CBOR_PROTOCOL = "hatch-cbor";
+
     /** A single connection to a WebSockets client */
     private Session session;
 
+    /** Our entry in the session registry */
+    private SessionRegistry.Entry entry;
+
+    /** True if replies are sent as CBOR binary messages */
+    private final boolean binary;
+
     /** Current origin domain */
     private String origin;
 
@@ -52,9 +69,35 @@ public class HatchWebSocketHandler {
     /** Root directory for all FileIO operations */
     private static String profileDirectory;
 
+    /** Threads which run storage requests; 0 runs them inline */
+    private static int storageWorkers = 8;
+
+    /** Most storage requests one connection may have queued */
+    private static int maxQueuedPerSession = 256;
+
+    /** Longest a request waits for room in a full storage queue */
+    private static final long QUEUE_WAIT_MILLIS = 10000;
+
+    /** Storage requests, shared fairly between connections */
+    private static FairQueue<Runnable> storageQueue;
+
     /** Our logger instance */
     private static final Logger logger = Log.getLogger("WebSocketHandler");
 
+    /**
+     * Creates a handler which speaks JSON text messages.
+     */
+    public HatchWebSocketHandler() {
+        this(false);
+    }
+
+    /**
+     * @param binary If true, replies are CBOR-encoded binary messages.
+     */
+    public HatchWebSocketHandler(boolean binary) {
+        this.binary = binary;
+    }
+
     /**
      * Apply trusted domains.
      *
@@ -92,6 +135,42 @@ public class HatchWebSocketHandler {
         profileDirectory = directory;
     }
 
+    /**
+     * Returns the profile directory, once configured.
+     */
+    static String getProfileDirectory() {
+        return profileDirectory;
+    }
+
+
+    /**
+     * Sets the number of storage worker threads.  Requests from all
+     * connections are queued for the workers and served in weighted
+     * round robin order (see RateLimiter.setOriginWeight()); each
+     * connection's requests still run one at a time, in order.
+     *
+     * @param workers Thread count; 0 runs requests on the Jetty thread
+     * which received them, as before.
+     */
+    public static void setStorageWorkers(int workers) {
+        storageWorkers = workers;
+    }
+
+    /**
+     * Sets the most storage requests one connection may have queued.
+     * Further requests wait for room, then are refused with a retry
+     * hint.
+     */
+    public static void setMaxQueuedPerSession(int max) {
+        maxQueuedPerSession = max;
+    }
+
+    /**
+     * Returns the origin of our connection.
+     */
+    public String getOrigin() {
+        return origin;
+    }
 
     /**
      * Runs the initial, global configuration for this handler.
@@ -150,7 +229,25 @@ public class HatchWebSocketHandler {
     @OnWebSocketConnect
     public void onConnect(Session session) {
         this.session = session;
-        if (!verifyOriginDomain()) session.close();
+        if (!verifyOriginDomain()) {
+            session.close();
+            return;
+        }
+
+        entry = SessionRegistry.register(this, session, origin);
+        if (entry == null) {
+            session.close(StatusCode.POLICY_VIOLATION,
+                "Too many connections from " + origin);
+        }
+    }
+
+    /**
+     * WebSocket frame handler.  Pongs answer the registry heartbeat.
+     */
+    @OnWebSocketFrame
+    public void onFrame(Frame frame) {
+        if (frame.getType() == Frame.Type.PONG && entry != null)
+            entry.pong();
     }
 
     /**
@@ -161,9 +258,19 @@ public class HatchWebSocketHandler {
     @OnWebSocketClose
     public void onClose(int statusCode, String reason) {
         logger.info("onClose() statusCode=" + statusCode + ", reason=" + reason);
+        KeyWatcher.unwatchAll(this);
+        SessionRegistry.unregister(this);
         this.session = null;
     }
 
+    /**
+     * Returns true if our client is still connected.
+     */
+    public boolean isOpen() {
+        Session sess = session;
+        return sess != null && sess.isOpen();
+    }
+
     /**
      * Send a message to our connected client.
      *
@@ -181,55 +288,160 @@ public class HatchWebSocketHandler {
      * @param msgid The message identifier
      * @param success If false, the response will be packaged as an error 
      * message.
+     *
+     * Replies may come from the Jetty, FX or print spool threads, so
+     * sends are serialized per connection.
      */
     protected void reply(Object json, Long msgid, boolean success) {
+        // outside our lock: may reply to other connections
+        PrintDedup.replied(this, msgid, json, success);
+        send(json, msgid, success);
+    }
 
-        Map<String, Object> response = new HashMap<String, Object>();
-        response.put("msgid", msgid);
-
-        if (success) {
-            response.put("content", json);
-        } else {
-            response.put("error", json);
+    private synchronized void send(Object json, Long msgid, boolean success) {
+        Session session = this.session;
+        if (session == null) {
+            logger.info("Connection closed; dropping reply to " + msgid);
+            return;
         }
 
-        String jsonString = JSON.toString(response);
-        logger.info("replying with : " + jsonString);
-
         try {
+            if (binary) {
+                byte[] bytes = Cbor.encode(envelope(json, msgid, success));
+                logger.info("replying with " + bytes.length + " CBOR bytes");
+                if (!success) logger.warn(String.valueOf(json));
+                session.getRemote().sendBytes(ByteBuffer.wrap(bytes));
+                if (entry != null) entry.sent(msgid, bytes.length);
+                return;
+            }
+
+            String jsonString = JsonCodec.encodeReply(msgid, json, success);
+            logger.info("replying with " + jsonString.length() + " chars");
+            if (logger.isDebugEnabled()) logger.debug(jsonString);
+
             if (!success) logger.warn(jsonString);
             session.getRemote().sendString(jsonString);
+            if (entry != null) entry.sent(msgid, Quotas.utf8Length(jsonString));
         } catch (IOException e) {
             logger.warn(e);
         }
     }
 
     /**
-     * WebSocket onMessage handler.
+     * Pushes an unsolicited message, such as a watch notification,
+     * without waiting for it to be written, so a slow client cannot
+     * hold up the shared thread which pushes to every client.
+     *
+     * @param json A JSON-encodable object to send to the caller.
+     * @param msgid The message identifier
+     * @param callback Told once the message is written, or has failed
+     */
+    void push(Object json, Long msgid, WriteCallback callback) {
+        Session session = this.session;
+        if (session == null) {
+            callback.writeFailed(new IOException("Connection closed"));
+            return;
+        }
+
+        try {
+            if (binary) {
+                byte[] bytes = Cbor.encode(envelope(json, msgid, true));
+                session.getRemote().sendBytes(ByteBuffer.wrap(bytes), callback);
+                if (entry != null) entry.sent(msgid, bytes.length);
+                return;
+            }
+
+            String jsonString = JsonCodec.encodeReply(msgid, json, true);
+            if (logger.isDebugEnabled()) logger.debug(jsonString);
+            session.getRemote().sendString(jsonString, callback);
+            if (entry != null) entry.sent(msgid, Quotas.utf8Length(jsonString));
+        } catch (RuntimeException e) {
+            // the connection is closing
+            callback.writeFailed(e);
+        }
+    }
+
+    /** Wraps a reply for CBOR encoding */
+    private static Map<String,Object> envelope(
+        Object json, Long msgid, boolean success) {
+
+        // stored JSON values must be decoded to be re-encoded
+        if (json instanceof JsonCodec.Raw) json = JSON.parse(json.toString());
+
+        Map<String,Object> response = new HashMap<String,Object>();
+        response.put("msgid", msgid);
+        response.put(success ? "content" : "error", json);
+        return response;
+    }
+
+    /**
+     * WebSocket onMessage handler for text messages.
      *
      * Processes the incoming message and passes the request off to the 
      * necessary handler.  Messages must be encoded as JSON strings.
      */
     @OnWebSocketMessage
-    @SuppressWarnings("unchecked") // direct casting JSON-parsed objects
     public void onMessage(String message) {
         if (session == null || !session.isOpen()) return;
-        logger.info("onMessage() " + message);
+        logger.info("onMessage() " + message.length() + " chars");
+        if (logger.isDebugEnabled()) logger.debug(message);
+        if (entry != null) entry.received(Quotas.utf8Length(message));
 
         HashMap<String,Object> params = null;
 
         try {
-            params = (HashMap<String,Object>) JSON.parse(message);
-        } catch (ClassCastException e) {
-            reply("Invalid WebSockets JSON message " + message, 
-                new Long(-1), false);
+            params = JsonCodec.decodeRequest(message);
+        } catch (IllegalArgumentException e) {
+            reply("Invalid WebSockets JSON message: " + e.getMessage(),
+                Long.valueOf(-1), false);
+            return;
         }
 
-        Long msgid = (Long) params.get("msgid");
-        String action = (String) params.get("action");
-        String key = (String) params.get("key");
-        String value = (String) params.get("value");
-        String mime = (String) params.get("mime");
+        handleMessage(params);
+    }
+
+    /**
+     * WebSocket onMessage handler for binary messages.
+     *
+     * Binary messages are CBOR-encoded maps with the same structure as
+     * JSON text messages.
+     */
+    @OnWebSocketMessage
+    @SuppressWarnings("unchecked") // direct casting CBOR-decoded objects
+    public void onMessage(byte[] buf, int offset, int length) {
+        if (session == null || !session.isOpen()) return;
+        logger.info("onMessage() " + length + " CBOR bytes");
+        if (entry != null) entry.received(length);
+
+        HashMap<String,Object> params = null;
+
+        try {
+            params = (HashMap<String,Object>) Cbor.decode(buf, offset, length);
+        } catch (ClassCastException | IllegalArgumentException e) {
+            reply("Invalid WebSockets CBOR message: " + e.getMessage(),
+                Long.valueOf(-1), false);
+            return;
+        }
+
+        handleMessage(params);
+    }
+
+    /**
+     * Runs the action requested by a decoded message.
+     *
+     * @param params The decoded request
+     */
+    protected void handleMessage(HashMap<String,Object> params) {
+        Long msgid = null;
+        String action = null;
+
+        try {
+            msgid = (Long) params.get("msgid");
+            action = (String) params.get("action");
+        } catch (ClassCastException e) {
+            reply("Invalid msgid or action", Long.valueOf(-1), false);
+            return;
+        }
 
         logger.info("Received request for action " + action);
 
@@ -245,9 +457,149 @@ public class HatchWebSocketHandler {
             return;
         }
 
+        if (entry != null) {
+            long wait = RateLimiter.acquire(entry);
+            if (wait > 0) {
+                replyRetry("Rate limit exceeded", msgid, wait);
+                return;
+            }
+            entry.requested(msgid);
+        }
+
+        if (action.equals("print")) {
+            // pass ourselves off to the print handler so it can reply
+            // for us after printing has completed.
+            params.put("socket", this);
+            if (PrintDedup.coalesce(this, msgid, params)) return;
+            PageCache.fingerprint(origin, params);
+            if (PrintJournal.accept(this, msgid, params, profileDirectory))
+                return;
+            PrintSpool.spool(params, profileDirectory);
+            if (!Hatch.enqueueMessage(params)) {
+                PrintSpool.release(params);
+                PrintDedup.cancel(this, msgid);
+                replyRetry("Too many print jobs queued", msgid, 1000);
+            }
+
+            // we don't want to return a response here, since the 
+            // FX thread will handle that for us.
+            return;
+        }
+
+        final Long id = msgid;
+        final String act = action;
+        final HashMap<String,Object> args = params;
+        Runnable task = new Runnable() {
+            public void run() {
+                // every request gets a reply, even when it fails
+                try {
+                    runAction(id, act, args);
+                } catch (RuntimeException e) {
+                    logger.warn("Storage request failed", e);
+                    reply(e.toString(), id, false);
+                }
+            }
+        };
+
+        if (storageWorkers == 0) {
+            task.run();
+            return;
+        }
+
+        // a full queue holds up this connection's reader (as running
+        // the request inline would) before the request is refused
+        if (!storageQueue().offer(
+                this, RateLimiter.weightFor(origin), task, 1, QUEUE_WAIT_MILLIS))
+            replyRetry("Too many requests queued", msgid, 1000);
+    }
+
+    /**
+     * Sends an error reply which tells the client when to try again.
+     *
+     * @param message Error message
+     * @param msgid The message identifier
+     * @param retryAfter Suggested delay in milliseconds
+     */
+    protected void replyRetry(String message, Long msgid, long retryAfter) {
+        Map<String,Object> error = new HashMap<String,Object>();
+        error.put("message", message);
+        error.put("retryAfter", retryAfter);
+        reply(error, msgid, false);
+    }
+
+    /**
+     * Returns the storage request queue, starting its workers on
+     * first use.
+     */
+    private static synchronized FairQueue<Runnable> storageQueue() {
+        if (storageQueue != null) return storageQueue;
+
+        storageQueue = new FairQueue<Runnable>("storage", 1, true);
+        storageQueue.setMaxPerFlow(maxQueuedPerSession);
+
+        for (int i = 0; i < storageWorkers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        FairQueue.Item<Runnable> item;
+                        try {
+                            item = storageQueue.take();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        try {
+                            item.getValue().run();
+                        } catch (RuntimeException e) {
+                            logger.warn("Storage request failed", e);
+                        } finally {
+                            storageQueue.done(item);
+                        }
+                    }
+                }
+            }, "hatch-storage-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        return storageQueue;
+    }
+
+    /**
+     * Runs a storage or configuration action and replies with the
+     * result.
+     *
+     * @param msgid The message identifier
+     * @param action The requested action
+     * @param params The decoded request
+     */
+    protected void runAction(
+        Long msgid, String action, HashMap<String,Object> params) {
+
+        for (String field : new String[] {"key", "mime", "name", "prefix"}) {
+            Object fieldValue = params.get(field);
+            if (fieldValue != null && !(fieldValue instanceof String)) {
+                reply(field + " must be a string", msgid, false);
+                return;
+            }
+        }
+
+        String key = (String) params.get("key");
+        String mime = (String) params.get("mime");
+
+        // Values are normally JSON text.  Binary clients may also send
+        // a structured value, which is stored as its JSON encoding.
+        Object rawValue = params.get("value");
+        String value = (rawValue == null || rawValue instanceof String) ?
+            (String) rawValue : JSON.toString(rawValue);
+
+        // optional time to live for set / append, in milliseconds
+        long ttl = 0;
+        if (params.get("ttl") instanceof Number)
+            ttl = Math.max(0, ((Number) params.get("ttl")).longValue());
+
         Object response = null;
         boolean error = false;
-        FileIO io = new FileIO(profileDirectory, origin);
+        Storage io = Storage.open(profileDirectory, origin);
 
         switch (action) {
             case "keys":
@@ -258,16 +610,6 @@ public class HatchWebSocketHandler {
                 response = new PrintManager().getPrintersAsMaps();
                 break;
 
-            case "print":
-                // pass ourselves off to the print handler so it can reply
-                // for us after printing has completed.
-                params.put("socket", this);
-                Hatch.enqueueMessage(params);
-
-                // we don't want to return a response below, since the 
-                // FX thread will handle that for us.
-                return;
-
             case "print-config":
                 try {
                     response = new PrintManager().configurePrinter(params);
@@ -279,10 +621,14 @@ public class HatchWebSocketHandler {
 
             case "get":
                 String val = io.get(key);
-                if (val != null) {
-                    // set() stores bare JSON. We must pass an 
-                    // Object to reply so that it may be embedded into
-                    // a larger JSON response object, hence the JSON.parse().
+                if (val == null) break;
+
+                // set() stores bare JSON, which is passed through to the
+                // client verbatim.  Values which aren't strictly valid
+                // JSON get the lenient parser's interpretation instead.
+                if (JsonCodec.isValid(val)) {
+                    response = new JsonCodec.Raw(val);
+                } else {
                     try {
                         response = JSON.parse(val);
                     } catch(java.lang.IllegalStateException e) {
@@ -290,6 +636,68 @@ public class HatchWebSocketHandler {
                         response = "Error JSON-parsing stored value " + val;
                     }
                 }
+
+                // clients which patch conditionally need the version
+                if (!error && Boolean.TRUE.equals(params.get("version"))) {
+                    Map<String,Object> versioned = new HashMap<String,Object>();
+                    versioned.put("value", response instanceof JsonCodec.Raw ?
+                        JSON.parse(val) : response);
+                    versioned.put("version", Storage.version(val));
+                    response = versioned;
+                }
+                break;
+
+            case "patch":
+                Object patch = params.get("patch");
+                if (key == null || patch == null) {
+                    response = "patch requires a key and a patch";
+                    error = true;
+                    break;
+                }
+                error = true;
+                try {
+                    // like values, patches may arrive as JSON text
+                    if (patch instanceof String) patch = JSON.parse((String) patch);
+                } catch (IllegalStateException e) {
+                    response = "Error JSON-parsing patch";
+                    break;
+                }
+                try {
+                    Object expected = params.get("version");
+                    String version = io.patch(key, patch,
+                        expected == null ? null : expected.toString());
+                    if (version == null) {
+                        response = "Unable to store patched value";
+                    } else {
+                        Map<String,Object> result = new HashMap<String,Object>();
+                        result.put("version", version);
+                        response = result;
+                        error = false;
+                    }
+                } catch (Quotas.QuotaExceeded e) {
+                    response = e.toMap();
+                } catch (Storage.VersionConflict e) {
+                    Map<String,Object> conflict = new HashMap<String,Object>();
+                    conflict.put("message", e.getMessage());
+                    conflict.put("version", e.getVersion());
+                    response = conflict;
+                } catch (IllegalArgumentException e) {
+                    response = e.getMessage();
+                } catch (IllegalStateException e) {
+                    response = "Error JSON-parsing stored value for " + key;
+                }
+                break;
+
+            case "query":
+                try {
+                    response = query(io, key, params);
+                } catch (IllegalArgumentException e) {
+                    response = e.getMessage();
+                    error = true;
+                } catch (IllegalStateException e) {
+                    response = "Error JSON-parsing stored value for " + key;
+                    error = true;
+                }
                 break;
 
             case "remove":
@@ -297,11 +705,156 @@ public class HatchWebSocketHandler {
                 break;
 
             case "set" :
-                response = io.set(key, value);
+            case "append" :
+                try {
+                    response = action.equals("set") ?
+                        io.set(key, value, ttl) : io.append(key, value, ttl);
+                } catch (Quotas.QuotaExceeded e) {
+                    response = e.toMap();
+                    error = true;
+                }
                 break;
 
-            case "append" :
-                response = io.append(key, value);
+            case "usage":
+                response = io.usage().toMap();
+                break;
+
+            case "read-range":
+                // part of a (typically appended) value: a byte range,
+                // or the last "tail" records
+                Object offset = params.get("offset");
+                Object length = params.get("length");
+                Object tail = params.get("tail");
+                if (key == null || (tail == null && length == null)
+                    || (offset != null && !(offset instanceof Number))
+                    || (length != null && !(length instanceof Number))
+                    || (tail != null && !(tail instanceof Number))) {
+                    response = "read-range requires a key and a numeric "
+                        + "length (with optional offset) or tail";
+                    error = true;
+                    break;
+                }
+                try {
+                    response = io.readRange(key,
+                        offset == null ? 0 : Math.max(0, ((Number) offset).longValue()),
+                        length == null ? 0 : ((Number) length).intValue(),
+                        tail == null ? 0 : ((Number) tail).intValue());
+                } catch (IOException e) {
+                    response = "Error reading " + key + ": " + e.getMessage();
+                    error = true;
+                }
+                break;
+
+            case "changes-since":
+                // keys changed or removed after the client's last
+                // seen sequence number, for resync after a reconnect
+                Object since = params.get("since");
+                Object limit = params.get("limit");
+                if ((since != null && !(since instanceof Number))
+                    || (limit != null && !(limit instanceof Number))) {
+                    response = "changes-since requires a numeric since "
+                        + "(and optional limit)";
+                    error = true;
+                    break;
+                }
+                response = io.changesSince(
+                    since == null ? 0 : ((Number) since).longValue(),
+                    limit == null ? 1000 : Math.max(1, ((Number) limit).intValue()));
+                break;
+
+            case "snapshot":
+                // archives every key, as of now, in this origin's
+                // snapshots directory; no name lists the archives
+                String snapName = (String) params.get("name");
+                if (snapName == null) {
+                    response = io.snapshots();
+                    break;
+                }
+                try {
+                    response = io.snapshot(snapName);
+                } catch (IOException e) {
+                    response = "Error writing snapshot: " + e.getMessage();
+                    error = true;
+                }
+                break;
+
+            case "restore":
+                String restoreName = (String) params.get("name");
+                if (restoreName == null) {
+                    response = "restore requires a snapshot name";
+                    error = true;
+                    break;
+                }
+                try {
+                    response = io.restore(restoreName,
+                        Boolean.TRUE.equals(params.get("merge")));
+                } catch (Quotas.QuotaExceeded e) {
+                    response = e.toMap();
+                    error = true;
+                } catch (IOException e) {
+                    response = "Error restoring snapshot: " + e.getMessage();
+                    error = true;
+                }
+                break;
+
+            case "flush":
+                // writes pending write-behind values to disk
+                response = key != null ? io.flush(key) : io.flushAll();
+                break;
+
+            case "stats":
+                Map<String,Object> stats = new HashMap<String,Object>();
+                stats.put("sessions", SessionRegistry.getStats(origin));
+                stats.put("deflate", DeflateExtension.getStats());
+                stats.put("rateLimit", RateLimiter.getStats());
+                stats.put("storageQueue", storageQueue().getStats());
+                stats.put("printQueue", Hatch.getQueueStats());
+                stats.put("printSpool", PrintSpool.getStats());
+                stats.put("printDedup", PrintDedup.getStats());
+                stats.put("printJournal", PrintJournal.getStats());
+                stats.put("pageCache", PageCache.getStats());
+                stats.put("threadPool", HatchThreadPool.getStats());
+                stats.put("docCache", DocCache.getStats());
+                stats.put("expiry", KeyExpiry.getStats());
+                stats.put("writeBehind", WriteBehind.getStats());
+                stats.put("blobs", BlobStore.getStats());
+                stats.put("coordinator", Coordinator.getStats());
+                response = stats;
+                break;
+
+            case "watch":
+                // replies to this msgid continue as changes arrive
+                String watchPrefix = (String) params.get("prefix");
+                if (key == null && watchPrefix == null) {
+                    response = "watch requires a key or prefix";
+                    error = true;
+                    break;
+                }
+                try {
+                    KeyWatcher.watch(this, profileDirectory,
+                        FileIO.cleanFileName(origin),
+                        key != null ? key : watchPrefix, key == null, msgid);
+                    response = true;
+                } catch (IllegalArgumentException e) {
+                    response = e.getMessage();
+                    error = true;
+                }
+                break;
+
+            case "unwatch":
+                Object watchId = params.get("watch");
+                if (watchId instanceof Number) {
+                    response = KeyWatcher.unwatch(
+                        this, ((Number) watchId).longValue());
+                } else if (key != null) {
+                    response = KeyWatcher.unwatch(this, key, false);
+                } else if (params.get("prefix") != null) {
+                    response = KeyWatcher.unwatch(
+                        this, (String) params.get("prefix"), true);
+                } else {
+                    response = "unwatch requires a watch, key or prefix";
+                    error = true;
+                }
                 break;
 
             default:
@@ -311,4 +864,66 @@ public class HatchWebSocketHandler {
 
         reply(response, msgid, !error);
     }
+
+    /**
+     * Runs a query against one stored value ("key") or every value
+     * under a key prefix ("prefix"), returning only the requested
+     * parts instead of whole values.
+     *
+     * "path" selects one part of each value (see JsonQuery); "fields"
+     * instead selects several, returned as an object keyed by path.
+     * With a prefix, "where" ({path : value, ...}) keeps only values
+     * which match, "limit" caps the number of results, and the
+     * response maps each key to its result.  Values which are not
+     * valid JSON are skipped in prefix queries.
+     *
+     * @throws IllegalArgumentException on a malformed query
+     */
+    protected Object query(
+        Storage io, String key, HashMap<String,Object> params) {
+
+        String prefix = (String) params.get("prefix");
+        if (key == null && prefix == null)
+            throw new IllegalArgumentException("query requires a key or prefix");
+
+        Object path = params.get("path");
+        Object fields = params.get("fields");
+        if (fields != null && !(fields instanceof Object[]))
+            throw new IllegalArgumentException("fields must be an array");
+        Object where = params.get("where");
+        if (where != null && !(where instanceof Map))
+            throw new IllegalArgumentException("where must be an object");
+
+        JsonQuery select = new JsonQuery(path == null ? null : path.toString());
+
+        if (key != null) {
+            Object doc = io.getParsed(key);
+            if (doc == null) return null;
+            if (where != null && !JsonQuery.matches(doc, (Map<?,?>) where))
+                return null;
+            return fields != null ?
+                JsonQuery.project(doc, (Object[]) fields) : select.select(doc);
+        }
+
+        int limit = Integer.MAX_VALUE;
+        if (params.get("limit") instanceof Number)
+            limit = ((Number) params.get("limit")).intValue();
+
+        Map<String,Object> results = new HashMap<String,Object>();
+        for (String k : io.keys(prefix)) {
+            if (results.size() >= limit) break;
+            Object doc;
+            try {
+                doc = io.getParsed(k);
+            } catch (IllegalStateException e) {
+                continue;
+            }
+            if (doc == null) continue;
+            if (where != null && !JsonQuery.matches(doc, (Map<?,?>) where))
+                continue;
+            results.put(k, fields != null ?
+                JsonQuery.project(doc, (Object[]) fields) : select.select(doc));
+        }
+        return results;
+    }
 }
@@ -18,6 +18,10 @@ package org.evergreen_ils.hatch;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionFactory;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
@@ -26,9 +30,47 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
  */
 public class HatchWebSocketServlet extends WebSocketServlet {
 
+    /** Largest text or binary message accepted from a client, in bytes */
+    private static int maxMessageSize = 16 * 1024 * 1024;
+
+    /**
+     * Sets the maximum size of a single websocket message.  Jetty's own
+     * default (64K) is too small for large print jobs and stored values.
+     *
+     * @param size Size in bytes
+     */
+    public static void setMaxMessageSize(int size) {
+        maxMessageSize = size;
+    }
+
+    /**
+     * Creates a handler per connection.  Clients which offer the
+     * CBOR subprotocol get a binary handler; all others speak JSON.
+     */
     @Override
     public void configure(WebSocketServletFactory factory) {
+        factory.getPolicy().setMaxTextMessageSize(maxMessageSize);
+        factory.getPolicy().setMaxBinaryMessageSize(maxMessageSize);
+        // swap Jetty's permessage-deflate for our configurable one
+        ExtensionFactory extensions = factory.getExtensionFactory();
+        extensions.unregister("permessage-deflate");
+        if (DeflateExtension.isEnabled())
+            extensions.register("permessage-deflate", DeflateExtension.class);
+
         factory.register(HatchWebSocketHandler.class);
+        factory.setCreator(new WebSocketCreator() {
+            @Override
+            public Object createWebSocket(
+                ServletUpgradeRequest req, ServletUpgradeResponse resp) {
+
+                if (req.hasSubProtocol(HatchWebSocketHandler.CBOR_PROTOCOL)) {
+                    resp.setAcceptedSubProtocol(
+                        HatchWebSocketHandler.CBOR_PROTOCOL);
+                    return new HatchWebSocketHandler(true);
+                }
+                return new HatchWebSocketHandler(false);
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,409 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import org.eclipse.jetty.util.ajax.JSON;
+
+import java.util.HashMap;
+
+/**
+ * Streaming JSON codec for the text message protocol.
+ *
+ * Requests are scanned in a single pass.  Scalar members (msgid, action,
+ * key, mime, value, ...) are decoded directly from the message text;
+ * only nested objects and arrays, such as print "config", are handed to
+ * the generic JSON parser.
+ *
+ * Replies are written straight into a StringBuilder.  Stored values,
+ * which are already JSON, are wrapped in a Raw and copied into the reply
+ * verbatim instead of being parsed and re-serialized.
+ */
+public class JsonCodec {
+
+    /**
+     * Deepest nesting of objects and arrays accepted, so hostile input
+     * cannot exhaust the stack of the (recursive) parsers.
+     */
+    static final int MAX_DEPTH = 256;
+
+    /**
+     * A value which is already JSON-encoded text.
+     */
+    public static class Raw {
+        final String json;
+
+        public Raw(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+
+    /**
+     * Decodes a request message into a parameter map.
+     *
+     * Numbers are returned as Long (integral) or Double, matching
+     * org.eclipse.jetty.util.ajax.JSON.
+     *
+     * @param message The JSON-encoded request.
+     * @return The request parameters.
+     * @throws IllegalArgumentException if the message is not a JSON object.
+     */
+    public static HashMap<String,Object> decodeRequest(String message) {
+        Scanner scan = new Scanner(message);
+        HashMap<String,Object> params = new HashMap<String,Object>();
+
+        scan.skipWhitespace();
+        scan.expect('{');
+        scan.skipWhitespace();
+
+        if (scan.peek() == '}') {
+            scan.pos++;
+        } else {
+            while (true) {
+                scan.skipWhitespace();
+                String name = scan.readString();
+                scan.skipWhitespace();
+                scan.expect(':');
+                scan.skipWhitespace();
+                params.put(name, scan.readMember());
+                scan.skipWhitespace();
+                char c = scan.next();
+                if (c == '}') break;
+                if (c != ',') throw scan.error("Expected , or }");
+            }
+        }
+
+        scan.skipWhitespace();
+        if (!scan.atEnd()) throw scan.error("Trailing data");
+        return params;
+    }
+
+    /**
+     * Returns true if the text is a single, well-formed JSON value.
+     * Performs no allocation beyond the scanner itself.
+     */
+    public static boolean isValid(String json) {
+        if (json == null) return false;
+        try {
+            Scanner scan = new Scanner(json);
+            scan.skipWhitespace();
+            scan.skipValue();
+            scan.skipWhitespace();
+            return scan.atEnd();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Encodes a reply envelope.
+     *
+     * @param msgid The request message ID
+     * @param value The reply content; a Raw is copied in as-is, anything
+     * else is encoded with org.eclipse.jetty.util.ajax.JSON.
+     * @param success If false, the value is sent as the "error".
+     * @return The JSON-encoded reply
+     */
+    public static String encodeReply(Long msgid, Object value, boolean success) {
+        int size = value instanceof Raw ? ((Raw) value).json.length() : 64;
+        StringBuilder buf = new StringBuilder(size + 48);
+        buf.append("{\"msgid\":").append(msgid);
+        buf.append(success ? ",\"content\":" : ",\"error\":");
+        appendValue(buf, value);
+        buf.append('}');
+        return buf.toString();
+    }
+
+    /**
+     * Appends a JSON-encoded value to the buffer.
+     */
+    public static void appendValue(StringBuilder buf, Object value) {
+        if (value instanceof Raw) {
+            buf.append(((Raw) value).json);
+        } else if (value instanceof String) {
+            appendString(buf, (String) value);
+        } else if (value == null || value instanceof Boolean
+                || value instanceof Long || value instanceof Integer) {
+            buf.append(value);
+        } else {
+            JSON.getDefault().append((Appendable) buf, value);
+        }
+    }
+
+    /**
+     * Appends a quoted, escaped JSON string.
+     */
+    public static void appendString(StringBuilder buf, String str) {
+        buf.append('"');
+        int start = 0;
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            String esc = null;
+            switch (c) {
+                case '"':  esc = "\\\""; break;
+                case '\\': esc = "\\\\"; break;
+                case '\n': esc = "\\n"; break;
+                case '\r': esc = "\\r"; break;
+                case '\t': esc = "\\t"; break;
+                case '\b': esc = "\\b"; break;
+                case '\f': esc = "\\f"; break;
+                default:
+                    if (c < 0x20) esc = String.format("\\u%04x", (int) c);
+            }
+            if (esc != null) {
+                buf.append(str, start, i).append(esc);
+                start = i + 1;
+            }
+        }
+        buf.append(str, start, len).append('"');
+    }
+
+    /**
+     * Single pass cursor over JSON text.
+     */
+    private static class Scanner {
+        final String text;
+        final int end;
+        int pos = 0;
+
+        Scanner(String text) {
+            this.text = text;
+            this.end = text.length();
+        }
+
+        IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException(msg + " at offset " + pos);
+        }
+
+        boolean atEnd() {
+            return pos >= end;
+        }
+
+        char peek() {
+            if (pos >= end) throw error("Unexpected end of JSON");
+            return text.charAt(pos);
+        }
+
+        char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        void expect(char c) {
+            if (next() != c) throw error("Expected " + c);
+        }
+
+        void skipWhitespace() {
+            while (pos < end) {
+                char c = text.charAt(pos);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+                pos++;
+            }
+        }
+
+        /**
+         * Reads one member value.  Scalars are decoded in place; objects
+         * and arrays are sliced out and parsed generically.
+         */
+        Object readMember() {
+            char c = peek();
+            switch (c) {
+                case '"':
+                    return readString();
+                case '{':
+                case '[':
+                    int start = pos;
+                    skipValue();
+                    return JSON.parse(text.substring(start, pos));
+                case 't':
+                    skipLiteral("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    skipLiteral("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    skipLiteral("null");
+                    return null;
+                default:
+                    return readNumber();
+            }
+        }
+
+        void skipLiteral(String literal) {
+            if (!text.startsWith(literal, pos)) throw error("Invalid literal");
+            pos += literal.length();
+        }
+
+        /**
+         * Reads a quoted string.  Strings without escapes are returned
+         * as a substring of the message without further copying; runs
+         * between escapes are otherwise copied in bulk.
+         */
+        String readString() {
+            expect('"');
+            final String text = this.text;
+            int i = pos;
+            int run = pos;
+            char[] buf = null;
+            int len = 0;
+
+            while (i < end) {
+                char c = text.charAt(i++);
+                if (c == '"') {
+                    pos = i;
+                    if (buf == null) return text.substring(run, i - 1);
+                    text.getChars(run, i - 1, buf, len);
+                    return new String(buf, 0, len + (i - 1 - run));
+                }
+                if (c != '\\') continue;
+
+                // unescaped output is never longer than the input
+                if (buf == null) buf = new char[end - run];
+                text.getChars(run, i - 1, buf, len);
+                len += i - 1 - run;
+                if (i >= end) break;
+
+                c = text.charAt(i++);
+                switch (c) {
+                    case 'n': buf[len++] = '\n'; break;
+                    case 'r': buf[len++] = '\r'; break;
+                    case 't': buf[len++] = '\t'; break;
+                    case 'b': buf[len++] = '\b'; break;
+                    case 'f': buf[len++] = '\f'; break;
+                    case 'u':
+                        pos = i;
+                        if (i + 4 > end) throw error("Invalid \\u escape");
+                        try {
+                            buf[len++] = (char) Integer.parseInt(
+                                text.substring(i, i + 4), 16);
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid \\u escape");
+                        }
+                        i += 4;
+                        break;
+                    default: buf[len++] = c; // " \ /
+                }
+                run = i;
+            }
+
+            pos = end;
+            throw error("Unterminated string");
+        }
+
+        Object readNumber() {
+            int start = pos;
+            boolean integral = true;
+            if (pos < end && text.charAt(pos) == '-') pos++;
+            while (pos < end) {
+                char c = text.charAt(pos);
+                if (c >= '0' && c <= '9') {
+                    pos++;
+                } else if (c == '.' || c == 'e' || c == 'E'
+                        || c == '+' || c == '-') {
+                    integral = false;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (start == pos || (pos - start == 1 && text.charAt(start) == '-'))
+                throw error("Invalid JSON value");
+
+            try {
+                if (integral && pos - start < 19)
+                    return Long.parseLong(text.substring(start, pos));
+                return Double.parseDouble(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("Invalid number");
+            }
+        }
+
+        /**
+         * Validates and skips one value without decoding it.
+         */
+        void skipValue() {
+            skipValue(0);
+        }
+
+        /**
+         * @param depth Objects and arrays enclosing the value
+         */
+        private void skipValue(int depth) {
+            char c = peek();
+            if ((c == '{' || c == '[') && depth >= MAX_DEPTH)
+                throw error("JSON nested too deeply");
+            switch (c) {
+                case '"':
+                    pos++;
+                    while (true) {
+                        char s = next();
+                        if (s == '"') return;
+                        if (s == '\\') next();
+                        else if (s < 0x20) throw error("Control character");
+                    }
+                case '{':
+                    pos++;
+                    skipWhitespace();
+                    if (peek() == '}') { pos++; return; }
+                    while (true) {
+                        skipWhitespace();
+                        if (peek() != '"') throw error("Expected member name");
+                        skipValue(depth + 1);
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                        skipValue(depth + 1);
+                        skipWhitespace();
+                        char d = next();
+                        if (d == '}') return;
+                        if (d != ',') throw error("Expected , or }");
+                    }
+                case '[':
+                    pos++;
+                    skipWhitespace();
+                    if (peek() == ']') { pos++; return; }
+                    while (true) {
+                        skipWhitespace();
+                        skipValue(depth + 1);
+                        skipWhitespace();
+                        char d = next();
+                        if (d == ']') return;
+                        if (d != ',') throw error("Expected , or ]");
+                    }
+                case 't': skipLiteral("true"); return;
+                case 'f': skipLiteral("false"); return;
+                case 'n': skipLiteral("null"); return;
+                default:
+                    int start = pos;
+                    if (c == '-') pos++;
+                    while (pos < end) {
+                        char d = text.charAt(pos);
+                        if ((d >= '0' && d <= '9') || d == '.' || d == 'e'
+                            || d == 'E' || d == '+' || d == '-') pos++;
+                        else break;
+                    }
+                    if (pos == start || (pos - start == 1 && c == '-'))
+                        throw error("Invalid JSON value");
+            }
+        }
+    }
+}
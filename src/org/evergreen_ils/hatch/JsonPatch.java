@@ -0,0 +1,284 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies JSON Patch (RFC 6902) and JSON Merge Patch (RFC 7386)
+ * documents to parsed JSON values.
+ *
+ * Values are copied into mutable LinkedHashMap / ArrayList form before
+ * patching, so the input is never modified.  Failures throw
+ * IllegalArgumentException, and leave nothing half applied since the
+ * caller only stores the result on success.
+ */
+public class JsonPatch {
+
+    /**
+     * Applies a patch, choosing the format by its shape: an array of
+     * operations is a JSON Patch, anything else a merge patch.
+     *
+     * @param doc The current value, or null if there is none
+     * @param patch The patch
+     * @return The patched value
+     */
+    public static Object apply(Object doc, Object patch) {
+        if (patch instanceof Object[] || patch instanceof List)
+            return applyOps(doc, patch);
+        return merge(doc, patch);
+    }
+
+    /**
+     * Applies a JSON Merge Patch (RFC 7386).
+     */
+    public static Object merge(Object target, Object patch) {
+        if (!(patch instanceof Map)) return copy(patch);
+
+        Map<String,Object> result = target instanceof Map ?
+            asMap(copy(target)) : new LinkedHashMap<String,Object>();
+
+        for (Map.Entry<?,?> e : ((Map<?,?>) patch).entrySet()) {
+            String name = String.valueOf(e.getKey());
+            if (e.getValue() == null) {
+                result.remove(name);
+            } else {
+                result.put(name, merge(result.get(name), e.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies a list of JSON Patch (RFC 6902) operations.
+     */
+    public static Object applyOps(Object doc, Object ops) {
+        Object root = copy(doc);
+
+        for (Object o : asList(copy(ops))) {
+            if (!(o instanceof Map))
+                throw new IllegalArgumentException("Patch operations must be objects");
+            Map<?,?> op = (Map<?,?>) o;
+            String name = string(op, "op");
+            String path = string(op, "path");
+
+            switch (name) {
+                case "add":
+                    root = add(root, path, required(op, "value"));
+                    break;
+                case "remove":
+                    root = remove(root, path);
+                    break;
+                case "replace":
+                    get(root, path);
+                    root = add(remove(root, path), path, required(op, "value"));
+                    break;
+                case "move":
+                    String from = string(op, "from");
+                    if (path.startsWith(from + "/"))
+                        throw new IllegalArgumentException(
+                            "Cannot move " + from + " into itself");
+                    Object moved = get(root, from);
+                    root = add(remove(root, from), path, moved);
+                    break;
+                case "copy":
+                    root = add(root, path, copy(get(root, string(op, "from"))));
+                    break;
+                case "test":
+                    if (!equal(get(root, path), op.get("value")))
+                        throw new IllegalArgumentException("Test failed at " + path);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown patch op " + name);
+            }
+        }
+        return root;
+    }
+
+    private static String string(Map<?,?> op, String member) {
+        Object value = op.get(member);
+        if (!(value instanceof String))
+            throw new IllegalArgumentException(
+                "Patch operation requires \"" + member + "\"");
+        return (String) value;
+    }
+
+    private static Object required(Map<?,?> op, String member) {
+        if (!op.containsKey(member))
+            throw new IllegalArgumentException(
+                "Patch operation requires \"" + member + "\"");
+        return op.get(member);
+    }
+
+    /** Splits a JSON Pointer (RFC 6901) into unescaped tokens */
+    private static List<String> pointer(String path) {
+        List<String> tokens = new ArrayList<String>();
+        if (path.isEmpty()) return tokens;
+        if (path.charAt(0) != '/')
+            throw new IllegalArgumentException("Invalid path " + path);
+        for (String token : path.substring(1).split("/", -1))
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        return tokens;
+    }
+
+    /** Returns the container holding the last token of the path */
+    private static Object parent(Object root, List<String> tokens, String path) {
+        Object node = root;
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            node = child(node, tokens.get(i), path);
+        }
+        return node;
+    }
+
+    private static Object child(Object node, String token, String path) {
+        if (node instanceof Map) {
+            Map<String,Object> map = asMap(node);
+            if (!map.containsKey(token))
+                throw new IllegalArgumentException("No such path " + path);
+            return map.get(token);
+        }
+        if (node instanceof List) {
+            List<Object> list = asList(node);
+            return list.get(index(token, list.size() - 1, path));
+        }
+        throw new IllegalArgumentException("No such path " + path);
+    }
+
+    private static int index(String token, int max, String path) {
+        int idx;
+        try {
+            idx = Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid array index in " + path);
+        }
+        if (idx < 0 || idx > max || (token.length() > 1 && token.charAt(0) == '0'))
+            throw new IllegalArgumentException("Array index out of range in " + path);
+        return idx;
+    }
+
+    private static Object get(Object root, String path) {
+        Object node = root;
+        for (String token : pointer(path)) node = child(node, token, path);
+        return node;
+    }
+
+    private static Object add(Object root, String path, Object value) {
+        List<String> tokens = pointer(path);
+        value = copy(value);
+        if (tokens.isEmpty()) return value;
+
+        Object parent = parent(root, tokens, path);
+        String last = tokens.get(tokens.size() - 1);
+
+        if (parent instanceof Map) {
+            asMap(parent).put(last, value);
+        } else if (parent instanceof List) {
+            List<Object> list = asList(parent);
+            if (last.equals("-")) {
+                list.add(value);
+            } else {
+                list.add(index(last, list.size(), path), value);
+            }
+        } else {
+            throw new IllegalArgumentException("No such path " + path);
+        }
+        return root;
+    }
+
+    private static Object remove(Object root, String path) {
+        List<String> tokens = pointer(path);
+        if (tokens.isEmpty()) return null;
+
+        Object parent = parent(root, tokens, path);
+        String last = tokens.get(tokens.size() - 1);
+
+        if (parent instanceof Map) {
+            Map<String,Object> map = asMap(parent);
+            if (!map.containsKey(last))
+                throw new IllegalArgumentException("No such path " + path);
+            map.remove(last);
+        } else if (parent instanceof List) {
+            List<Object> list = asList(parent);
+            list.remove(index(last, list.size() - 1, path));
+        } else {
+            throw new IllegalArgumentException("No such path " + path);
+        }
+        return root;
+    }
+
+    /**
+     * Deep copies a parsed value into mutable maps and lists.
+     */
+    static Object copy(Object value) {
+        if (value instanceof Map) {
+            Map<String,Object> map = new LinkedHashMap<String,Object>();
+            for (Map.Entry<?,?> e : ((Map<?,?>) value).entrySet())
+                map.put(String.valueOf(e.getKey()), copy(e.getValue()));
+            return map;
+        }
+        if (value instanceof Object[]) {
+            List<Object> list = new ArrayList<Object>();
+            for (Object item : (Object[]) value) list.add(copy(item));
+            return list;
+        }
+        if (value instanceof Collection) {
+            List<Object> list = new ArrayList<Object>();
+            for (Object item : (Collection<?>) value) list.add(copy(item));
+            return list;
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,Object> asMap(Object value) {
+        return (Map<String,Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asList(Object value) {
+        if (!(value instanceof List))
+            throw new IllegalArgumentException("A JSON Patch must be an array");
+        return (List<Object>) value;
+    }
+
+    /** Structural equality of copied values, numbers compared by value */
+    private static boolean equal(Object a, Object b) {
+        if (a == null || b == null) return a == b;
+        if (a instanceof Number && b instanceof Number)
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        if (a instanceof List && b instanceof List) {
+            List<?> x = (List<?>) a;
+            List<?> y = (List<?>) b;
+            if (x.size() != y.size()) return false;
+            for (int i = 0; i < x.size(); i++)
+                if (!equal(x.get(i), y.get(i))) return false;
+            return true;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?,?> x = (Map<?,?>) a;
+            Map<?,?> y = (Map<?,?>) b;
+            if (!x.keySet().equals(y.keySet())) return false;
+            for (Object k : x.keySet())
+                if (!equal(x.get(k), y.get(k))) return false;
+            return true;
+        }
+        return a.equals(b);
+    }
+}
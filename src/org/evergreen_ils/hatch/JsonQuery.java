@@ -0,0 +1,206 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Path expressions over parsed JSON values (Map / Object[] / scalars,
+ * as produced by org.eclipse.jetty.util.ajax.JSON).
+ *
+ * Syntax: members separated by ".", array elements by [n], and "*" or
+ * [*] for every member or element:
+ *
+ *   eg.print.config            one member
+ *   printers[0].name           an array element
+ *   printers[*].name           every element; results form an array
+ *   settings.*.value           every member
+ *
+ * A path without wildcards selects a single value (or null).  A path
+ * with wildcards selects an array of every match.
+ */
+public class JsonQuery {
+
+    /** Wildcard segment */
+    private static final Object ANY = new Object();
+
+    /** Parsed path segments: String member, Integer index, or ANY */
+    private final List<Object> segments;
+    private final boolean multiple;
+
+    /**
+     * @param path The path expression; "" or "$" selects the whole value.
+     * @throws IllegalArgumentException if the path is malformed.
+     */
+    public JsonQuery(String path) {
+        segments = parse(path);
+        multiple = segments.contains(ANY);
+    }
+
+    private static List<Object> parse(String path) {
+        List<Object> segs = new ArrayList<Object>();
+        if (path == null) return segs;
+        if (path.startsWith("$")) path = path.substring(1);
+
+        int i = 0;
+        int len = path.length();
+        while (i < len) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                i++;
+                continue;
+            }
+            if (c == '[') {
+                int close = path.indexOf(']', i);
+                if (close < 0)
+                    throw new IllegalArgumentException("Unclosed [ in " + path);
+                String index = path.substring(i + 1, close).trim();
+                if (index.equals("*")) {
+                    segs.add(ANY);
+                } else {
+                    try {
+                        segs.add(Integer.valueOf(index));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(
+                            "Invalid index [" + index + "] in " + path);
+                    }
+                }
+                i = close + 1;
+                continue;
+            }
+            int end = i;
+            while (end < len && path.charAt(end) != '.'
+                && path.charAt(end) != '[') end++;
+            String name = path.substring(i, end);
+            segs.add(name.equals("*") ? ANY : name);
+            i = end;
+        }
+        return segs;
+    }
+
+    /**
+     * Applies the path to a value.
+     *
+     * @return The selected value, or for wildcard paths an array of
+     * all selected values.
+     */
+    public Object select(Object value) {
+        if (!multiple) return selectOne(value);
+        List<Object> out = new ArrayList<Object>();
+        selectAll(value, 0, out);
+        return out.toArray();
+    }
+
+    private Object selectOne(Object value) {
+        for (Object seg : segments) {
+            value = step(value, seg);
+            if (value == null) return null;
+        }
+        return value;
+    }
+
+    private void selectAll(Object value, int pos, List<Object> out) {
+        if (value == null) return;
+        if (pos == segments.size()) {
+            out.add(value);
+            return;
+        }
+
+        Object seg = segments.get(pos);
+        if (seg != ANY) {
+            selectAll(step(value, seg), pos + 1, out);
+        } else if (value instanceof Map) {
+            for (Object child : ((Map<?,?>) value).values())
+                selectAll(child, pos + 1, out);
+        } else if (value instanceof Object[]) {
+            for (Object child : (Object[]) value)
+                selectAll(child, pos + 1, out);
+        } else if (value instanceof Collection) {
+            for (Object child : (Collection<?>) value)
+                selectAll(child, pos + 1, out);
+        }
+    }
+
+    private static Object step(Object value, Object seg) {
+        if (seg instanceof String) {
+            if (value instanceof Map) return ((Map<?,?>) value).get(seg);
+            return null;
+        }
+
+        int idx = (Integer) seg;
+        if (value instanceof Object[]) {
+            Object[] list = (Object[]) value;
+            if (idx < 0) idx += list.length;
+            return idx >= 0 && idx < list.length ? list[idx] : null;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            if (idx < 0) idx += list.size();
+            return idx >= 0 && idx < list.size() ? list.get(idx) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Builds a projection: an object mapping each path to its selection.
+     *
+     * @param value The value to project
+     * @param paths The paths to include
+     */
+    public static Map<String,Object> project(Object value, Object[] paths) {
+        Map<String,Object> out = new HashMap<String,Object>();
+        for (Object path : paths) {
+            String p = String.valueOf(path);
+            out.put(p, new JsonQuery(p).select(value));
+        }
+        return out;
+    }
+
+    /**
+     * Returns true if every path in the filter selects a value equal to
+     * the filter's value for it.  Numbers compare by value, so 1 and
+     * 1.0 are equal.
+     *
+     * @param value The value to test
+     * @param where path => expected value
+     */
+    public static boolean matches(Object value, Map<?,?> where) {
+        for (Map.Entry<?,?> cond : where.entrySet()) {
+            Object actual = new JsonQuery(String.valueOf(cond.getKey())).select(value);
+            if (!equal(actual, cond.getValue())) return false;
+        }
+        return true;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a == null || b == null) return a == b;
+        if (a instanceof Number && b instanceof Number)
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        if (a instanceof Object[] && b instanceof Object[]) {
+            Object[] x = (Object[]) a;
+            Object[] y = (Object[]) b;
+            if (x.length != y.length) return false;
+            for (int i = 0; i < x.length; i++)
+                if (!equal(x[i], y[i])) return false;
+            return true;
+        }
+        return a.equals(b);
+    }
+}
@@ -0,0 +1,1136 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Embedded, single-file, transactional key / value store.
+ *
+ * Keys are kept in a copy-on-write B+tree.  A transaction appends the
+ * values and tree nodes it changes to the end of the file, then
+ * commits by writing a new root pointer into one of two alternating
+ * header slots.  Existing data is never modified in place, so:
+ *
+ * - A crash at any point leaves the last committed tree intact; on
+ *   open, the newest header slot with a valid checksum wins and any
+ *   partial tail is discarded.
+ * - Readers work from the root as of when they started (MVCC) and
+ *   never wait for writers.  Writers are serialized.
+ *
+ * Values are stored outside the tree nodes, so updating a large value
+ * rewrites only the value and the nodes on the path to it.  Decoded
+ * nodes are held in an LRU cache bounded by size.  Space left behind
+ * by replaced nodes and values is reclaimed by compaction, which
+ * rewrites the live tree into a new file once garbage dominates.
+ *
+ * Processes sharing the profile directory (see Coordinator) may share
+ * a store: writers also lock file.lock and start from the newest
+ * header on disk, and refresh() brings readers up to date.
+ *
+ * File layout:
+ *   0    header slot A (64 bytes)
+ *   64   header slot B (64 bytes)
+ *   128  values and nodes, appended
+ *
+ * Header slot: magic(8) seq(8) root(8) end(8) garbage(8) count(8) crc(4)
+ * Node: size(4) type(1) n(4) then
+ *   leaf:   n x [klen(2) key valueOffset(8) valueLength(4)]
+ *   branch: n x [klen(2) key], (n + 1) x childOffset(8)
+ */
+public class KVStore implements StorageBackend {
+
+    private static final byte[] MAGIC =
+        "HATCHKV1".getBytes(StandardCharsets.US_ASCII);
+    private static final int SLOT_SIZE = 64;
+    private static final long DATA_START = 2 * SLOT_SIZE;
+
+    private static final byte LEAF = 1;
+    private static final byte BRANCH = 2;
+
+    /** Most entries in a node before it splits */
+    private static final int MAX_ENTRIES = 64;
+
+    /** Longest key, in UTF-8 bytes */
+    private static final int MAX_KEY_BYTES = 0xffff;
+
+    /** Total size of cached nodes per store */
+    private static long cacheBytes = 4 * 1024 * 1024;
+
+    /** If true, commits are forced to disk before the header is written */
+    private static boolean syncWrites = true;
+
+    /** Compact when garbage exceeds this share of the file ... */
+    private static double compactRatio = 0.5;
+
+    /** ... and the file is at least this large */
+    private static long compactMinBytes = 1024 * 1024;
+
+    private static final Logger logger = Log.getLogger("KVStore");
+
+    /** Committed state, as recorded in a header slot */
+    private static class Meta {
+        long seq;
+        long root;     // 0 for an empty tree
+        long end;      // end of committed data
+        long garbage;  // bytes no longer reachable
+        long count;    // number of keys
+    }
+
+    /** A decoded tree node */
+    private static class Node {
+        final boolean leaf;
+        final String[] keys;
+        final long[] values;    // leaf only
+        final int[] lengths;    // leaf only
+        final long[] children;  // branch only
+        long offset;
+        int size;
+
+        Node(String[] keys, long[] values, int[] lengths) {
+            this.leaf = true;
+            this.keys = keys;
+            this.values = values;
+            this.lengths = lengths;
+            this.children = null;
+        }
+
+        Node(String[] keys, long[] children) {
+            this.leaf = false;
+            this.keys = keys;
+            this.values = null;
+            this.lengths = null;
+            this.children = children;
+        }
+    }
+
+    /** A key with the location of its value */
+    private static class Entry {
+        final String key;
+        final long offset;
+        final int length;
+
+        Entry(String key, long offset, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private volatile Meta meta;
+
+    /** Identity of the open file, to notice it being replaced */
+    private Object fileKey;
+
+    /** Serializes writers */
+    private final ReentrantLock writer = new ReentrantLock();
+
+    /**
+     * True if other processes may use the file too (see Coordinator).
+     * Writers then also hold a lock on file.lock, beside the store,
+     * which compaction does not replace.
+     */
+    private final boolean shared;
+    private FileChannel lockChannel;
+    private FileLock writerFileLock;
+
+    /** Held shared by readers and writers, exclusive while compacting */
+    private final ReentrantReadWriteLock fileLock =
+        new ReentrantReadWriteLock();
+
+    /** offset => node, in access order */
+    private final LinkedHashMap<Long,Node> cache =
+        new LinkedHashMap<Long,Node>(256, 0.75f, true);
+    private long cachedBytes = 0;
+
+    /**
+     * Sets the node cache size for each store.
+     *
+     * @param bytes Cache size in bytes
+     */
+    public static void setCacheBytes(long bytes) {
+        cacheBytes = bytes;
+    }
+
+    /**
+     * If true (the default), every commit is forced to disk before it
+     * is acknowledged.  Slower, but safe against power loss as well as
+     * crashes.  If false, a crash of the operating system may lose or
+     * corrupt recent commits.
+     */
+    public static void setSyncWrites(boolean sync) {
+        syncWrites = sync;
+    }
+
+    /**
+     * Sets when compaction runs.
+     *
+     * @param ratio Share of the file which must be garbage
+     * @param minBytes Smallest file worth compacting
+     */
+    public static void setCompaction(double ratio, long minBytes) {
+        compactRatio = ratio;
+        compactMinBytes = minBytes;
+    }
+
+    /**
+     * Opens (or creates) a store.
+     *
+     * @param file The store file
+     */
+    public KVStore(File file) throws IOException {
+        this(file, Coordinator.isEnabled());
+    }
+
+    private KVStore(File file, boolean shared) throws IOException {
+        this.file = file;
+        this.shared = shared;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        if (shared) {
+            lockChannel = FileChannel.open(
+                new File(file.getPath() + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        lockWriter();
+        try {
+            openFile();
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * Opens the file.  Callers hold the writer lock; the uncommitted
+     * tail is only discarded if no other process can be writing it.
+     */
+    private void openFile() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        fileKey = fileKey();
+
+        if (channel.size() < DATA_START) {
+            // new store
+            Meta empty = new Meta();
+            empty.end = DATA_START;
+            writeMeta(empty);
+            writeMeta(nextMeta(empty)); // fill both slots
+            meta = readMeta();
+            return;
+        }
+
+        meta = readMeta();
+        if (meta == null)
+            throw new IOException("No valid header in " + file);
+
+        // another process may be writing past the end it committed
+        boolean alone = !shared || writerFileLock != null;
+        if (channel.size() > meta.end && alone) {
+            logger.info("Discarding " + (channel.size() - meta.end)
+                + " uncommitted bytes from " + file.getName());
+            channel.truncate(meta.end);
+        }
+    }
+
+    private Object fileKey() throws IOException {
+        return Files.readAttributes(
+            file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Takes the writer lock, and when shared, the lock on file.lock.
+     * If that cannot be had, writes go ahead uncoordinated.
+     */
+    private void lockWriter() {
+        writer.lock();
+        if (!shared || writer.getHoldCount() > 1) return;
+        try {
+            writerFileLock = lockChannel.lock();
+        } catch (IOException e) {
+            logger.warn("Unable to lock " + file + " for writing", e);
+        }
+    }
+
+    private void unlockWriter() {
+        try {
+            if (writerFileLock != null && writer.getHoldCount() == 1) {
+                writerFileLock.release();
+                writerFileLock = null;
+            }
+        } catch (IOException e) {
+            writerFileLock = null; // released when the channel closes
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /**
+     * Picks up transactions committed, and compaction done, by other
+     * processes sharing the file.  Does nothing unless shared.
+     */
+    void refresh() {
+        if (!shared) return;
+        writer.lock();
+        try {
+            reload();
+        } catch (IOException e) {
+            logger.warn("Error rereading " + file, e);
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /** refresh(), for callers holding the writer lock */
+    private void reload() throws IOException {
+        Object key = fileKey();
+        if (key == null ? fileKey == null : key.equals(fileKey)) {
+            Meta m = readMeta();
+            if (m != null && m.seq > meta.seq) meta = m;
+            return;
+        }
+
+        // compacted into a new file
+        fileLock.writeLock().lock();
+        try {
+            channel.close();
+            raf.close();
+            synchronized (cache) {
+                cache.clear();
+                cachedBytes = 0;
+            }
+            openFile();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the store.
+     */
+    public void close() {
+        fileLock.writeLock().lock();
+        try {
+            channel.close();
+            raf.close();
+            if (lockChannel != null) lockChannel.close();
+        } catch (IOException e) {
+            logger.warn("Error closing " + file, e);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    // -- header ----------------------------------------------------
+
+    private static Meta nextMeta(Meta m) {
+        Meta next = new Meta();
+        next.seq = m.seq + 1;
+        next.root = m.root;
+        next.end = m.end;
+        next.garbage = m.garbage;
+        next.count = m.count;
+        return next;
+    }
+
+    private void writeMeta(Meta m) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SLOT_SIZE);
+        buf.put(MAGIC);
+        buf.putLong(m.seq).putLong(m.root).putLong(m.end);
+        buf.putLong(m.garbage).putLong(m.count);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.rewind();
+        writeFully(buf, (m.seq % 2) * SLOT_SIZE);
+        if (syncWrites) channel.force(false);
+    }
+
+    /** Returns the newest valid header slot, or null */
+    private Meta readMeta() throws IOException {
+        Meta best = null;
+        for (int slot = 0; slot < 2; slot++) {
+            ByteBuffer buf = ByteBuffer.allocate(SLOT_SIZE);
+            readFully(buf, slot * SLOT_SIZE);
+            buf.flip();
+
+            byte[] magic = new byte[MAGIC.length];
+            buf.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) continue;
+
+            Meta m = new Meta();
+            m.seq = buf.getLong();
+            m.root = buf.getLong();
+            m.end = buf.getLong();
+            m.garbage = buf.getLong();
+            m.count = buf.getLong();
+
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, buf.position());
+            if (buf.getInt() != (int) crc.getValue()) continue;
+            if (m.end > channel.size()) continue;
+
+            if (best == null || m.seq > best.seq) best = m;
+        }
+        return best;
+    }
+
+    // -- file IO ---------------------------------------------------
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) throw new IOException("Unexpected end of " + file);
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += channel.write(buf, position);
+    }
+
+    private String readValue(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(buf, offset);
+        return new String(buf.array(), StandardCharsets.UTF_8);
+    }
+
+    private Node readNode(long offset) throws IOException {
+        synchronized (cache) {
+            Node node = cache.get(offset);
+            if (node != null) return node;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(4);
+        readFully(head, offset);
+        int size = head.getInt(0);
+
+        ByteBuffer buf = ByteBuffer.allocate(size - 4);
+        readFully(buf, offset + 4);
+        buf.flip();
+
+        byte type = buf.get();
+        int n = buf.getInt();
+        String[] keys = new String[n];
+        Node node;
+
+        if (type == LEAF) {
+            long[] values = new long[n];
+            int[] lengths = new int[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = readKey(buf);
+                values[i] = buf.getLong();
+                lengths[i] = buf.getInt();
+            }
+            node = new Node(keys, values, lengths);
+        } else {
+            for (int i = 0; i < n; i++) keys[i] = readKey(buf);
+            long[] children = new long[n + 1];
+            for (int i = 0; i <= n; i++) children[i] = buf.getLong();
+            node = new Node(keys, children);
+        }
+
+        node.offset = offset;
+        node.size = size;
+        cacheNode(node);
+        return node;
+    }
+
+    private static String readKey(ByteBuffer buf) {
+        int len = buf.getShort() & 0xffff;
+        String key = new String(
+            buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return key;
+    }
+
+    private void cacheNode(Node node) {
+        synchronized (cache) {
+            if (cache.put(node.offset, node) == null) cachedBytes += node.size;
+            java.util.Iterator<Node> iter = cache.values().iterator();
+            while (cachedBytes > cacheBytes && iter.hasNext()) {
+                cachedBytes -= iter.next().size;
+                iter.remove();
+            }
+        }
+    }
+
+    // -- reads -----------------------------------------------------
+
+    /**
+     * Returns the value for a key, or null.
+     */
+    public String get(String key) {
+        fileLock.readLock().lock();
+        try {
+            Entry entry = find(meta.root, key, null);
+            return entry == null ? null : readValue(entry.offset, entry.length);
+        } catch (IOException e) {
+            logger.warn("Error reading key " + key + " from " + file, e);
+            return null;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the length of a key's value in UTF-8 bytes, or -1.
+     */
+    public long size(String key) {
+        fileLock.readLock().lock();
+        try {
+            Entry entry = find(meta.root, key, null);
+            return entry == null ? -1 : entry.length;
+        } catch (IOException e) {
+            logger.warn("Error reading key " + key + " from " + file, e);
+            return -1;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up a key from the given root.
+     *
+     * @param pending Uncommitted nodes of a transaction, or null
+     */
+    private Entry find(long root, String key, Map<Long,Node> pending)
+        throws IOException {
+
+        if (root == 0) return null;
+        Node node = node(root, pending);
+        while (!node.leaf) {
+            node = node(node.children[childIndex(node, key)], pending);
+        }
+        int idx = Arrays.binarySearch(node.keys, key);
+        if (idx < 0) return null;
+        return new Entry(key, node.values[idx], node.lengths[idx]);
+    }
+
+    private Node node(long offset, Map<Long,Node> pending) throws IOException {
+        if (pending != null) {
+            Node node = pending.get(offset);
+            if (node != null) return node;
+        }
+        return readNode(offset);
+    }
+
+    /** Index of the child of a branch which may hold the key */
+    private static int childIndex(Node branch, String key) {
+        int idx = Arrays.binarySearch(branch.keys, key);
+        return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    /**
+     * Returns all keys beginning with the prefix (all keys if null),
+     * in order.
+     */
+    public String[] keys(String prefix) {
+        List<String> keys = new ArrayList<String>();
+        for (Entry entry : scan(prefix)) keys.add(entry.key);
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    public long count() {
+        return meta.count;
+    }
+
+    private List<Entry> scan(String prefix) {
+        List<Entry> entries = new ArrayList<Entry>();
+        fileLock.readLock().lock();
+        try {
+            long root = meta.root;
+            if (root != 0) scan(readNode(root), prefix, entries);
+        } catch (IOException e) {
+            logger.warn("Error scanning " + file, e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    private void scan(Node node, String prefix, List<Entry> out)
+        throws IOException {
+
+        if (node.leaf) {
+            int start = prefix == null ? 0 : lowerBound(node.keys, prefix);
+            for (int i = start; i < node.keys.length; i++) {
+                if (prefix != null && !node.keys[i].startsWith(prefix)) break;
+                out.add(new Entry(node.keys[i], node.values[i], node.lengths[i]));
+            }
+            return;
+        }
+
+        int start = prefix == null ? 0 : childIndex(node, prefix);
+        for (int i = start; i < node.children.length; i++) {
+            // child i holds keys >= keys[i - 1]; once that separator is
+            // past the prefix range, so is everything after it.
+            if (prefix != null && i > start) {
+                String sep = node.keys[i - 1];
+                if (sep.compareTo(prefix) > 0 && !sep.startsWith(prefix)) break;
+            }
+            scan(readNode(node.children[i]), prefix, out);
+        }
+    }
+
+    private static int lowerBound(String[] keys, String key) {
+        int idx = Arrays.binarySearch(keys, key);
+        return idx >= 0 ? idx : -idx - 1;
+    }
+
+    // -- writes ----------------------------------------------------
+
+    /**
+     * A write transaction.  Changes are visible to the transaction's
+     * own get() immediately, and to everyone else once committed.
+     * Only one transaction is open at a time; begin() waits for the
+     * current one to commit or abort.
+     */
+    public class Txn {
+        private final Meta next;
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buf);
+        private final Map<Long,Node> pending = new HashMap<Long,Node>();
+        private boolean open = true;
+        private boolean dirty = false;
+
+        private Txn() {
+            next = nextMeta(meta);
+        }
+
+        /** File offset of the next byte written */
+        private long position() {
+            return next.end + buf.size();
+        }
+
+        /**
+         * Returns the value of a key as seen by this transaction.
+         */
+        public String get(String key) throws IOException {
+            Entry entry = find(next.root, key, pending);
+            if (entry == null) return null;
+            if (entry.offset >= next.end) {
+                // written by this transaction
+                byte[] bytes = buf.toByteArray();
+                return new String(bytes, (int) (entry.offset - next.end),
+                    entry.length, StandardCharsets.UTF_8);
+            }
+            return readValue(entry.offset, entry.length);
+        }
+
+        /**
+         * Sets the value of a key.
+         */
+        public void put(String key, String value) throws IOException {
+            if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_BYTES)
+                throw new IOException("Key too long");
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            long offset = position();
+            out.write(bytes);
+            dirty = true;
+
+            if (next.root == 0) {
+                next.root = writeNode(new Node(new String[] {key},
+                    new long[] {offset}, new int[] {bytes.length})).offset;
+                next.count++;
+                return;
+            }
+
+            Node[] result = insert(node(next.root, pending),
+                key, offset, bytes.length);
+            if (result.length == 1) {
+                next.root = result[0].offset;
+            } else {
+                // root split
+                next.root = writeNode(new Node(
+                    new String[] {firstKey(result[1])},
+                    new long[] {result[0].offset, result[1].offset})).offset;
+            }
+        }
+
+        /**
+         * Removes a key.
+         *
+         * @return True if the key existed.
+         */
+        public boolean delete(String key) throws IOException {
+            if (next.root == 0) return false;
+            Node root = node(next.root, pending);
+            Node result = remove(root, key);
+            if (result == root) return false;
+
+            dirty = true;
+            next.count--;
+            if (result == null) {
+                next.root = 0;
+            } else if (!result.leaf && result.keys.length == 0) {
+                // collapse a root with a single child
+                next.garbage += result.size;
+                next.root = result.children[0];
+            } else {
+                next.root = result.offset;
+            }
+            return true;
+        }
+
+        private String firstKey(Node node) throws IOException {
+            while (!node.leaf) node = node(node.children[0], pending);
+            return node.keys[0];
+        }
+
+        /**
+         * Inserts into a subtree.  Returns the replacement node, or two
+         * nodes if it split.
+         */
+        private Node[] insert(Node node, String key, long offset, int length)
+            throws IOException {
+
+            next.garbage += node.size;
+
+            if (node.leaf) {
+                int idx = Arrays.binarySearch(node.keys, key);
+                String[] keys;
+                long[] values;
+                int[] lengths;
+
+                if (idx >= 0) {
+                    next.garbage += node.lengths[idx];
+                    keys = node.keys;
+                    values = node.values.clone();
+                    lengths = node.lengths.clone();
+                    values[idx] = offset;
+                    lengths[idx] = length;
+                } else {
+                    idx = -idx - 1;
+                    next.count++;
+                    keys = insertAt(node.keys, idx, key);
+                    values = insertAt(node.values, idx, offset);
+                    lengths = insertAt(node.lengths, idx, length);
+                }
+
+                if (keys.length <= MAX_ENTRIES)
+                    return new Node[] {writeNode(new Node(keys, values, lengths))};
+
+                int mid = keys.length / 2;
+                return new Node[] {
+                    writeNode(new Node(
+                        Arrays.copyOfRange(keys, 0, mid),
+                        Arrays.copyOfRange(values, 0, mid),
+                        Arrays.copyOfRange(lengths, 0, mid))),
+                    writeNode(new Node(
+                        Arrays.copyOfRange(keys, mid, keys.length),
+                        Arrays.copyOfRange(values, mid, keys.length),
+                        Arrays.copyOfRange(lengths, mid, keys.length)))
+                };
+            }
+
+            int idx = childIndex(node, key);
+            Node[] result = insert(
+                node(node.children[idx], pending), key, offset, length);
+
+            String[] keys = node.keys;
+            long[] children = node.children.clone();
+            children[idx] = result[0].offset;
+
+            if (result.length == 2) {
+                keys = insertAt(keys, idx, firstKey(result[1]));
+                children = insertAt(children, idx + 1, result[1].offset);
+            }
+
+            if (keys.length <= MAX_ENTRIES)
+                return new Node[] {writeNode(new Node(keys, children))};
+
+            int mid = keys.length / 2;
+            return new Node[] {
+                writeNode(new Node(
+                    Arrays.copyOfRange(keys, 0, mid),
+                    Arrays.copyOfRange(children, 0, mid + 1))),
+                writeNode(new Node(
+                    Arrays.copyOfRange(keys, mid + 1, keys.length),
+                    Arrays.copyOfRange(children, mid + 1, children.length)))
+            };
+        }
+
+        /**
+         * Removes from a subtree.  Returns the node unchanged if the
+         * key was not found, the replacement node, or null if the
+         * subtree is now empty.  Underfull nodes are left as they are;
+         * compaction rebuilds a balanced tree.
+         */
+        private Node remove(Node node, String key) throws IOException {
+            if (node.leaf) {
+                int idx = Arrays.binarySearch(node.keys, key);
+                if (idx < 0) return node;
+
+                next.garbage += node.size + node.lengths[idx];
+                if (node.keys.length == 1) return null;
+                return writeNode(new Node(
+                    removeAt(node.keys, idx),
+                    removeAt(node.values, idx),
+                    removeAt(node.lengths, idx)));
+            }
+
+            int idx = childIndex(node, key);
+            Node child = node(node.children[idx], pending);
+            Node result = remove(child, key);
+            if (result == child) return node;
+
+            next.garbage += node.size;
+
+            if (result != null) {
+                long[] children = node.children.clone();
+                children[idx] = result.offset;
+                return writeNode(new Node(node.keys, children));
+            }
+
+            // child is empty; drop it along with a separator
+            if (node.children.length == 1) return null;
+            return writeNode(new Node(
+                removeAt(node.keys, idx == 0 ? 0 : idx - 1),
+                removeAt(node.children, idx)));
+        }
+
+        private Node writeNode(Node node) throws IOException {
+            long offset = position();
+            int n = node.keys.length;
+
+            ByteArrayOutputStream nodeBuf = new ByteArrayOutputStream();
+            DataOutputStream nodeOut = new DataOutputStream(nodeBuf);
+            nodeOut.writeInt(0); // size, filled in below
+            nodeOut.writeByte(node.leaf ? LEAF : BRANCH);
+            nodeOut.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                byte[] key = node.keys[i].getBytes(StandardCharsets.UTF_8);
+                nodeOut.writeShort(key.length);
+                nodeOut.write(key);
+                if (node.leaf) {
+                    nodeOut.writeLong(node.values[i]);
+                    nodeOut.writeInt(node.lengths[i]);
+                }
+            }
+            if (!node.leaf) {
+                for (long child : node.children) nodeOut.writeLong(child);
+            }
+
+            byte[] bytes = nodeBuf.toByteArray();
+            ByteBuffer.wrap(bytes).putInt(0, bytes.length);
+            out.write(bytes);
+
+            node.offset = offset;
+            node.size = bytes.length;
+            pending.put(offset, node);
+            return node;
+        }
+
+        /**
+         * Writes the transaction's changes and publishes them.
+         */
+        public void commit() throws IOException {
+            if (!open) throw new IllegalStateException("Transaction closed");
+            open = false;
+
+            try {
+                if (!dirty) return;
+
+                fileLock.readLock().lock();
+                try {
+                    writeFully(ByteBuffer.wrap(buf.toByteArray()), next.end);
+                    if (syncWrites) channel.force(false);
+                    next.end += buf.size();
+                    writeMeta(next);
+                } finally {
+                    fileLock.readLock().unlock();
+                }
+
+                meta = next;
+                for (Node node : pending.values()) cacheNode(node);
+            } finally {
+                unlockWriter();
+            }
+
+            maybeCompact();
+        }
+
+        /**
+         * Discards the transaction's changes.
+         */
+        public void abort() {
+            if (!open) return;
+            open = false;
+            unlockWriter();
+        }
+    }
+
+    /**
+     * Starts a write transaction.  The caller must commit() or abort().
+     */
+    public Txn begin() {
+        lockWriter();
+        if (shared) {
+            try {
+                reload();
+            } catch (IOException e) {
+                // the transaction's own reads and writes will fail too
+                logger.warn("Error rereading " + file, e);
+            }
+        }
+        return new Txn();
+    }
+
+    public boolean set(String key, String text) {
+        if (text == null) return false;
+        Txn txn = begin();
+        try {
+            txn.put(key, text);
+            txn.commit();
+            return true;
+        } catch (IOException e) {
+            logger.warn("Error writing key " + key + " to " + file, e);
+            return false;
+        } finally {
+            txn.abort();
+        }
+    }
+
+    /**
+     * Appends to a value.  The whole value is rewritten, so FileIO
+     * suits large, append-heavy keys better.
+     */
+    public boolean append(String key, String text) {
+        if (text == null) return false;
+        Txn txn = begin();
+        try {
+            String value = txn.get(key);
+            txn.put(key, value == null ? text : value + text);
+            txn.commit();
+            return true;
+        } catch (IOException e) {
+            logger.warn("Error appending key " + key + " in " + file, e);
+            return false;
+        } finally {
+            txn.abort();
+        }
+    }
+
+    public boolean remove(String key) {
+        Txn txn = begin();
+        try {
+            txn.delete(key);
+            txn.commit();
+            return true;
+        } catch (IOException e) {
+            logger.warn("Error removing key " + key + " from " + file, e);
+            return false;
+        } finally {
+            txn.abort();
+        }
+    }
+
+    // -- compaction ------------------------------------------------
+
+    private void maybeCompact() {
+        Meta m = meta;
+        if (m.end < compactMinBytes) return;
+        if (m.garbage < (m.end - DATA_START) * compactRatio) return;
+
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.warn("Error compacting " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the live keys into a new, balanced file and swaps it in.
+     */
+    public void compact() throws IOException {
+        lockWriter();
+        try {
+            if (shared) reload();
+            Meta old = meta;
+            List<Entry> entries = scan(null);
+            File tmp = new File(file.getPath() + ".compact");
+            Files.deleteIfExists(tmp.toPath());
+
+            KVStore target = new KVStore(tmp, false);
+            try {
+                target.bulkLoad(this, entries);
+            } finally {
+                target.close();
+            }
+
+            fileLock.writeLock().lock();
+            try {
+                channel.close();
+                raf.close();
+                try {
+                    Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    // the old file if the move failed
+                    synchronized (cache) {
+                        cache.clear();
+                        cachedBytes = 0;
+                    }
+                    openFile();
+                }
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+
+            logger.info("Compacted " + file.getName() + " from "
+                + old.end + " to " + meta.end + " bytes");
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * Fills an empty store with sorted entries from another store,
+     * building the tree bottom up with nodes three quarters full.
+     */
+    private void bulkLoad(KVStore source, List<Entry> entries)
+        throws IOException {
+
+        Txn txn = begin();
+        try {
+            int fill = MAX_ENTRIES * 3 / 4;
+            List<Node> level = new ArrayList<Node>();
+            List<String> firstKeys = new ArrayList<String>();
+
+            for (int i = 0; i < entries.size(); i += fill) {
+                int n = Math.min(fill, entries.size() - i);
+                String[] keys = new String[n];
+                long[] values = new long[n];
+                int[] lengths = new int[n];
+                for (int j = 0; j < n; j++) {
+                    Entry entry = entries.get(i + j);
+                    ByteBuffer value = ByteBuffer.allocate(entry.length);
+                    source.readFully(value, entry.offset);
+                    keys[j] = entry.key;
+                    values[j] = txn.position();
+                    lengths[j] = entry.length;
+                    txn.out.write(value.array());
+                }
+                level.add(txn.writeNode(new Node(keys, values, lengths)));
+                firstKeys.add(keys[0]);
+            }
+
+            while (level.size() > 1) {
+                List<Node> parents = new ArrayList<Node>();
+                List<String> parentKeys = new ArrayList<String>();
+                for (int i = 0; i < level.size(); i += fill + 1) {
+                    int n = Math.min(fill + 1, level.size() - i);
+                    String[] keys = new String[n - 1];
+                    long[] children = new long[n];
+                    for (int j = 0; j < n; j++) {
+                        children[j] = level.get(i + j).offset;
+                        if (j > 0) keys[j - 1] = firstKeys.get(i + j);
+                    }
+                    parents.add(txn.writeNode(new Node(keys, children)));
+                    parentKeys.add(firstKeys.get(i));
+                }
+                level = parents;
+                firstKeys = parentKeys;
+            }
+
+            txn.next.root = level.isEmpty() ? 0 : level.get(0).offset;
+            txn.next.count = entries.size();
+            txn.dirty = true;
+            txn.commit();
+        } finally {
+            txn.abort();
+        }
+    }
+
+    // -- array helpers ---------------------------------------------
+
+    private static String[] insertAt(String[] a, int idx, String v) {
+        String[] b = new String[a.length + 1];
+        System.arraycopy(a, 0, b, 0, idx);
+        b[idx] = v;
+        System.arraycopy(a, idx, b, idx + 1, a.length - idx);
+        return b;
+    }
+
+    private static long[] insertAt(long[] a, int idx, long v) {
+        long[] b = new long[a.length + 1];
+        System.arraycopy(a, 0, b, 0, idx);
+        b[idx] = v;
+        System.arraycopy(a, idx, b, idx + 1, a.length - idx);
+        return b;
+    }
+
+    private static int[] insertAt(int[] a, int idx, int v) {
+        int[] b = new int[a.length + 1];
+        System.arraycopy(a, 0, b, 0, idx);
+        b[idx] = v;
+        System.arraycopy(a, idx, b, idx + 1, a.length - idx);
+        return b;
+    }
+
+    private static String[] removeAt(String[] a, int idx) {
+        String[] b = new String[a.length - 1];
+        System.arraycopy(a, 0, b, 0, idx);
+        System.arraycopy(a, idx + 1, b, idx, a.length - idx - 1);
+        return b;
+    }
+
+    private static long[] removeAt(long[] a, int idx) {
+        long[] b = new long[a.length - 1];
+        System.arraycopy(a, 0, b, 0, idx);
+        System.arraycopy(a, idx + 1, b, idx, a.length - idx - 1);
+        return b;
+    }
+
+    private static int[] removeAt(int[] a, int idx) {
+        int[] b = new int[a.length - 1];
+        System.arraycopy(a, 0, b, 0, idx);
+        System.arraycopy(a, idx + 1, b, idx, a.length - idx - 1);
+        return b;
+    }
+}
@@ -0,0 +1,314 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Expiry times of keys stored with a TTL.
+ *
+ * Deadlines are held in memory per origin and logged to
+ * profileDirectory/origin.ttl, one [deadline,"key"] record per line,
+ * so they survive restarts.  The log is rewritten once it holds mostly
+ * stale records.  Processes sharing the profile directory (see
+ * Coordinator) append to the same log and read each other's records.
+ *
+ * A TimerWheel fires each deadline; Storage then removes the key if
+ * its deadline has not changed in the meantime.  Until then, Storage
+ * treats keys past their deadline as missing.
+ */
+public class KeyExpiry {
+
+    /** Deadlines for one origin */
+    private static class Space {
+        final String directory;
+        final String origin;
+        final LineLog log;
+        final ConcurrentHashMap<String,Long> deadlines =
+            new ConcurrentHashMap<String,Long>();
+
+        Space(String directory, String origin) {
+            this.directory = directory;
+            this.origin = origin;
+            this.log = new LineLog(new File(directory, origin + ".ttl"));
+        }
+    }
+
+    /** A pending expiry */
+    private static class Expiry {
+        final Space space;
+        final String key;
+        final long deadline;
+        Expiry(Space space, String key, long deadline) {
+            this.space = space;
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    /** Resolution of expiry, in milliseconds */
+    private static long tickMillis = 1000;
+
+    /** directory + "\0" + origin => Space */
+    private static final ConcurrentHashMap<String,Space> spaces =
+        new ConcurrentHashMap<String,Space>();
+
+    private static TimerWheel<Expiry> wheel;
+
+    private static final AtomicLong expired = new AtomicLong();
+
+    private static final Logger logger = Log.getLogger("KeyExpiry");
+
+    /**
+     * Sets how often expired keys are removed.  Keys past their
+     * deadline read as missing regardless.
+     */
+    public static synchronized void setTickMillis(long millis) {
+        if (wheel == null) tickMillis = millis;
+    }
+
+    private static synchronized TimerWheel<Expiry> wheel() {
+        if (wheel == null) {
+            wheel = new TimerWheel<Expiry>(tickMillis, System.currentTimeMillis());
+            HatchScheduler.repeatIO(new Runnable() {
+                public void run() { tick(); }
+            }, tickMillis);
+        }
+        return wheel;
+    }
+
+    private static Space space(String directory, String origin) {
+        String id = directory + "\0" + origin;
+        Space space = spaces.get(id);
+        if (space != null) return space;
+
+        synchronized (spaces) {
+            space = spaces.get(id);
+            if (space == null) {
+                space = new Space(directory, origin);
+                synchronized (space) {
+                    load(space);
+                }
+                spaces.put(id, space);
+            }
+            return space;
+        }
+    }
+
+    /**
+     * Returns the deadline of a key, or 0 if it has none.
+     *
+     * @param directory The profile directory
+     * @param origin The cleaned origin
+     * @param key The key
+     */
+    public static long getDeadline(String directory, String origin, String key) {
+        Long deadline = space(directory, origin).deadlines.get(key);
+        return deadline == null ? 0 : deadline;
+    }
+
+    /**
+     * Returns true if a key is past its deadline.
+     */
+    public static boolean isExpired(String directory, String origin, String key) {
+        long deadline = getDeadline(directory, origin, key);
+        return deadline != 0 && deadline <= System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if any key of the origin has a deadline.
+     */
+    public static boolean hasDeadlines(String directory, String origin) {
+        return !space(directory, origin).deadlines.isEmpty();
+    }
+
+    /**
+     * Sets or clears the deadline of a key.  Callers hold the key's
+     * Storage lock.
+     *
+     * @param deadline Time in milliseconds; 0 clears the deadline
+     */
+    public static void setDeadline(
+        String directory, String origin, String key, long deadline) {
+
+        Space space = space(directory, origin);
+        synchronized (space) {
+            Long old = deadline == 0 ?
+                space.deadlines.remove(key) : space.deadlines.put(key, deadline);
+            if (old == null ? deadline == 0 : old == deadline) return;
+            record(space, key, deadline);
+        }
+
+        if (deadline != 0) {
+            TimerWheel<Expiry> w = wheel();
+            synchronized (w) {
+                w.add(new Expiry(space, key, deadline), deadline);
+            }
+        }
+    }
+
+    /**
+     * Removes keys whose deadlines have passed.
+     */
+    static void tick() {
+        List<Expiry> fired = new ArrayList<Expiry>();
+        TimerWheel<Expiry> w = wheel();
+        synchronized (w) {
+            w.advance(System.currentTimeMillis(), fired);
+        }
+
+        for (Expiry e : fired) {
+            // changed or cleared since the timer was set
+            Long current = e.space.deadlines.get(e.key);
+            if (current == null || current != e.deadline) continue;
+
+            if (Storage.open(e.space.directory, e.space.origin)
+                    .expire(e.key, e.deadline)) {
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the origin's log.  Callers hold the space's
+     * lock.
+     */
+    @SuppressWarnings("try")
+    private static void record(Space space, String key, long deadline) {
+        Coordinator coord = Coordinator.forOrigin(space.directory, space.origin);
+        try (Coordinator.Held held = coord == null ? null : coord.lockHeader()) {
+            if (coord != null) readNew(space);
+            space.log.append(new Object[] {deadline, key});
+
+            int records = space.log.getRecords();
+            if (records > 1000 && records > space.deadlines.size() * 4)
+                compact(space);
+
+        } catch (IOException e) {
+            logger.warn("Unable to record expiry of " + key, e);
+        }
+    }
+
+    /**
+     * Reads deadlines recorded by other processes sharing the profile
+     * directory, if the origin's log has changed.
+     */
+    static void refresh(String directory, String origin) {
+        Space space = spaces.get(directory + "\0" + origin);
+        if (space == null) return;
+        synchronized (space) {
+            readNew(space);
+        }
+    }
+
+    private static void readNew(final Space space) {
+        if (!space.log.isStale()) return;
+        try {
+            if (space.log.isReplaced()) {
+                space.deadlines.clear();
+                space.log.load(handler(space));
+            } else {
+                space.log.readNew(handler(space));
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to read " + space.log.getFile(), e);
+        }
+    }
+
+    /** Applies records read from the log, scheduling live deadlines */
+    private static LineLog.Handler handler(final Space space) {
+        final TimerWheel<Expiry> w = wheel();
+        return new LineLog.Handler() {
+            public void record(Object[] rec) {
+                String key = (String) rec[1];
+                long deadline = ((Number) rec[0]).longValue();
+                if (deadline == 0) {
+                    space.deadlines.remove(key);
+                    return;
+                }
+                space.deadlines.put(key, deadline);
+                synchronized (w) {
+                    w.add(new Expiry(space, key, deadline), deadline);
+                }
+            }
+        };
+    }
+
+    /** Reads an origin's log, scheduling every live deadline */
+    @SuppressWarnings("try")
+    private static void load(Space space) {
+        try {
+            space.log.load(handler(space));
+        } catch (IOException e) {
+            logger.warn("Unable to read " + space.log.getFile(), e);
+            return;
+        }
+        logger.info("Loaded " + space.deadlines.size()
+            + " key expiry times for " + space.origin);
+
+        if (space.log.getRecords() > space.deadlines.size() * 2 + 100) {
+            Coordinator coord =
+                Coordinator.forOrigin(space.directory, space.origin);
+            try (Coordinator.Held held =
+                    coord == null ? null : coord.lockHeader()) {
+                if (coord != null) readNew(space);
+                compact(space);
+            } catch (IOException e) {
+                logger.warn("Unable to compact " + space.log.getFile(), e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites an origin's log with only its live deadlines.  Callers
+     * hold the space's lock, and the origin's Coordinator header lock
+     * if there is one.
+     */
+    private static void compact(Space space) throws IOException {
+        List<Object[]> live = new ArrayList<Object[]>();
+        for (Map.Entry<String,Long> e : space.deadlines.entrySet()) {
+            live.add(new Object[] {e.getValue(), e.getKey()});
+        }
+        space.log.rewrite(live);
+    }
+
+    /**
+     * Returns expiry statistics.
+     */
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        int keys = 0;
+        for (Space space : spaces.values()) keys += space.deadlines.size();
+        stats.put("keys", keys);
+        stats.put("expired", expired.get());
+        TimerWheel<Expiry> w = wheel;
+        if (w != null) {
+            synchronized (w) {
+                stats.put("timers", w.size());
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,481 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Registry of key change subscriptions ("watch" requests).
+ *
+ * Changes made through Hatch are reported by Storage as they happen.
+ * Changes made to the profile directory by anything else are picked up
+ * by a WatchService, which is only active for origins which currently
+ * have watchers.
+ *
+ * Changes seen by a watch within the coalescing window are delivered
+ * as a single push, using the msgid of the original watch request:
+ *
+ * {"msgid":N, "content":{"changes":[{"key":"k","action":"set"}, ...]}}
+ *
+ * action is one of "set", "append" or "remove".  Changes made outside
+ * of Hatch are reported as "set" or "remove".  If the file system drops
+ * events, a single {"action":"resync"} change with no key is sent.
+ *
+ * Pushes are written asynchronously; while one is in flight, further
+ * changes for the same watch are gathered into the next push.
+ */
+public class KeyWatcher {
+
+    /** A single subscription */
+    static class Watch {
+        final HatchWebSocketHandler socket;
+        final String origin;
+        final String key;
+        final boolean prefix;
+        final Long msgid;
+
+        /** Pending changes, key => action, in order of last change */
+        final LinkedHashMap<String,String> changes =
+            new LinkedHashMap<String,String>();
+        boolean flushScheduled = false;
+        /** A push is being written */
+        boolean sending = false;
+        volatile boolean cancelled = false;
+
+        Watch(HatchWebSocketHandler socket, String origin,
+            String key, boolean prefix, Long msgid) {
+            this.socket = socket;
+            this.origin = origin;
+            this.key = key;
+            this.prefix = prefix;
+            this.msgid = msgid;
+        }
+
+        boolean matches(String changed) {
+            if (changed == null) return true;
+            return prefix ? changed.startsWith(key) : changed.equals(key);
+        }
+    }
+
+    /** Milliseconds over which changes are gathered into one push */
+    private static long coalesceMillis = 100;
+
+    /** Most watches a single connection may hold */
+    private static int maxWatchesPerSession = 64;
+
+    /** If false, changes made outside of Hatch are not reported */
+    private static boolean watchFiles = true;
+
+    /** Most file states kept for recognizing our own writes */
+    private static final int MAX_WRITTEN = 10000;
+
+    /** origin => watches */
+    private static final ConcurrentHashMap<String,List<Watch>> watches =
+        new ConcurrentHashMap<String,List<Watch>>();
+
+    /**
+     * "origin/key" => state of the key's file as Hatch last wrote it.
+     * A file event is our own write as long as the file is still in
+     * that state.
+     */
+    private static final ConcurrentHashMap<String,String> written =
+        new ConcurrentHashMap<String,String>();
+
+    private static WatchService watchService;
+    private static final Map<String,WatchKey> watchKeys =
+        new HashMap<String,WatchKey>();
+
+    /** origin => watched directory */
+    private static final ConcurrentHashMap<String,File> watchDirs =
+        new ConcurrentHashMap<String,File>();
+
+    private static final Logger logger = Log.getLogger("KeyWatcher");
+
+    /**
+     * Sets the notification coalescing window.
+     *
+     * @param millis Window in milliseconds; 0 pushes every change
+     * immediately.
+     */
+    public static void setCoalesceMillis(long millis) {
+        coalesceMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Sets the maximum number of watches per connection.
+     */
+    public static void setMaxWatchesPerSession(int max) {
+        maxWatchesPerSession = max;
+    }
+
+    /**
+     * Enables or disables reporting of changes made to the profile
+     * directory outside of Hatch.
+     */
+    public static void setWatchFiles(boolean enable) {
+        watchFiles = enable;
+    }
+
+    /**
+     * Adds a watch.
+     *
+     * @param socket The subscribing connection
+     * @param directory The profile directory
+     * @param origin The cleaned origin (FileIO.cleanFileName())
+     * @param key Key or key prefix to watch
+     * @param prefix If true, key is a prefix
+     * @param msgid ID of the watch request; used for all pushes
+     * @throws IllegalArgumentException if the connection has too many
+     * watches.
+     */
+    public static void watch(HatchWebSocketHandler socket, String directory,
+        String origin, String key, boolean prefix, Long msgid) {
+
+        List<Watch> list = watches.get(origin);
+        if (list == null) {
+            watches.putIfAbsent(origin, new CopyOnWriteArrayList<Watch>());
+            list = watches.get(origin);
+        }
+
+        if (watchCount(socket) >= maxWatchesPerSession) {
+            throw new IllegalArgumentException(
+                "Too many watches (max " + maxWatchesPerSession + ")");
+        }
+
+        list.add(new Watch(socket, origin,
+            FileIO.cleanFileName(key), prefix, msgid));
+        logger.info("watch " + (prefix ? "prefix " : "key ") + key);
+
+        if (watchFiles) registerDirectory(directory, origin);
+    }
+
+    /**
+     * Returns the number of watches held by a connection.
+     */
+    public static int watchCount(HatchWebSocketHandler socket) {
+        int count = 0;
+        for (List<Watch> list : watches.values()) {
+            for (Watch w : list) if (w.socket == socket) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes a connection's watch by the msgid of its watch request.
+     *
+     * @return True if a watch was removed.
+     */
+    public static boolean unwatch(HatchWebSocketHandler socket, Long msgid) {
+        boolean removed = false;
+        for (List<Watch> list : watches.values()) {
+            for (Watch w : list) {
+                if (w.socket == socket && w.msgid.equals(msgid)) {
+                    cancel(list, w);
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes a connection's watches on a key or prefix.
+     *
+     * @return True if any watches were removed.
+     */
+    public static boolean unwatch(
+        HatchWebSocketHandler socket, String key, boolean prefix) {
+
+        key = FileIO.cleanFileName(key);
+        boolean removed = false;
+        for (List<Watch> list : watches.values()) {
+            for (Watch w : list) {
+                if (w.socket == socket
+                    && w.prefix == prefix && w.key.equals(key)) {
+                    cancel(list, w);
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all watches held by a connection.  Called when it closes.
+     */
+    public static void unwatchAll(HatchWebSocketHandler socket) {
+        for (List<Watch> list : watches.values()) {
+            for (Watch w : list) {
+                if (w.socket == socket) cancel(list, w);
+            }
+        }
+    }
+
+    private static void cancel(List<Watch> list, Watch watch) {
+        watch.cancelled = true;
+        list.remove(watch);
+        if (list.isEmpty()) unregisterDirectory(watch.origin);
+    }
+
+    /**
+     * Reports a change made through Hatch.
+     *
+     * @param origin The cleaned origin
+     * @param key The changed key
+     * @param action "set", "append" or "remove"
+     */
+    public static void changed(String origin, String key, String action) {
+        List<Watch> list = watches.get(origin);
+        if (list == null || list.isEmpty()) return;
+
+        key = FileIO.cleanFileName(key);
+        recordWrite(origin, key);
+        dispatch(list, key, action);
+    }
+
+    /**
+     * Records a write made through Hatch which watchers were already
+     * told about, such as a delayed write-behind flush, so its file
+     * event is not reported as a second change.  Call once the write
+     * is complete.
+     *
+     * @param origin The cleaned origin
+     * @param key The written key
+     */
+    public static void written(String origin, String key) {
+        List<Watch> list = watches.get(origin);
+        if (list == null || list.isEmpty()) return;
+        recordWrite(origin, FileIO.cleanFileName(key));
+    }
+
+    /** Remembers the state in which Hatch left a key's file */
+    private static void recordWrite(String origin, String key) {
+        File dir = watchDirs.get(origin);
+        if (dir == null) return;
+        if (written.size() > MAX_WRITTEN) written.clear();
+        written.put(origin + "/" + key, fileState(new File(dir, key)));
+    }
+
+    /**
+     * Returns a description of a file which changes whenever the file
+     * is rewritten, replaced or removed.
+     */
+    private static String fileState(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(
+                file.toPath(), BasicFileAttributes.class);
+            return attrs.lastModifiedTime().toMillis() + "/" + attrs.size()
+                + "/" + attrs.fileKey();
+        } catch (IOException e) {
+            return ""; // absent
+        }
+    }
+
+    /**
+     * Queues a change for every matching watch.
+     */
+    private static void dispatch(List<Watch> list, String key, String action) {
+        for (final Watch watch : list) {
+            if (!watch.matches(key)) continue;
+
+            synchronized (watch) {
+                String mapKey = key == null ? "" : key;
+                watch.changes.remove(mapKey); // re-insert at the end
+                watch.changes.put(mapKey, action);
+
+                if (watch.flushScheduled) continue;
+                watch.flushScheduled = true;
+            }
+
+            scheduleFlush(watch);
+        }
+    }
+
+    private static void scheduleFlush(final Watch watch) {
+        Runnable flush = new Runnable() {
+            public void run() { flush(watch); }
+        };
+
+        if (coalesceMillis == 0) {
+            flush.run();
+        } else {
+            HatchScheduler.schedule(flush, coalesceMillis);
+        }
+    }
+
+    /**
+     * Sends the pending changes for one watch, unless a push is still
+     * being written; the changes then go once it is.
+     */
+    private static void flush(final Watch watch) {
+        List<Map<String,Object>> changes = new ArrayList<Map<String,Object>>();
+
+        synchronized (watch) {
+            if (watch.sending) {
+                watch.flushScheduled = false;
+                return;
+            }
+            for (Map.Entry<String,String> entry : watch.changes.entrySet()) {
+                Map<String,Object> change = new HashMap<String,Object>();
+                if (!entry.getKey().isEmpty())
+                    change.put("key", entry.getKey());
+                change.put("action", entry.getValue());
+                changes.add(change);
+            }
+            watch.changes.clear();
+            watch.flushScheduled = false;
+
+            if (watch.cancelled || changes.isEmpty() || !watch.socket.isOpen())
+                return;
+            watch.sending = true;
+        }
+
+        Map<String,Object> content = new HashMap<String,Object>();
+        content.put("changes", changes);
+        watch.socket.push(content, watch.msgid, new WriteCallback() {
+            public void writeSuccess() {
+                synchronized (watch) {
+                    watch.sending = false;
+                    if (watch.changes.isEmpty() || watch.flushScheduled)
+                        return;
+                    watch.flushScheduled = true;
+                }
+                scheduleFlush(watch);
+            }
+
+            public void writeFailed(Throwable cause) {
+                synchronized (watch) {
+                    watch.sending = false;
+                }
+                logger.debug("Unable to push watch notification", cause);
+            }
+        });
+    }
+
+    // -- external changes ------------------------------------------
+
+    private static synchronized void registerDirectory(
+        String directory, String origin) {
+
+        if (watchKeys.containsKey(origin)) return;
+
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() { pollEvents(); }
+                }, "hatch-key-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            File dir = new File(directory, origin);
+            if (!dir.exists()) dir.mkdirs();
+
+            WatchKey wkey = dir.toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+            watchKeys.put(origin, wkey);
+            watchDirs.put(origin, dir);
+
+        } catch (IOException e) {
+            logger.warn("Unable to watch directory for " + origin, e);
+        }
+    }
+
+    private static synchronized void unregisterDirectory(String origin) {
+        List<Watch> list = watches.get(origin);
+        if (list != null && !list.isEmpty()) return;
+        WatchKey wkey = watchKeys.remove(origin);
+        if (wkey != null) wkey.cancel();
+        watchDirs.remove(origin);
+
+        String prefix = origin + "/";
+        for (String key : written.keySet()) {
+            if (key.startsWith(prefix)) written.remove(key);
+        }
+    }
+
+    private static synchronized String originFor(WatchKey wkey) {
+        for (Map.Entry<String,WatchKey> entry : watchKeys.entrySet()) {
+            if (entry.getValue() == wkey) return entry.getKey();
+        }
+        return null;
+    }
+
+    /**
+     * Runs on the watcher thread, turning file system events into
+     * key changes.
+     */
+    private static void pollEvents() {
+        while (true) {
+            WatchKey wkey;
+            try {
+                wkey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            String origin = originFor(wkey);
+            List<Watch> list = origin == null ? null : watches.get(origin);
+
+            for (WatchEvent<?> event : wkey.pollEvents()) {
+                if (list == null) continue;
+
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    dispatch(list, null, "resync");
+                    continue;
+                }
+
+                String key = ((Path) event.context()).getFileName().toString();
+                String state = written.get(origin + "/" + key);
+                if (state != null) {
+                    File dir = watchDirs.get(origin);
+                    if (dir != null && state.equals(fileState(new File(dir, key))))
+                        continue; // still as we wrote it
+                    // changed since; later events are not ours either
+                    written.remove(origin + "/" + key, state);
+                }
+
+                dispatch(list, key,
+                    event.kind() == StandardWatchEventKinds.ENTRY_DELETE ?
+                        "remove" : "set");
+            }
+            wkey.reset();
+        }
+    }
+}
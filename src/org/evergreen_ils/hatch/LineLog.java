@@ -0,0 +1,232 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * An append-only log of JSON array records, one per line, which other
+ * Hatch processes sharing the profile directory may also append to or
+ * rewrite (see Coordinator).
+ *
+ * The log remembers how much of the file it has read, so records added
+ * by others can be read with readNew(), and notices when another
+ * process has replaced the file.  Callers serialize access.
+ */
+class LineLog {
+
+    /** Receives the records read from a log */
+    interface Handler {
+        void record(Object[] record);
+    }
+
+    private final File file;
+    private FileOutputStream fileOut;
+    private OutputStream out;
+
+    /** Bytes of the file read or written by us */
+    private long length = 0;
+
+    /** Identity of the file we read, where the file system has one */
+    private Object fileKey;
+
+    /** Records in the file */
+    private int records = 0;
+
+    /** Damaged records skipped since the log was loaded */
+    private int damaged = 0;
+
+    LineLog(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns true if records were skipped as damaged, or a record at
+     * the end was cut short, when the log was last read.
+     */
+    boolean isDamaged() {
+        return damaged > 0 || file.length() > length;
+    }
+
+    /**
+     * Reads the whole log.
+     */
+    void load(Handler handler) throws IOException {
+        close();
+        length = 0;
+        records = 0;
+        damaged = 0;
+        fileKey = fileKey();
+        if (!file.exists()) return;
+        read(handler);
+    }
+
+    /**
+     * Returns true if the file differs from what we last read or wrote.
+     */
+    boolean isStale() {
+        return file.length() != length || !equal(fileKey(), fileKey);
+    }
+
+    /**
+     * Returns true if the file has been replaced (rewritten by another
+     * process) since we last read it, so it must be loaded afresh.
+     */
+    boolean isReplaced() {
+        return file.length() < length || !equal(fileKey(), fileKey);
+    }
+
+    /**
+     * Reads the records added since we last read or wrote.
+     */
+    void readNew(Handler handler) throws IOException {
+        if (file.length() > length) read(handler);
+    }
+
+    private void read(Handler handler) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(length);
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                Object[] rec;
+                try {
+                    rec = (Object[]) JSON.parse(line);
+                } catch (RuntimeException e) {
+                    // the last record may be cut short by a crash, or
+                    // be still being written by another process
+                    if (next == null) break;
+                    rec = null; // damaged, but later records are not
+                    damaged++;
+                }
+                length += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (rec != null) {
+                    records++;
+                    handler.record(rec);
+                }
+                line = next;
+            }
+        }
+    }
+
+    /**
+     * Appends a record.  Callers have read the log to its end, and
+     * hold the Coordinator header lock if the log is shared, so any
+     * bytes past what was read are a record cut short by a crash: they
+     * are cut off, so that the new record starts a line of its own.
+     */
+    void append(Object[] record) throws IOException {
+        if (file.length() > length) truncate();
+        if (out == null) {
+            fileOut = new FileOutputStream(file, true);
+            out = new BufferedOutputStream(fileOut);
+            if (fileKey == null) fileKey = fileKey();
+        }
+        byte[] line = (JSON.toString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(line);
+        out.flush();
+        length += line.length;
+        records++;
+    }
+
+    private void truncate() throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+
+    /**
+     * Forces the records appended so far to disk.
+     */
+    void force() throws IOException {
+        if (fileOut != null) fileOut.getFD().sync();
+    }
+
+    /**
+     * Replaces the log with the given records.
+     */
+    void rewrite(Iterable<Object[]> contents) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        long written = 0;
+        int count = 0;
+        try (OutputStream tmpOut = new BufferedOutputStream(
+                new FileOutputStream(tmp))) {
+            for (Object[] record : contents) {
+                byte[] line = (JSON.toString(record) + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+                tmpOut.write(line);
+                written += line.length;
+                count++;
+            }
+        }
+
+        close();
+        Files.move(tmp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        length = written;
+        records = count;
+        fileKey = fileKey();
+    }
+
+    void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing left to write
+        }
+        out = null;
+        fileOut = null;
+    }
+
+    private Object fileKey() {
+        try {
+            return Files.readAttributes(
+                file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null; // no file yet
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
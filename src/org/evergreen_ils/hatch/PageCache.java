@@ -0,0 +1,229 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.web.WebView;
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * Recently rendered pages, so a reprint skips loading and laying out
+ * its document again.
+ *
+ * Print requests get a key when they arrive: a hash of the content,
+ * content type, page layout and rendering resolution, within the
+ * origin.  A later job with the same key reuses the earlier job's
+ * work:
+ *
+ * For a virtual printer, the rendered pages are kept, and the job is
+ * spooled straight from them without touching the WebEngine.  Entries
+ * are bounded by the size of their pixels.  Cached renderings are
+ * shared and must not be modified.
+ *
+ * For a physical printer, the WebView holding the laid-out document is
+ * kept, and the job is printed from it again: the WebEngine's output
+ * goes straight into the PrinterJob, so only the document, not the
+ * output, can be kept.  Each view holds a whole WebKit page, so views
+ * are off by default; when enabled, only maxViews are kept, and only
+ * for content under maxViewChars which was not spooled to disk.
+ *
+ * Both are kept in LRU order.  Views are only used on the FX thread.
+ */
+public class PageCache {
+
+    /** Params key under which a request's cache key is kept */
+    static final String KEY = "pageCache";
+
+    /** Total bytes of pixels to keep; 0 disables the cache */
+    private static long maxBytes = 32 * 1024 * 1024;
+
+    /** key => rendering, in access order */
+    private static final LinkedHashMap<String,VirtualPrinter.Render> renders =
+        new LinkedHashMap<String,VirtualPrinter.Render>(16, 0.75f, true);
+
+    /** Most laid-out views to keep for physical printers; 0 disables */
+    private static int maxViews = 0;
+
+    /** Largest content, in characters, whose view may be kept */
+    private static int maxViewChars = 64 * 1024;
+
+    /** key => laid-out view, in access order */
+    private static final LinkedHashMap<String,WebView> views =
+        new LinkedHashMap<String,WebView>(16, 0.75f, true);
+
+    private static long bytes = 0;
+    private static long renderHits = 0;
+    private static long renderMisses = 0;
+    private static long viewHits = 0;
+    private static long viewMisses = 0;
+
+    /**
+     * Sets the cache size, in bytes of rendered pixels.  0 disables it.
+     */
+    public static synchronized void setMaxBytes(long max) {
+        maxBytes = max;
+        trim();
+    }
+
+    /**
+     * Sets how many laid-out views are kept for reprinting to physical
+     * printers.  0 (the default) disables them.
+     */
+    public static synchronized void setMaxViews(int max) {
+        maxViews = Math.max(0, max);
+        trimViews();
+    }
+
+    /**
+     * Sets the largest print content, in characters, whose laid-out
+     * view may be kept.
+     */
+    public static synchronized void setMaxViewChars(int max) {
+        maxViewChars = Math.max(0, max);
+    }
+
+    /**
+     * Gives a print request its cache key.  Call while the content is
+     * still in memory.
+     *
+     * @param origin The requesting origin
+     * @param params The print request
+     */
+    @SuppressWarnings("unchecked")
+    static void fingerprint(String origin, Map<String,Object> params) {
+        Object content = params.get("content");
+        Object config = params.get("config");
+        if (!(content instanceof String) || !(config instanceof Map)) return;
+
+        Map<String,Object> settings = (Map<String,Object>) config;
+        boolean virtual =
+            VirtualPrinter.getByName((String) settings.get("printer")) != null;
+        if (virtual ? maxBytes <= 0 : maxViews <= 0) return;
+
+        // a view pins its whole document, so large ones aren't kept
+        if (!virtual && ((String) content).length() > maxViewChars) return;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            PrintDedup.update(digest, params.get("contentType"));
+            PrintDedup.update(digest,
+                JSON.toString(PrintDedup.canonical(settings.get("pageLayout"))));
+            PrintDedup.update(digest, VirtualPrinter.getDpi());
+            PrintDedup.update(digest, content);
+            StringBuilder key = new StringBuilder().append(origin).append("\0");
+            for (byte b : digest.digest()) key.append(String.format("%02x", b & 0xff));
+            params.put(KEY, key.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // always available
+        }
+    }
+
+    /**
+     * Returns the cached rendering of a print request, or null.
+     */
+    static synchronized VirtualPrinter.Render get(Map<String,Object> params) {
+        Object key = params.get(KEY);
+        if (!(key instanceof String)) return null;
+        VirtualPrinter.Render render = renders.get(key);
+        if (render != null) {
+            renderHits++;
+        } else {
+            renderMisses++;
+        }
+        return render;
+    }
+
+    /**
+     * Keeps the rendering of a print request which has a cache key.
+     */
+    static synchronized void put(Map<String,Object> params,
+        VirtualPrinter.Render render) {
+
+        Object key = params.get(KEY);
+        if (!(key instanceof String)) return;
+        long size = render.bytes();
+        if (size > maxBytes / 4 || renders.containsKey(key)) return;
+        renders.put((String) key, render);
+        bytes += size;
+        trim();
+    }
+
+    /**
+     * Returns the laid-out view of a print request, or null.
+     */
+    static synchronized WebView getView(Map<String,Object> params) {
+        Object key = params.get(KEY);
+        if (!(key instanceof String)) return null;
+        WebView view = views.get(key);
+        if (view != null) {
+            viewHits++;
+        } else {
+            viewMisses++;
+        }
+        return view;
+    }
+
+    /**
+     * Keeps the laid-out view of a print request which has a cache key.
+     * Views of spooled content are never kept.
+     */
+    static synchronized void putView(Map<String,Object> params, WebView view) {
+        Object key = params.get(KEY);
+        if (!(key instanceof String) || maxViews <= 0) return;
+        if (PrintSpool.get(params) != null) return;
+        views.put((String) key, view);
+        trimViews();
+    }
+
+    private static void trimViews() {
+        Iterator<WebView> it = views.values().iterator();
+        while (views.size() > maxViews && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static void trim() {
+        Iterator<VirtualPrinter.Render> it = renders.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns cache statistics.
+     */
+    public static synchronized Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("entries", renders.size());
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("views", views.size());
+        stats.put("maxViews", maxViews);
+        stats.put("maxViewChars", maxViewChars);
+        stats.put("renderHits", renderHits);
+        stats.put("renderMisses", renderMisses);
+        stats.put("viewHits", viewHits);
+        stats.put("viewMisses", viewMisses);
+        return stats;
+    }
+}
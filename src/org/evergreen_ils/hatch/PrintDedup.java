@@ -0,0 +1,278 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Coalesces duplicate print requests.
+ *
+ * A double-clicked print button, or a client retrying after a timeout,
+ * sends the same print request twice.  With a window set, each print
+ * job gets a key: the request's "jobKey" if the client sent one, or
+ * else a hash of its content, content type and printer settings, both
+ * scoped to the origin.  A request whose key matches a job still
+ * printing waits for that job and gets its reply.  One matching a job
+ * which succeeded less than windowMillis ago gets that job's reply at
+ * once.  Neither is rendered or spooled again.
+ *
+ * Jobs which show the print dialog are never coalesced, and a failed
+ * job does not answer later requests, so retrying after a failure
+ * prints.
+ */
+public class PrintDedup {
+
+    /** A print job whose duplicates are answered with its reply */
+    private static class Job {
+        final String key;
+        final HatchWebSocketHandler socket;
+        final Long msgid;
+
+        /** Duplicates waiting for the reply: socket, msgid pairs */
+        final List<Object[]> waiters = new ArrayList<Object[]>();
+
+        final long started = System.currentTimeMillis();
+
+        Object result;
+        boolean success;
+        long finished = 0;
+
+        Job(String key, HatchWebSocketHandler socket, Long msgid) {
+            this.key = key;
+            this.socket = socket;
+            this.msgid = msgid;
+        }
+    }
+
+    /** A job printing longer than this is presumed lost */
+    private static final long LOST_MILLIS = 5 * 60 * 1000;
+
+    /** How long a finished job answers duplicates; 0 = never coalesce */
+    private static long windowMillis = 0;
+
+    /** key => job in progress or finished within the window */
+    private static final Map<String,Job> byKey = new HashMap<String,Job>();
+
+    /** Jobs in progress, by connection, then msgid */
+    private static final Map<HatchWebSocketHandler,Map<Long,Job>> printing =
+        new HashMap<HatchWebSocketHandler,Map<Long,Job>>();
+
+    /** Finished jobs, oldest first */
+    private static final ArrayDeque<Job> finished = new ArrayDeque<Job>();
+
+    private static long coalesced = 0;
+
+    private static final Logger logger = Log.getLogger("PrintDedup");
+
+    /**
+     * Sets how long, in milliseconds, a printed job answers identical
+     * requests instead of printing again.  0, the default, turns
+     * coalescing off.
+     */
+    public static synchronized void setWindowMillis(long millis) {
+        windowMillis = millis;
+    }
+
+    /**
+     * Answers a print request from an identical job, if there is one;
+     * otherwise tracks the request as a new job.
+     *
+     * @param socket The requesting connection
+     * @param msgid The request's message ID
+     * @param params The print request
+     * @return true if the request was answered, or will be answered
+     * with another job's reply, so must not be queued
+     */
+    static boolean coalesce(HatchWebSocketHandler socket, Long msgid,
+        Map<String,Object> params) {
+
+        if (windowMillis <= 0) return false;
+        if (Boolean.TRUE.equals(params.get("showDialog"))) return false;
+
+        String key = key(socket.getOrigin(), params);
+        Job job;
+        synchronized (PrintDedup.class) {
+            purge();
+            job = byKey.get(key);
+            if (job == null) {
+                track(key, socket, msgid);
+                return false;
+            }
+            if (job.finished == 0
+                && System.currentTimeMillis() - job.started > LOST_MILLIS) {
+                // never replied to; its waiters wait on this one instead
+                logger.warn("Print job " + job.msgid + " never finished");
+                remove(job.socket, job.msgid);
+                track(key, socket, msgid).waiters.addAll(job.waiters);
+                return false;
+            }
+
+            coalesced++;
+            if (job.finished == 0) {
+                job.waiters.add(new Object[] {socket, msgid});
+                logger.info("Print request " + msgid
+                    + " waits for identical job " + job.msgid);
+                return true;
+            }
+        }
+
+        logger.info("Print request " + msgid
+            + " answered by identical job " + job.msgid);
+        socket.reply(job.result, msgid, job.success);
+        return true;
+    }
+
+    /**
+     * Stops tracking a request which was not queued after all.
+     * Anything waiting on it is told to retry.
+     */
+    static void cancel(HatchWebSocketHandler socket, Long msgid) {
+        Job job = remove(socket, msgid);
+        if (job == null) return;
+        synchronized (PrintDedup.class) {
+            byKey.remove(job.key);
+        }
+        for (Object[] waiter : job.waiters) {
+            ((HatchWebSocketHandler) waiter[0]).replyRetry(
+                "Too many print jobs queued", (Long) waiter[1], 1000);
+        }
+    }
+
+    /**
+     * Notes the reply to a request.  If it was a tracked print job, the
+     * same reply goes to its waiting duplicates and, if it succeeded,
+     * answers identical requests for the rest of the window.
+     */
+    static void replied(HatchWebSocketHandler socket, Long msgid,
+        Object result, boolean success) {
+
+        if (windowMillis <= 0) return;
+        Job job = remove(socket, msgid);
+        if (job == null) return;
+
+        synchronized (PrintDedup.class) {
+            job.result = result;
+            job.success = success;
+            job.finished = System.currentTimeMillis();
+            if (success) {
+                finished.add(job);
+            } else {
+                byKey.remove(job.key);
+            }
+        }
+
+        // no more waiters can be added once finished is set
+        for (Object[] waiter : job.waiters) {
+            ((HatchWebSocketHandler) waiter[0]).reply(
+                result, (Long) waiter[1], success);
+        }
+    }
+
+    /** Tracks a request as the job answering its key.  Callers lock. */
+    private static Job track(
+        String key, HatchWebSocketHandler socket, Long msgid) {
+
+        Job job = new Job(key, socket, msgid);
+        byKey.put(key, job);
+        Map<Long,Job> jobs = printing.get(socket);
+        if (jobs == null) {
+            jobs = new HashMap<Long,Job>();
+            printing.put(socket, jobs);
+        }
+        jobs.put(msgid, job);
+        return job;
+    }
+
+    private static synchronized Job remove(
+        HatchWebSocketHandler socket, Long msgid) {
+
+        Map<Long,Job> jobs = printing.get(socket);
+        if (jobs == null) return null;
+        Job job = jobs.remove(msgid);
+        if (jobs.isEmpty()) printing.remove(socket);
+        return job;
+    }
+
+    /** Drops finished jobs older than the window */
+    private static void purge() {
+        long cutoff = System.currentTimeMillis() - windowMillis;
+        while (!finished.isEmpty() && finished.peek().finished < cutoff) {
+            Job job = finished.poll();
+            if (byKey.get(job.key) == job) byKey.remove(job.key);
+        }
+    }
+
+    /**
+     * Returns the key of a print request: the client's jobKey, or a
+     * hash of what would be printed, within the origin.
+     */
+    static String key(String origin, Map<String,Object> params) {
+        Object jobKey = params.get("jobKey");
+        if (jobKey != null) return origin + "\0key\0" + jobKey;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, params.get("contentType"));
+            update(digest, JSON.toString(canonical(params.get("config"))));
+            update(digest, params.get("content"));
+            StringBuilder hex = new StringBuilder().append(origin).append("\0hash\0");
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // always available
+        }
+    }
+
+    static void update(MessageDigest digest, Object value) {
+        String text = value == null ? "" : value.toString();
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /** Orders map keys, so equal settings always encode the same */
+    @SuppressWarnings("unchecked")
+    static Object canonical(Object value) {
+        if (!(value instanceof Map)) return value;
+        Map<String,Object> sorted = new TreeMap<String,Object>();
+        for (Map.Entry<String,Object> e :
+                ((Map<String,Object>) value).entrySet()) {
+            sorted.put(e.getKey(), canonical(e.getValue()));
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns coalescing statistics.
+     */
+    public static synchronized Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("windowMillis", windowMillis);
+        stats.put("tracked", byKey.size());
+        stats.put("coalesced", coalesced);
+        return stats;
+    }
+}
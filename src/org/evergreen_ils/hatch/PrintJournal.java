@@ -0,0 +1,334 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Journal of accepted print jobs, so they survive a crash or restart.
+ *
+ * A print request with "durable": true is written to
+ * profileDirectory/print-journal before it is queued: its content to a
+ * file of its own, then a ["job", id, request, file, origin] record to
+ * the journal, both forced to disk.  The client is then told "Print job
+ * accepted" and may move on; it gets no further reply.  Once the job
+ * has printed (after endJob()), failed or been canceled, a ["done", id]
+ * record is added.  Outcomes are logged.
+ *
+ * On startup, jobs with no "done" record are queued again, so a job
+ * may print twice if Hatch dies just as it finishes, but an accepted
+ * job is never lost.
+ *
+ * Only one process sharing a profile directory holds the journal.
+ * Elsewhere, durable requests print and reply as usual.
+ */
+public class PrintJournal {
+
+    /** Stands in for the connection of journaled jobs, recording their outcome */
+    private static class Completion extends HatchWebSocketHandler {
+        private final String origin;
+
+        Completion(String origin) {
+            this.origin = origin;
+        }
+
+        @Override
+        public String getOrigin() {
+            return origin;
+        }
+
+        /** msgid is the journal ID of the job */
+        @Override
+        protected void reply(Object json, Long msgid, boolean success) {
+            if (success) {
+                logger.info("Journaled print job " + msgid + ": " + json);
+            } else {
+                logger.warn("Journaled print job " + msgid + " failed: " + json);
+            }
+            done(msgid);
+        }
+    }
+
+    /** Journal records kept before a rewrite drops finished jobs */
+    private static final int COMPACT_RECORDS = 1000;
+
+    private static File directory;
+    private static LineLog journal;
+    private static FileLock lock;
+    private static boolean unavailable = false;
+
+    private static long lastId = 0;
+
+    /** id => job record, for jobs not yet done */
+    private static final TreeMap<Long,Object[]> pending = new TreeMap<Long,Object[]>();
+
+    /** Completions of each live connection's jobs */
+    private static final Map<HatchWebSocketHandler,Completion> completions =
+        new WeakHashMap<HatchWebSocketHandler,Completion>();
+
+    private static long accepted = 0;
+    private static long replayed = 0;
+    private static long completed = 0;
+
+    private static final Logger logger = Log.getLogger("PrintJournal");
+
+    /**
+     * Opens the journal on first use, reading the jobs not yet done.
+     *
+     * @return False if the journal cannot be used
+     */
+    private static boolean open(String profileDirectory) {
+        if (journal != null) return true;
+        if (unavailable || profileDirectory == null) return false;
+
+        File dir = new File(profileDirectory, "print-journal");
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+                throw new IOException("Unable to create " + dir);
+
+            @SuppressWarnings("resource") // held until exit
+            FileChannel channel =
+                new RandomAccessFile(new File(dir, "lock"), "rw").getChannel();
+            lock = channel.tryLock();
+            if (lock == null) {
+                logger.warn("Print journal " + dir
+                    + " is held by another process; durable jobs print directly");
+                channel.close();
+                unavailable = true;
+                return false;
+            }
+
+            LineLog log = new LineLog(new File(dir, "journal"));
+            log.load(new LineLog.Handler() {
+                public void record(Object[] rec) {
+                    if (rec.length < 2 || !(rec[1] instanceof Number)) return;
+                    long id = ((Number) rec[1]).longValue();
+                    lastId = Math.max(lastId, id);
+                    if ("job".equals(rec[0])) {
+                        if (rec.length >= 5) pending.put(id, rec);
+                    } else {
+                        pending.remove(id);
+                    }
+                }
+            });
+            directory = dir;
+            journal = log;
+        } catch (IOException e) {
+            logger.warn("Unable to open print journal " + dir, e);
+            unavailable = true;
+            return false;
+        }
+
+        // a file no record refers to may belong to a damaged record
+        if (journal.isDamaged()) {
+            logger.warn("Print journal " + journal.getFile()
+                + " has damaged records; leaving unreferenced files in " + dir);
+        } else {
+            sweep();
+        }
+        return true;
+    }
+
+    /**
+     * Journals a durable print request, acknowledges it and queues it.
+     *
+     * @param socket The requesting connection
+     * @param msgid The request's message ID
+     * @param params The print request
+     * @param profileDirectory The profile directory
+     * @return True if the request was answered; false if it is not
+     * durable, or cannot be journaled, and must be printed as usual
+     */
+    static boolean accept(HatchWebSocketHandler socket, Long msgid,
+        Map<String,Object> params, String profileDirectory) {
+
+        if (!Boolean.TRUE.equals(params.get("durable"))) return false;
+        Object content = params.get("content");
+        if (!(content instanceof String)) return false;
+        String text = (String) content;
+
+        Completion completion;
+        long id;
+        synchronized (PrintJournal.class) {
+            if (!open(profileDirectory)) return false;
+
+            id = ++lastId;
+            File file = new File(directory,
+                id + PrintSpool.suffix((String) params.get("contentType")));
+            Object[] rec = new Object[] {
+                "job", id, record(params), file.getName(), socket.getOrigin()};
+            try {
+                PrintSpool.write(file, text, true);
+                journal.append(rec);
+                journal.force();
+            } catch (IOException e) {
+                logger.warn("Unable to journal print job; printing directly", e);
+                file.delete();
+                return false;
+            }
+            pending.put(id, rec);
+            accepted++;
+
+            completion = completions.get(socket);
+            if (completion == null) {
+                completion = new Completion(socket.getOrigin());
+                completions.put(socket, completion);
+            }
+            PrintSpool.attach(params, file, text.length());
+        }
+
+        socket.reply("Print job accepted", msgid);
+
+        params.put("socket", completion);
+        params.put("msgid", id);
+        if (!Hatch.enqueueMessage(params)) {
+            PrintSpool.release(params);
+            done(id);
+            socket.replyRetry("Too many print jobs queued", msgid, 1000);
+        }
+        return true;
+    }
+
+    /** Returns a request as journaled: without its connection or content */
+    private static Map<String,Object> record(Map<String,Object> params) {
+        Map<String,Object> copy = new HashMap<String,Object>(params);
+        copy.remove("socket");
+        copy.remove("content");
+        copy.remove(PrintSpool.KEY);
+        return copy;
+    }
+
+    /**
+     * Queues the jobs left undone when Hatch last stopped.
+     *
+     * @param profileDirectory The profile directory
+     */
+    @SuppressWarnings("unchecked") // journaled requests are JSON objects
+    static void replay(String profileDirectory) {
+        List<Map<String,Object>> jobs = new ArrayList<Map<String,Object>>();
+        synchronized (PrintJournal.class) {
+            if (!open(profileDirectory)) return;
+            compact();
+
+            Map<String,Completion> byOrigin = new HashMap<String,Completion>();
+            for (Object[] rec : new ArrayList<Object[]>(pending.values())) {
+                long id = ((Number) rec[1]).longValue();
+                File file = new File(directory, (String) rec[3]);
+                if (!file.exists()) {
+                    logger.warn("Content of journaled print job " + id + " is gone");
+                    done(id);
+                    continue;
+                }
+
+                Map<String,Object> params =
+                    new HashMap<String,Object>((Map<String,Object>) rec[2]);
+                String origin = (String) rec[4];
+                Completion completion = byOrigin.get(origin);
+                if (completion == null) {
+                    completion = new Completion(origin);
+                    byOrigin.put(origin, completion);
+                }
+                params.put("socket", completion);
+                params.put("msgid", id);
+                // length in characters is only used to weigh the job
+                PrintSpool.attach(params, file, file.length());
+                jobs.add(params);
+            }
+        }
+
+        for (Map<String,Object> params : jobs) {
+            if (Hatch.enqueueMessage(params)) {
+                synchronized (PrintJournal.class) {
+                    replayed++;
+                }
+            } else {
+                // stays in the journal for next time
+                PrintSpool.detach(params);
+                logger.warn("Print queue full; journaled print job "
+                    + params.get("msgid") + " waits for the next restart");
+            }
+        }
+        if (!jobs.isEmpty())
+            logger.info("Replayed " + jobs.size() + " journaled print jobs");
+    }
+
+    /**
+     * Marks a journaled job done.  The record is not forced to disk: if
+     * it is lost, the job prints again.
+     */
+    private static synchronized void done(long id) {
+        if (pending.remove(id) == null) return;
+        completed++;
+        try {
+            journal.append(new Object[] {"done", id});
+            if (journal.getRecords() > COMPACT_RECORDS
+                && journal.getRecords() > pending.size() * 2)
+                compact();
+        } catch (IOException e) {
+            logger.warn("Unable to journal completion of print job " + id, e);
+        }
+    }
+
+    /** Rewrites the journal with only the pending jobs.  Callers lock. */
+    private static void compact() {
+        try {
+            journal.rewrite(pending.values());
+        } catch (IOException e) {
+            logger.warn("Unable to compact " + journal.getFile(), e);
+        }
+    }
+
+    /** Deletes content files of jobs no longer pending.  Callers lock. */
+    private static void sweep() {
+        Set<String> keep = new HashSet<String>();
+        keep.add("lock");
+        keep.add(journal.getFile().getName());
+        for (Object[] rec : pending.values()) keep.add((String) rec[3]);
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!keep.contains(file.getName())) file.delete();
+        }
+    }
+
+    /**
+     * Returns journal statistics.
+     */
+    public static synchronized Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("open", journal != null);
+        stats.put("pending", pending.size());
+        stats.put("accepted", accepted);
+        stats.put("replayed", replayed);
+        stats.put("completed", completed);
+        return stats;
+    }
+}
@@ -22,6 +22,7 @@ import org.eclipse.jetty.util.log.Logger;
 // printing
 import javafx.print.*;
 import javafx.scene.web.WebEngine;
+import javafx.scene.web.WebView;
 import javafx.collections.ObservableSet;
 import javafx.collections.SetChangeListener;
 
@@ -65,6 +66,12 @@ public class PrintManager {
         Map<String,Object> settings = 
             (Map<String,Object>) params.get("config");
 
+        // virtual printers have no dialog; settings pass through as-is.
+        if (settings != null && VirtualPrinter.getByName(
+                (String) settings.get("printer")) != null) {
+            return settings;
+        }
+
         PrinterJob job = buildPrinterJob(settings);
         
         boolean approved = job.showPrintDialog(null);
@@ -84,12 +91,12 @@ public class PrintManager {
     /**
      * Print the requested page using the provided settings
      *
-     * @param engine The WebEngine instance to print
+     * @param view The WebView whose loaded page is to be printed
      * @param params Print request parameters
      */
-    public void print(WebEngine engine, Map<String,Object>params) {
+    public void print(WebView view, Map<String,Object>params) {
 
-        Long msgid = (Long) params.get("msgid");
+        Long msgid = msgid(params);
         Boolean showDialog = (Boolean) params.get("showDialog");
 
         Map<String,Object> settings = 
@@ -98,6 +105,16 @@ public class PrintManager {
         HatchWebSocketHandler socket = 
             (HatchWebSocketHandler) params.get("socket");
 
+        VirtualPrinter virtual = settings == null ? null :
+            VirtualPrinter.getByName((String) settings.get("printer"));
+
+        if (virtual != null) {
+            // virtual printers reply once their spooler has finished
+            virtual.print(view, settings, socket, msgid, params);
+            return;
+        }
+
+        WebEngine engine = view.getEngine();
         PrinterJob job = null;
 
         try {
@@ -131,9 +148,48 @@ public class PrintManager {
 
         job.endJob();
 
+        // kept for a reprint of the same document
+        PageCache.putView(params, view);
+
         socket.reply("Print job succeeded", msgid);
     }
 
+    /**
+     * Prints a request from its cached rendering or laid-out page (see
+     * PageCache), if there is one, without loading the page.
+     *
+     * @param params Print request parameters
+     * @return True if the request was printed from the cache
+     */
+    public boolean printCached(Map<String,Object> params) {
+        Map<String,Object> settings = 
+            (Map<String,Object>) params.get("config");
+
+        VirtualPrinter virtual = settings == null ? null :
+            VirtualPrinter.getByName((String) settings.get("printer"));
+
+        if (virtual == null) {
+            WebView view = PageCache.getView(params);
+            if (view == null) return false;
+            logger.info("Printing from a cached page");
+            print(view, params);
+            return true;
+        }
+
+        VirtualPrinter.Render render = PageCache.get(params);
+        if (render == null) return false;
+
+        virtual.print(render,
+            (HatchWebSocketHandler) params.get("socket"), msgid(params));
+        return true;
+    }
+
+    /** Returns the msgid of a request, however its number was decoded */
+    private static Long msgid(Map<String,Object> params) {
+        Object msgid = params.get("msgid");
+        return msgid instanceof Number ? ((Number) msgid).longValue() : null;
+    }
+
     /**
      * Constructs a PrinterJob based on the provided settings.
      *
@@ -400,6 +456,13 @@ public class PrintManager {
             logger.info("found printer " + printer.getName());            
         }
 
+        for (VirtualPrinter printer : VirtualPrinter.getPrinters()) {
+            HashMap<String, Object> printerMap = new HashMap<String, Object>();
+            printerMaps.add(printerMap);
+            printerMap.put("name", printer.getName());
+            printerMap.put("virtual", Boolean.TRUE);
+        }
+
         return printerMaps;
     }
 
@@ -0,0 +1,234 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Disk spool for large print content.
+ *
+ * Print jobs can wait in Hatch's print queue for a while.  Content of
+ * threshold characters or more is written to a file in
+ * profileDirectory/print-spool as soon as the request arrives, and the
+ * queued request holds only a Handle, so each waiting job costs the
+ * same heap however large its document.  The FX thread then loads the
+ * document from the file's URL instead of from one huge string.
+ *
+ * Files are written as UTF-8 with a byte order mark, which WebKit
+ * honors whatever the document declares.  A job's file is deleted
+ * once the job is done with it; files left by a crash are removed
+ * when the spool is next used.
+ */
+public class PrintSpool {
+
+    /** Spooled content of one print request */
+    static class Handle {
+        final File file;
+        final long length;
+
+        Handle(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        /** URL from which the WebEngine loads the content */
+        String getUrl() {
+            return file.toURI().toString();
+        }
+    }
+
+    /** Params key under which a request's Handle replaces "content" */
+    static final String KEY = "spool";
+
+    /** Spool files older than this were left by a crash */
+    private static final long STALE_MILLIS = 24 * 60 * 60 * 1000;
+
+    /** Content this long or longer (characters) is spooled; 0 = never */
+    private static int threshold = 256 * 1024;
+
+    private static File directory;
+
+    private static final AtomicLong spooled = new AtomicLong();
+    private static final AtomicLong spooledChars = new AtomicLong();
+    private static final AtomicLong active = new AtomicLong();
+
+    private static final Logger logger = Log.getLogger("PrintSpool");
+
+    /**
+     * Sets the content length, in characters, from which print content
+     * is spooled to disk.  0 keeps all content in memory.
+     */
+    public static void setThreshold(int chars) {
+        threshold = chars;
+    }
+
+    /**
+     * Returns the spool directory, creating it (and removing stale
+     * files) on first use.
+     */
+    private static synchronized File directory(String profileDirectory)
+        throws IOException {
+
+        if (directory != null) return directory;
+
+        File dir = new File(profileDirectory, "print-spool");
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Unable to create " + dir);
+
+        // another Hatch sharing the profile may still be using new ones
+        long now = System.currentTimeMillis();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (now - file.lastModified() > STALE_MILLIS) file.delete();
+            }
+        }
+
+        directory = dir;
+        return dir;
+    }
+
+    /**
+     * Moves a print request's content to a spool file, if it is long
+     * enough.  If the file cannot be written, the content stays in
+     * memory.
+     *
+     * @param params The print request
+     * @param profileDirectory The profile directory
+     */
+    static void spool(Map<String,Object> params, String profileDirectory) {
+        Object content = params.get("content");
+        if (threshold <= 0 || !(content instanceof String)) return;
+        String text = (String) content;
+        if (text.length() < threshold) return;
+
+        String suffix = suffix((String) params.get("contentType"));
+
+        File file = null;
+        try {
+            file = File.createTempFile("job", suffix, directory(profileDirectory));
+            write(file, text, false);
+        } catch (IOException e) {
+            logger.warn("Unable to spool print content; keeping it in memory", e);
+            if (file != null) file.delete();
+            return;
+        }
+
+        attach(params, file, text.length());
+        spooled.incrementAndGet();
+        spooledChars.addAndGet(text.length());
+        logger.info("Spooled " + text.length() + " chars of print content to "
+            + file.getName());
+    }
+
+    /**
+     * Returns the file name suffix for content of a type, so the
+     * WebEngine loads it as that type.
+     */
+    static String suffix(String contentType) {
+        return "text/plain".equals(contentType) ? ".txt" : ".html";
+    }
+
+    /**
+     * Writes print content to a file the WebEngine can load.
+     *
+     * @param sync If true, the file is forced to disk
+     */
+    static void write(File file, String text, boolean sync) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            out.write('\uFEFF'); // byte order mark
+            out.write(text);
+            out.flush();
+            if (sync) stream.getFD().sync();
+        }
+    }
+
+    /**
+     * Makes a request print from a content file in place of its
+     * "content".  release() deletes the file.
+     *
+     * @param length Length of the content in characters
+     */
+    static void attach(Map<String,Object> params, File file, long length) {
+        params.remove("content");
+        params.put(KEY, new Handle(file, length));
+        active.incrementAndGet();
+    }
+
+    /**
+     * Removes a request's Handle, leaving its file in place.
+     */
+    static void detach(Map<String,Object> params) {
+        if (params.remove(KEY) instanceof Handle) active.decrementAndGet();
+    }
+
+    /**
+     * Returns a request's spooled content, or null if it has none.
+     */
+    static Handle get(Map<String,Object> params) {
+        Object handle = params.get(KEY);
+        return handle instanceof Handle ? (Handle) handle : null;
+    }
+
+    /**
+     * Returns the length of a request's content, in characters,
+     * whether spooled or not.
+     */
+    static long contentLength(Map<String,Object> params) {
+        Handle handle = get(params);
+        if (handle != null) return handle.length;
+        Object content = params.get("content");
+        return content instanceof String ? ((String) content).length() : 0;
+    }
+
+    /**
+     * Deletes a request's spool file, once its content is no longer
+     * needed.  Safe to call more than once.
+     */
+    static void release(Map<String,Object> params) {
+        Object handle = params.remove(KEY);
+        if (!(handle instanceof Handle)) return;
+        active.decrementAndGet();
+        File file = ((Handle) handle).file;
+        if (!file.delete() && file.exists())
+            logger.warn("Unable to delete spool file " + file);
+    }
+
+    /**
+     * Returns spool statistics.
+     */
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("threshold", threshold);
+        stats.put("spooled", spooled.get());
+        stats.put("chars", spooledChars.get());
+        stats.put("active", active.get());
+        return stats;
+    }
+}
@@ -0,0 +1,302 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Per-origin storage quotas.
+ *
+ * Each origin's usage (bytes of stored values and number of keys) is
+ * counted once, when the origin is first written, and from then on
+ * kept current by Storage as each write changes it.  Checking a write
+ * against the quota is a comparison, not a directory scan.
+ *
+ * Limits of 0 mean no limit, which is the default.
+ *
+ * When other processes share the profile directory (see
+ * Coordinator), the counters live in the origin's coordination file,
+ * and every process charges its writes there under the header lock, so
+ * each sees the others' writes without counting again.  The first
+ * process to use an origin counts its values.
+ */
+public class Quotas {
+
+    /**
+     * Thrown when a write would take an origin over its quota.
+     */
+    public static class QuotaExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final String quota;
+        private final long limit;
+        private final long usage;
+
+        QuotaExceeded(String quota, long limit, long usage) {
+            super("Storage quota exceeded");
+            this.quota = quota;
+            this.limit = limit;
+            this.usage = usage;
+        }
+
+        /** Error details for the client */
+        public Map<String,Object> toMap() {
+            Map<String,Object> map = new HashMap<String,Object>();
+            map.put("message", getMessage());
+            map.put("quota", quota);
+            map.put("limit", limit);
+            map.put("usage", usage);
+            return map;
+        }
+    }
+
+    /** Usage counters for one origin */
+    public static class Usage {
+        private final String origin;
+
+        /** Holds the shared counters; null if not shared */
+        private final Coordinator coord;
+
+        private long bytes = 0;
+        private long keys = 0;
+        private boolean stale = false;
+
+        Usage(String origin, Coordinator coord) {
+            this.origin = origin;
+            this.coord = coord;
+        }
+
+        /**
+         * Takes up the shared counters, counting them first if no
+         * process has yet.
+         */
+        synchronized void load(StorageBackend backend) {
+            if (coord == null) {
+                count(backend);
+                return;
+            }
+            try (Coordinator.Held held = coord.lockHeader()) {
+                long[] shared = coord.getUsage();
+                if (shared != null) {
+                    bytes = shared[0];
+                    keys = shared[1];
+                    return;
+                }
+                count(backend);
+                if (held != null) coord.putUsage(bytes, keys);
+            }
+        }
+
+        /** Counts the origin's stored values afresh */
+        synchronized void count(StorageBackend backend) {
+            long start = System.currentTimeMillis();
+            bytes = 0;
+            keys = 0;
+            stale = false;
+            String[] all = backend.keys(null);
+            if (all == null) all = new String[0];
+            for (String key : all) {
+                long size = backend.size(key);
+                if (size < 0) continue;
+                bytes += size;
+                keys++;
+            }
+            logger.info("Storage usage for " + origin + ": " + keys
+                + " keys, " + bytes + " bytes; counted in "
+                + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        /**
+         * Applies a change in usage.  Changes which grow usage past a
+         * limit are refused; shrinking is always allowed.
+         *
+         * @param bytes Change in stored bytes
+         * @param keys Change in key count
+         * @throws QuotaExceeded if a limit would be passed
+         */
+        public synchronized void charge(long bytes, long keys) {
+            if (coord == null) {
+                apply(bytes, keys);
+                return;
+            }
+            try (Coordinator.Held held = coord.lockHeader()) {
+                if (held == null) {
+                    apply(bytes, keys);
+                    return;
+                }
+                refresh();
+                apply(bytes, keys);
+                coord.putUsage(this.bytes, this.keys);
+            }
+        }
+
+        /** Takes up the shared counters.  Callers hold the header lock. */
+        private void refresh() {
+            long[] shared = coord.getUsage();
+            if (shared == null) return;
+            this.bytes = shared[0];
+            this.keys = shared[1];
+        }
+
+        private void apply(long bytes, long keys) {
+            long[] limit = limits(origin);
+            if (bytes > 0 && limit[0] > 0 && this.bytes + bytes > limit[0])
+                throw new QuotaExceeded("bytes", limit[0], this.bytes);
+            if (keys > 0 && limit[1] > 0 && this.keys + keys > limit[1])
+                throw new QuotaExceeded("keys", limit[1], this.keys);
+            this.bytes += bytes;
+            this.keys += keys;
+        }
+
+        /**
+         * Returns usage and limits.
+         */
+        public synchronized Map<String,Object> toMap() {
+            if (coord != null) {
+                try (Coordinator.Held held = coord.lockHeader()) {
+                    if (held != null) refresh();
+                }
+            }
+            long[] limit = limits(origin);
+            Map<String,Object> map = new HashMap<String,Object>();
+            map.put("bytes", bytes);
+            map.put("keys", keys);
+            map.put("maxBytes", limit[0]);
+            map.put("maxKeys", limit[1]);
+            return map;
+        }
+    }
+
+    /** Limits for origins without their own: { bytes, keys } */
+    private static long[] defaultLimits = {0, 0};
+
+    /** cleaned origin => { bytes, keys } */
+    private static final Map<String,long[]> originLimits =
+        new ConcurrentHashMap<String,long[]>();
+
+    /** directory + "\0" + origin => usage */
+    private static final ConcurrentHashMap<String,Usage> usages =
+        new ConcurrentHashMap<String,Usage>();
+
+    private static final Logger logger = Log.getLogger("Quotas");
+
+    /**
+     * Sets the quota for origins without their own.
+     *
+     * @param maxBytes Most bytes of stored values; 0 for no limit
+     * @param maxKeys Most keys; 0 for no limit
+     */
+    public static void setQuota(long maxBytes, long maxKeys) {
+        defaultLimits = new long[] {maxBytes, maxKeys};
+    }
+
+    /**
+     * Sets the quota for one origin.
+     *
+     * @param origin The origin, as sent in the Origin header
+     * @param maxBytes Most bytes of stored values; 0 for no limit
+     * @param maxKeys Most keys; 0 for no limit
+     */
+    public static void setOriginQuota(String origin, long maxBytes, long maxKeys) {
+        originLimits.put(FileIO.cleanFileName(origin),
+            new long[] {maxBytes, maxKeys});
+    }
+
+    private static long[] limits(String origin) {
+        long[] limit = originLimits.get(origin);
+        return limit != null ? limit : defaultLimits;
+    }
+
+    /**
+     * Returns the usage counters of an origin, counting its stored
+     * values on first use.
+     *
+     * @param directory The profile directory
+     * @param origin The cleaned origin
+     * @param backend The origin's storage
+     * @param exact If true, stale counters are counted again even when
+     * the origin has no limits
+     */
+    static Usage usage(String directory, String origin,
+        StorageBackend backend, boolean exact) {
+
+        String id = directory + "\0" + origin;
+        Usage usage = usages.get(id);
+        if (usage == null) {
+            synchronized (usages) {
+                usage = usages.get(id);
+                if (usage == null) {
+                    usage = new Usage(origin,
+                        Coordinator.forOrigin(directory, origin));
+                    usage.load(backend);
+                    usages.put(id, usage);
+                    return usage;
+                }
+            }
+        }
+
+        if (exact || hasLimits(origin)) {
+            synchronized (usage) {
+                if (usage.stale) usage.count(backend);
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Marks an origin's counters stale, after other processes sharing
+     * the profile directory have written to it.  Counters kept in the
+     * coordination file are never stale.
+     */
+    static void invalidate(String directory, String origin) {
+        Usage usage = usages.get(directory + "\0" + origin);
+        if (usage == null || usage.coord != null) return;
+        synchronized (usage) {
+            usage.stale = true;
+        }
+    }
+
+    private static boolean hasLimits(String origin) {
+        long[] limit = limits(origin);
+        return limit[0] > 0 || limit[1] > 0;
+    }
+
+    /**
+     * Returns the number of bytes a value takes stored as UTF-8.
+     */
+    public static long utf8Length(String text) {
+        if (text == null) return 0;
+        long len = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+}
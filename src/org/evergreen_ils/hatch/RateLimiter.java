@@ -0,0 +1,206 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Token bucket request limits, per connection and per origin, and the
+ * per-origin weights used for fair scheduling.
+ *
+ * A request must take a token from both its connection's bucket and
+ * its origin's bucket.  When either is empty, the request is refused
+ * with a hint of how long until a token will be available.
+ *
+ * Both limits are off by default.  The origin bucket is a ceiling
+ * shared by all of an origin's connections, so one busy connection can
+ * spend it for the rest; fairness between connections comes from the
+ * round robin queues, not from these limits.
+ */
+public class RateLimiter {
+
+    /** A token bucket */
+    public static class Bucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        /**
+         * @param rate Tokens added per second; 0 for no limit.
+         * @param burst Bucket capacity
+         */
+        Bucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+        }
+
+        /**
+         * Takes a token if one is available.
+         *
+         * @return 0 on success, otherwise the number of milliseconds
+         * until a token will be available.
+         */
+        synchronized long acquire() {
+            if (rate <= 0) return 0;
+
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / rate));
+        }
+
+        /**
+         * Returns a token taken by acquire().
+         */
+        synchronized void refund() {
+            tokens = Math.min(burst, tokens + 1);
+        }
+    }
+
+    /** Requests per second allowed for a single connection; 0 = no limit */
+    private static double sessionRate = 0;
+    private static int sessionBurst = 0;
+
+    /** Requests per second shared by all connections of one origin */
+    private static double originRate = 0;
+    private static int originBurst = 0;
+
+    /** Per-origin overrides: origin => {rate, burst} */
+    private static final Map<String,double[]> originLimits =
+        new ConcurrentHashMap<String,double[]>();
+
+    /** Per-origin scheduling weights */
+    private static final Map<String,Integer> originWeights =
+        new ConcurrentHashMap<String,Integer>();
+
+    private static final ConcurrentHashMap<String,Bucket> originBuckets =
+        new ConcurrentHashMap<String,Bucket>();
+
+    private static final AtomicLong limited = new AtomicLong();
+
+    private static final Logger logger = Log.getLogger("RateLimiter");
+
+    /**
+     * Sets the default per-connection limit.
+     *
+     * @param rate Requests per second; 0 for no limit.
+     * @param burst Requests allowed at once after an idle period.
+     */
+    public static void setSessionLimit(double rate, int burst) {
+        sessionRate = rate;
+        sessionBurst = burst;
+    }
+
+    /**
+     * Sets the default per-origin limit, shared by all connections
+     * from the origin.
+     *
+     * @param rate Requests per second; 0 for no limit.
+     * @param burst Requests allowed at once after an idle period.
+     */
+    public static void setOriginLimit(double rate, int burst) {
+        originRate = rate;
+        originBurst = burst;
+        originBuckets.clear();
+    }
+
+    /**
+     * Sets the limit for one origin, overriding the default.
+     */
+    public static void setOriginLimit(String origin, double rate, int burst) {
+        originLimits.put(origin, new double[] {rate, burst});
+        originBuckets.remove(origin);
+    }
+
+    /**
+     * Sets an origin's share of storage and print capacity relative
+     * to other origins.  The default weight is 1.
+     */
+    public static void setOriginWeight(String origin, int weight) {
+        originWeights.put(origin, Math.max(1, weight));
+    }
+
+    /**
+     * Returns the scheduling weight for an origin.
+     */
+    public static int weightFor(String origin) {
+        Integer weight = origin == null ? null : originWeights.get(origin);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * Creates a bucket for a new connection.
+     */
+    static Bucket newSessionBucket() {
+        return new Bucket(sessionRate, sessionBurst);
+    }
+
+    private static Bucket originBucket(String origin) {
+        Bucket bucket = originBuckets.get(origin);
+        if (bucket == null) {
+            double[] limit = originLimits.get(origin);
+            bucket = limit == null ?
+                new Bucket(originRate, originBurst) :
+                new Bucket(limit[0], limit[1]);
+            Bucket existing = originBuckets.putIfAbsent(origin, bucket);
+            if (existing != null) bucket = existing;
+        }
+        return bucket;
+    }
+
+    /**
+     * Takes a token for one request.
+     *
+     * @param entry The requesting connection
+     * @return 0 if the request may proceed, otherwise the suggested
+     * retry delay in milliseconds.
+     */
+    public static long acquire(SessionRegistry.Entry entry) {
+        long wait = entry.limiter.acquire();
+        if (wait == 0) {
+            wait = originBucket(entry.origin).acquire();
+            if (wait == 0) return 0;
+            entry.limiter.refund();
+        }
+
+        if (limited.incrementAndGet() % 1000 == 1)
+            logger.warn("Rate limiting requests from " + entry.origin);
+        return wait;
+    }
+
+    /**
+     * Returns rate limiting statistics.
+     */
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("sessionRate", sessionRate);
+        stats.put("originRate", originRate);
+        stats.put("limited", limited.get());
+        return stats;
+    }
+}
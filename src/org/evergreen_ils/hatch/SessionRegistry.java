@@ -0,0 +1,359 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.frames.PingFrame;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Process-wide registry of connected websocket sessions.
+ *
+ * Tracks per-connection metrics, limits the number of connections
+ * from any one origin and runs a shared heartbeat which pings every
+ * client.  Connections which stop answering pings are dropped.  When
+ * configured, connections which have sent no requests for a long time
+ * and have nothing outstanding (no pending replies, no watches) are
+ * closed as well; idle eviction and the per-origin limit are off by
+ * default.
+ */
+public class SessionRegistry {
+
+    /** One connected client */
+    public static class Entry {
+        final HatchWebSocketHandler socket;
+        final Session session;
+        final String origin;
+        final String remoteAddress;
+        final long connectTime = System.currentTimeMillis();
+
+        volatile long lastRequest = connectTime;
+        volatile long lastPong = connectTime;
+
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicLong messagesIn = new AtomicLong();
+        final AtomicLong messagesOut = new AtomicLong();
+
+        /** Per-connection request limit */
+        final RateLimiter.Bucket limiter = RateLimiter.newSessionBucket();
+
+        /** msgids of requests which have not been replied to */
+        final Set<Long> pending =
+            java.util.Collections.newSetFromMap(
+                new ConcurrentHashMap<Long,Boolean>());
+
+        Entry(HatchWebSocketHandler socket, Session session, String origin) {
+            this.socket = socket;
+            this.session = session;
+            this.origin = origin;
+            this.remoteAddress = session.getRemoteAddress() == null ? null :
+                session.getRemoteAddress().getAddress().getHostAddress();
+        }
+
+        /**
+         * Records an incoming message.
+         *
+         * @param size Message size in bytes, as UTF-8 for text messages
+         */
+        public void received(long size) {
+            lastRequest = System.currentTimeMillis();
+            messagesIn.incrementAndGet();
+            bytesIn.addAndGet(size);
+        }
+
+        /**
+         * Records a request which expects a reply.
+         */
+        public void requested(Long msgid) {
+            pending.add(msgid);
+        }
+
+        /**
+         * Records an outgoing reply.
+         *
+         * @param size Message size in bytes, as UTF-8 for text messages
+         */
+        public void sent(Long msgid, long size) {
+            messagesOut.incrementAndGet();
+            bytesOut.addAndGet(size);
+            if (msgid != null) pending.remove(msgid);
+        }
+
+        /**
+         * Records a heartbeat response.
+         */
+        public void pong() {
+            lastPong = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns the number of requests awaiting a reply.
+         */
+        public int getInFlight() {
+            return pending.size();
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        Map<String,Object> toMap() {
+            long now = System.currentTimeMillis();
+            Map<String,Object> map = new HashMap<String,Object>();
+            map.put("origin", origin);
+            map.put("remoteAddress", remoteAddress);
+            map.put("connectTime", connectTime);
+            map.put("idleMillis", now - lastRequest);
+            map.put("lastPongMillis", now - lastPong);
+            map.put("inFlight", pending.size());
+            map.put("messagesIn", messagesIn.get());
+            map.put("messagesOut", messagesOut.get());
+            map.put("bytesIn", bytesIn.get());
+            map.put("bytesOut", bytesOut.get());
+            map.put("watches", KeyWatcher.watchCount(socket));
+            return map;
+        }
+    }
+
+    /** Milliseconds between pings; 0 disables the heartbeat */
+    private static long heartbeatMillis = 15000;
+
+    /** Heartbeats a client may miss before it is considered dead */
+    private static int missedHeartbeats = 3;
+
+    /** Close connections idle this long; 0 (the default) disables */
+    private static long idleMillis = 0;
+
+    /** Most connections from a single origin; 0 (default) means no limit */
+    private static int maxConnectionsPerOrigin = 0;
+
+    private static final ConcurrentHashMap<HatchWebSocketHandler,Entry>
+        entries = new ConcurrentHashMap<HatchWebSocketHandler,Entry>();
+
+    private static final AtomicLong totalConnections = new AtomicLong();
+    private static final AtomicLong rejectedConnections = new AtomicLong();
+    private static final AtomicLong evictedConnections = new AtomicLong();
+
+    private static ScheduledFuture<?> heartbeat;
+
+    private static final Logger logger = Log.getLogger("SessionRegistry");
+
+    /** Logs failed pings; the heartbeat drops the connection later */
+    private static final WriteCallback pingCallback = new WriteCallback() {
+        public void writeSuccess() {
+        }
+
+        public void writeFailed(Throwable cause) {
+            logger.debug("Ping failed", cause);
+        }
+    };
+
+    /**
+     * Sets the heartbeat interval.  Keep this well under the connector
+     * idleTimeout in hatch.xml, so the pongs keep healthy connections
+     * open.
+     *
+     * @param millis Interval in milliseconds; 0 disables pings.
+     */
+    public static void setHeartbeatMillis(long millis) {
+        heartbeatMillis = millis;
+    }
+
+    /**
+     * Sets how many heartbeats may go unanswered before a connection
+     * is dropped.
+     */
+    public static void setMissedHeartbeats(int count) {
+        missedHeartbeats = Math.max(1, count);
+    }
+
+    /**
+     * Sets how long a connection may go without sending a request
+     * before it is closed.  Connections with outstanding requests or
+     * watches are never considered idle.
+     *
+     * @param millis Idle time in milliseconds; 0 (the default)
+     * disables eviction.
+     */
+    public static void setIdleMillis(long millis) {
+        idleMillis = millis;
+    }
+
+    /**
+     * Sets the maximum number of concurrent connections per origin.
+     *
+     * @param max Connection limit; 0 (the default) for no limit.
+     */
+    public static void setMaxConnectionsPerOrigin(int max) {
+        maxConnectionsPerOrigin = max;
+    }
+
+    /**
+     * Adds a newly connected client.
+     *
+     * @return The registry entry, or null if the origin already has the
+     * maximum number of connections.
+     */
+    public static Entry register(
+        HatchWebSocketHandler socket, Session session, String origin) {
+
+        synchronized (SessionRegistry.class) {
+            if (maxConnectionsPerOrigin > 0
+                && countForOrigin(origin) >= maxConnectionsPerOrigin) {
+                rejectedConnections.incrementAndGet();
+                logger.warn("Connection limit reached for origin " + origin);
+                return null;
+            }
+
+            Entry entry = new Entry(socket, session, origin);
+            entries.put(socket, entry);
+            totalConnections.incrementAndGet();
+
+            if (heartbeat == null && heartbeatMillis > 0) {
+                heartbeat = HatchScheduler.repeat(new Runnable() {
+                    public void run() { sweep(); }
+                }, heartbeatMillis);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Removes a client.  Called when its connection closes.
+     */
+    public static void unregister(HatchWebSocketHandler socket) {
+        entries.remove(socket);
+    }
+
+    /**
+     * Returns the registry entry for a connection, or null.
+     */
+    public static Entry get(HatchWebSocketHandler socket) {
+        return entries.get(socket);
+    }
+
+    private static int countForOrigin(String origin) {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.origin.equals(origin)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Evicts dead and idle connections, then pings the rest.
+     */
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+
+        for (Entry entry : entries.values()) {
+            Session session = entry.session;
+
+            if (!session.isOpen()) {
+                entries.remove(entry.socket);
+                continue;
+            }
+
+            if (now - entry.lastPong > heartbeatMillis * missedHeartbeats) {
+                logger.info("Dropping unresponsive connection from "
+                    + entry.origin + " " + entry.remoteAddress);
+                evictedConnections.incrementAndGet();
+                entries.remove(entry.socket);
+                try {
+                    session.disconnect();
+                } catch (IOException e) {
+                    logger.debug(e);
+                }
+                continue;
+            }
+
+            if (idleMillis > 0 && now - entry.lastRequest > idleMillis
+                && entry.pending.isEmpty()
+                && KeyWatcher.watchCount(entry.socket) == 0) {
+                logger.info("Closing idle connection from "
+                    + entry.origin + " " + entry.remoteAddress);
+                evictedConnections.incrementAndGet();
+                entries.remove(entry.socket);
+                session.close(StatusCode.SHUTDOWN, "Idle timeout");
+                continue;
+            }
+
+            ping(session);
+        }
+    }
+
+    /**
+     * Pings a client without waiting for the ping to be written, so
+     * one slow client does not hold up the heartbeat of the rest.
+     */
+    private static void ping(Session session) {
+        try {
+            RemoteEndpoint remote = session.getRemote();
+            if (remote instanceof WebSocketRemoteEndpoint) {
+                ((WebSocketRemoteEndpoint) remote)
+                    .uncheckedSendFrame(new PingFrame(), pingCallback);
+            } else {
+                remote.sendPing(ByteBuffer.allocate(0));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Ping failed", e);
+        }
+    }
+
+    /**
+     * Returns connection statistics.  Only totals are given for other
+     * origins; counts and details are for the given origin's
+     * connections.
+     *
+     * @param origin The requesting origin
+     */
+    public static Map<String,Object> getStats(String origin) {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        List<Map<String,Object>> sessions = new ArrayList<Map<String,Object>>();
+        long inFlight = 0;
+
+        for (Entry entry : entries.values()) {
+            if (!entry.origin.equals(origin)) continue;
+            inFlight += entry.pending.size();
+            sessions.add(entry.toMap());
+        }
+
+        stats.put("connections", entries.size());
+        stats.put("originConnections", sessions.size());
+        stats.put("inFlight", inFlight);
+        stats.put("totalConnections", totalConnections.get());
+        stats.put("rejectedConnections", rejectedConnections.get());
+        stats.put("evictedConnections", evictedConnections.get());
+        stats.put("sessions", sessions);
+        return stats;
+    }
+}
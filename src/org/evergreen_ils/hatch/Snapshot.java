@@ -0,0 +1,327 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Snapshot archives of an origin's storage.
+ *
+ * An archive is MAGIC, the creation time and the origin's change
+ * sequence (see ChangeLog), then one entry per key:
+ *
+ *   int key length, key (UTF-8), byte format, long deadline (0 for
+ *   none), long value length (UTF-8 bytes), long data length, data
+ *
+ * and an int -1.  Format TEXT data is the value as UTF-8; STORED data
+ * is a FileIO file as it lies on disk, compressed or not, copied with
+ * FileChannel.transferTo() so it never passes through the heap.
+ *
+ * Archives are written to a temporary file and renamed into place, so
+ * a present archive is complete.  Storage keeps the view point-in-time
+ * without stopping writers: before a key is first written during a
+ * snapshot, its old value is archived (see Storage.preserve()).
+ */
+public class Snapshot {
+
+    private static final byte[] MAGIC = {'H', 'S', 'N', '1'};
+
+    /** Entry formats */
+    static final int TEXT = 0;
+    static final int STORED = 1;
+
+    /** storage id => snapshots being written */
+    private static final ConcurrentHashMap<String,List<Writer>> active =
+        new ConcurrentHashMap<String,List<Writer>>();
+
+    /**
+     * Returns the snapshots being written for a storage id, or null
+     * if there are none.
+     */
+    static List<Writer> active(String storageId) {
+        if (active.isEmpty()) return null;
+        return active.get(storageId);
+    }
+
+    /**
+     * An archive being written.  Entries come from the snapshot's own
+     * pass over the keys and from writers preserving old values; each
+     * key is claimed once, under its Storage lock.
+     */
+    static class Writer implements Closeable {
+        private final String storageId;
+        private final File target;
+        private final File tmp;
+        private final FileChannel out;
+        private final Set<String> claimed =
+            ConcurrentHashMap.<String>newKeySet();
+        private final long created;
+        private final long seq;
+        private long keys = 0;
+        private IOException failure;
+
+        Writer(String storageId, File target, long seq) throws IOException {
+            this.storageId = storageId;
+            this.target = target;
+            this.tmp = new File(target.getPath() + ".tmp");
+            this.created = System.currentTimeMillis();
+            this.seq = seq;
+            this.out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 16);
+            header.put(MAGIC).putLong(created).putLong(seq).flip();
+            writeFully(header);
+
+            synchronized (active) {
+                List<Writer> list = active.get(storageId);
+                if (list == null) {
+                    list = new CopyOnWriteArrayList<Writer>();
+                    active.put(storageId, list);
+                }
+                list.add(this);
+            }
+        }
+
+        /**
+         * Claims a key for this snapshot.
+         *
+         * @return true if the key's value is still to be archived
+         */
+        boolean claim(String key) {
+            return claimed.add(key);
+        }
+
+        /** Archives a value held as text */
+        synchronized void addText(String key, long deadline, String text) {
+            if (failure != null) return;
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            try {
+                writeEntry(key, TEXT, deadline, data.length, data.length);
+                writeFully(ByteBuffer.wrap(data));
+                keys++;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /** Archives a FileIO file as stored */
+        synchronized void addFile(String key, long deadline, long size, File file) {
+            if (failure != null) return;
+            try (FileChannel in = FileChannel.open(
+                    file.toPath(), StandardOpenOption.READ)) {
+                long length = in.size();
+                writeEntry(key, STORED, deadline, size, length);
+                long pos = 0;
+                while (pos < length) pos += in.transferTo(pos, length - pos, out);
+                keys++;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void writeEntry(String key, int format, long deadline,
+            long size, long length) throws IOException {
+
+            byte[] name = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(4 + name.length + 25);
+            header.putInt(name.length).put(name).put((byte) format)
+                .putLong(deadline).putLong(size).putLong(length).flip();
+            writeFully(header);
+        }
+
+        private void writeFully(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) out.write(buf);
+        }
+
+        /**
+         * Ends the archive and moves it into place.
+         *
+         * @return The number of keys archived
+         * @throws IOException if any entry could not be written
+         */
+        synchronized long finish() throws IOException {
+            if (failure != null) throw failure;
+            writeFully((ByteBuffer) ByteBuffer.allocate(4).putInt(-1).flip());
+            out.force(false);
+            out.close();
+            Files.move(tmp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            return keys;
+        }
+
+        long getCreated() {
+            return created;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+
+        /** Stops the snapshot; an unfinished archive is discarded */
+        public synchronized void close() {
+            synchronized (active) {
+                List<Writer> list = active.get(storageId);
+                if (list != null) {
+                    list.remove(this);
+                    if (list.isEmpty()) active.remove(storageId);
+                }
+            }
+            if (out.isOpen()) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // discarded below
+                }
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of an archive in order.  Entry data is left in
+     * the file, to be copied from getChannel() or read by text().
+     */
+    static class Reader implements Closeable {
+        private final File file;
+        private final FileChannel in;
+        private final long created;
+        private final long seq;
+        private long position;
+
+        String key;
+        int format;
+        long deadline;
+        long size;
+        long dataPosition;
+        long dataLength;
+
+        Reader(File file) throws IOException {
+            this.file = file;
+            this.in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer header = read(0, MAGIC.length + 16);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                in.close();
+                throw new IOException(file.getName() + " is not a snapshot");
+            }
+            created = header.getLong();
+            seq = header.getLong();
+            position = MAGIC.length + 16;
+        }
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return false at the end of the archive
+         * @throws IOException if the archive is cut short
+         */
+        boolean next() throws IOException {
+            int nameLength = read(position, 4).getInt();
+            if (nameLength < 0) return false;
+
+            ByteBuffer header = read(position + 4, nameLength + 25);
+            byte[] name = new byte[nameLength];
+            header.get(name);
+            key = new String(name, StandardCharsets.UTF_8);
+            format = header.get();
+            deadline = header.getLong();
+            size = header.getLong();
+            dataLength = header.getLong();
+            dataPosition = position + 4 + nameLength + 25;
+
+            position = dataPosition + dataLength;
+            if (position > in.size())
+                throw new EOFException(file.getName() + " is truncated");
+            return true;
+        }
+
+        /** Returns the current entry's value */
+        String text() throws IOException {
+            if (dataLength > Integer.MAX_VALUE)
+                throw new IOException(key + " is too large to read");
+            byte[] data = read(dataPosition, (int) dataLength).array();
+            return format == STORED ?
+                FileIO.decodeStored(data) :
+                new String(data, StandardCharsets.UTF_8);
+        }
+
+        FileChannel getChannel() {
+            return in;
+        }
+
+        long getCreated() {
+            return created;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+
+        private ByteBuffer read(long pos, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (in.read(buf, pos + buf.position()) < 0)
+                    throw new EOFException(file.getName() + " is truncated");
+            }
+            buf.flip();
+            return buf;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the archives in a directory as {name, bytes, modified}.
+     */
+    static List<Object> list(File dir) {
+        List<Object> list = new ArrayList<Object>();
+        File[] files = dir.listFiles();
+        if (files == null) return list;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.isFile() || file.getName().endsWith(".tmp")) continue;
+            Map<String,Object> entry = new HashMap<String,Object>();
+            entry.put("name", file.getName());
+            entry.put("bytes", file.length());
+            entry.put("modified", file.lastModified());
+            list.add(entry);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,945 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Storage for one origin, as used by the request handler.
+ *
+ * Chooses the backend configured for the origin and applies the
+ * behavior common to all backends: change notification, parsed value
+ * caching, key expiry, quotas, write-behind, the change log and
+ * snapshots.
+ *
+ * Backends:
+ *   "file" - FileIO: one file per key under profileDirectory/origin
+ *   "kv"   - KVStore: a single B-tree file, profileDirectory/origin.kv
+ */
+public class Storage implements StorageBackend {
+
+    /**
+     * Thrown when a conditional write finds the value has changed.
+     */
+    public static class VersionConflict extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final String version;
+
+        VersionConflict(String version) {
+            super("Version mismatch");
+            this.version = version;
+        }
+
+        /** The current version, or null if the key does not exist */
+        public String getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Writes to a key are serialized on one of these, so a patch's read,
+     * modify and write cannot interleave with other writes to the key.
+     */
+    private static final ReentrantLock[] keyLocks =
+        new ReentrantLock[Coordinator.STRIPES];
+    static {
+        for (int i = 0; i < keyLocks.length; i++) keyLocks[i] = new ReentrantLock();
+    }
+
+    /**
+     * A key's lock, held in this process and, when storage is shared
+     * with other processes (see Coordinator), in them too.
+     */
+    private static class KeyLock implements AutoCloseable {
+        private final ReentrantLock lock;
+        private final Coordinator.Held held;
+
+        KeyLock(ReentrantLock lock, Coordinator.Held held) {
+            this.lock = lock;
+            this.held = held;
+        }
+
+        public void close() {
+            try {
+                if (held != null) held.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Most bytes returned by one readRange() */
+    private static int maxRangeBytes = 1024 * 1024;
+
+    /** Backend used by origins without their own setting */
+    private static String defaultBackend = "file";
+
+    /** origin => backend type */
+    private static final Map<String,String> originBackends =
+        new ConcurrentHashMap<String,String>();
+
+    /** Open KV stores, by file path */
+    private static final ConcurrentHashMap<String,KVStore> stores =
+        new ConcurrentHashMap<String,KVStore>();
+
+    private static final Logger logger = Log.getLogger("Storage");
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() { closeAll(); }
+        }, "hatch-storage-shutdown"));
+    }
+
+    /** Profile directory */
+    private final String directory;
+
+    /** Origin, cleaned for use in file names */
+    private final String origin;
+
+    private final StorageBackend backend;
+
+    /** Coordination with other processes; null if not shared */
+    private final Coordinator coord;
+
+    /**
+     * Sets the default storage backend.
+     *
+     * @param type "file" or "kv"
+     */
+    public static void setBackend(String type) {
+        checkType(type);
+        defaultBackend = type;
+    }
+
+    /**
+     * Sets the most bytes returned by one read-range request.
+     */
+    public static void setMaxRangeBytes(int bytes) {
+        maxRangeBytes = bytes;
+    }
+
+    /**
+     * Sets the storage backend for one origin.
+     *
+     * @param origin The origin, as sent in the Origin header
+     * @param type "file" or "kv"
+     */
+    public static void setOriginBackend(String origin, String type) {
+        checkType(type);
+        originBackends.put(FileIO.cleanFileName(origin), type);
+    }
+
+    private static void checkType(String type) {
+        if (!"file".equals(type) && !"kv".equals(type))
+            throw new IllegalArgumentException("Unknown storage backend " + type);
+    }
+
+    /**
+     * Returns storage for an origin.
+     *
+     * @param directory The profile directory
+     * @param origin Origin domain of the request
+     */
+    public static Storage open(String directory, String origin) {
+        return new Storage(directory, FileIO.cleanFileName(origin));
+    }
+
+    private Storage(String directory, String origin) {
+        this.directory = directory;
+        this.origin = origin;
+
+        String type = originBackends.get(origin);
+        if (type == null) type = defaultBackend;
+
+        StorageBackend kv = null;
+        if ("kv".equals(type)) {
+            try {
+                kv = store(new File(directory, origin + ".kv"));
+            } catch (IOException e) {
+                logger.warn("Unable to open KV store for " + origin
+                    + "; using file storage", e);
+            }
+        }
+        backend = kv != null ? kv : new FileIO(directory, origin);
+        coord = Coordinator.forOrigin(directory, origin);
+    }
+
+    private static KVStore store(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        KVStore store = stores.get(path);
+        if (store != null) return store;
+
+        synchronized (stores) {
+            store = stores.get(path);
+            if (store == null) {
+                store = new KVStore(file);
+                stores.put(path, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Writes pending write-behind values and closes all open KV stores.
+     * Called at shutdown.
+     */
+    public static void closeAll() {
+        WriteBehind.flushAll(null);
+        synchronized (stores) {
+            for (KVStore store : stores.values()) store.close();
+            stores.clear();
+        }
+    }
+
+    /**
+     * Returns an identifier for this origin's storage.
+     */
+    String getId() {
+        return directory + "\0" + origin;
+    }
+
+    private String id(String key) {
+        return getId() + "\0" + key;
+    }
+
+    /**
+     * Returns the backend in use.
+     */
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Returns the lock stripe of a key.
+     */
+    static int stripe(String origin, String key) {
+        int hash = (origin.hashCode() * 31 + key.hashCode()) & 0x7fffffff;
+        return hash % keyLocks.length;
+    }
+
+    /**
+     * Locks a key.  When shared with other processes, also brings
+     * cached state up to date with their writes.
+     *
+     * @param write True if the key may be changed under the lock
+     */
+    private KeyLock lock(String key, boolean write) {
+        int stripe = stripe(origin, key);
+        ReentrantLock lock = keyLocks[stripe];
+        lock.lock();
+        if (coord == null) return new KeyLock(lock, null);
+
+        Coordinator.Held held = coord.lockStripe(stripe, write);
+        sync();
+        return new KeyLock(lock, held);
+    }
+
+    /**
+     * Drops whatever this process has cached of values other processes
+     * sharing the profile directory have changed since.
+     */
+    private void sync() {
+        if (coord == null) return;
+        coord.sync(new Coordinator.Listener() {
+            public void changed(boolean[] stripes) {
+                DocCache.invalidate(origin, stripes);
+                FileIO.dropRecordIndexes(new File(directory, origin));
+                if (backend instanceof KVStore) ((KVStore) backend).refresh();
+                Quotas.invalidate(directory, origin);
+                KeyExpiry.refresh(directory, origin);
+                ChangeLog.refresh(directory, origin);
+            }
+        });
+    }
+
+    public boolean set(String key, String text) {
+        return set(key, text, 0);
+    }
+
+    /**
+     * Replaces the value of a key, optionally with a time to live.
+     * Without one, any earlier expiry of the key is cleared.
+     *
+     * @param ttl Milliseconds until the key is removed; 0 for never
+     * @return success or failure
+     * @throws Quotas.QuotaExceeded if the value does not fit the quota
+     */
+    @SuppressWarnings("try")
+    public boolean set(String key, String text, long ttl) {
+        if (ttl == 0 && text != null && WriteBehind.applies(key)) {
+            setBehind(key, text);
+            return true;
+        }
+
+        boolean ok;
+        try (KeyLock locked = lock(key, true)) {
+            ok = write(key, text);
+            if (ok) KeyExpiry.setDeadline(directory, origin, key,
+                ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+        }
+        if (!ok) return false;
+        KeyWatcher.changed(origin, key, "set");
+        return true;
+    }
+
+    public boolean append(String key, String text) {
+        return append(key, text, 0);
+    }
+
+    /**
+     * Appends to the value of a key, optionally resetting its time to
+     * live.  Without one, the key keeps any expiry it already has.
+     *
+     * @param ttl Milliseconds until the key is removed; 0 to leave
+     * the expiry as is
+     * @return success or failure
+     * @throws Quotas.QuotaExceeded if the value does not fit the quota
+     */
+    @SuppressWarnings("try")
+    public boolean append(String key, String text, long ttl) {
+        boolean ok;
+        try (KeyLock locked = lock(key, true)) {
+            preserve(key);
+            if (!flushLocked(key)) return false;
+            dropIfExpired(key);
+
+            long bytes = Quotas.utf8Length(text);
+            long keys = backend.size(key) < 0 ? 1 : 0;
+            Quotas.Usage usage = counters();
+            usage.charge(bytes, keys);
+
+            ok = backend.append(key, text);
+            DocCache.invalidate(origin, key);
+            if (!ok) usage.charge(-bytes, -keys);
+            if (ok) ChangeLog.record(directory, origin, key, false);
+            if (ok && ttl > 0) KeyExpiry.setDeadline(
+                directory, origin, key, System.currentTimeMillis() + ttl);
+        }
+        if (!ok) return false;
+        KeyWatcher.changed(origin, key, "append");
+        return true;
+    }
+
+    /**
+     * Holds a set in the write-behind buffer, charging the quota and
+     * telling watchers now, as though it had been written.
+     */
+    @SuppressWarnings("try")
+    private void setBehind(String key, String text) {
+        if (backend instanceof FileIO) text = FileIO.joinLines(text);
+        try (KeyLock locked = lock(key, true)) {
+            preserve(key);
+            String pending = WriteBehind.get(id(key));
+            long old = pending != null ?
+                Quotas.utf8Length(pending) : backend.size(key);
+            counters().charge(Quotas.utf8Length(text) - Math.max(old, 0),
+                old < 0 ? 1 : 0);
+
+            WriteBehind.put(id(key), this, key, text);
+            DocCache.invalidate(origin, key);
+            KeyExpiry.setDeadline(directory, origin, key, 0);
+            ChangeLog.record(directory, origin, key, false);
+        }
+        KeyWatcher.changed(origin, key, "set");
+    }
+
+    /**
+     * Writes a key's pending write-behind value, if it has one.
+     *
+     * @return true if a value was written
+     */
+    @SuppressWarnings("try")
+    boolean flush(String key) {
+        try (KeyLock locked = lock(key, true)) {
+            return WriteBehind.get(id(key)) != null && flushLocked(key);
+        }
+    }
+
+    /**
+     * Writes all of this origin's pending write-behind values.
+     *
+     * @return The number of values written
+     */
+    public int flushAll() {
+        return WriteBehind.flushAll(getId());
+    }
+
+    /**
+     * flush(), for callers which hold the key's lock.  A value which
+     * cannot be written is kept for another try.
+     *
+     * @return false if the key still has a pending value
+     */
+    private boolean flushLocked(String key) {
+        String text = WriteBehind.take(id(key));
+        if (text == null) return true;
+
+        if (backend.set(key, text)) {
+            KeyWatcher.written(origin, key);
+            return true;
+        }
+
+        logger.warn("Unable to write pending value of " + key
+            + "; trying again later");
+        WriteBehind.retry(id(key), this, key, text);
+        return false;
+    }
+
+    /**
+     * Removes a key which is past its deadline but not yet expired, so
+     * a write starts from an empty value.  Callers hold the key's lock.
+     */
+    private void dropIfExpired(String key) {
+        if (!KeyExpiry.isExpired(directory, origin, key)) return;
+        delete(key);
+        KeyExpiry.setDeadline(directory, origin, key, 0);
+    }
+
+    /**
+     * Replaces a value, keeping usage counts and the change log
+     * current.  Callers hold the key's lock.
+     *
+     * @throws Quotas.QuotaExceeded if the value does not fit the quota
+     */
+    private boolean write(String key, String text) {
+        preserve(key);
+        if (!flushLocked(key)) return false;
+        long old = backend.size(key);
+        long bytes = Quotas.utf8Length(text) - Math.max(old, 0);
+        long keys = old < 0 ? 1 : 0;
+        Quotas.Usage usage = counters();
+        usage.charge(bytes, keys);
+
+        boolean ok = backend.set(key, text);
+        DocCache.invalidate(origin, key);
+        if (!ok) usage.charge(-bytes, -keys);
+        if (ok) ChangeLog.record(directory, origin, key, false);
+        return ok;
+    }
+
+    /**
+     * Removes a value, keeping usage counts and the change log current.
+     * Callers hold the key's lock.
+     */
+    private boolean delete(String key) {
+        preserve(key);
+        if (!flushLocked(key)) return false;
+        long old = backend.size(key);
+        boolean ok = backend.remove(key);
+        DocCache.invalidate(origin, key);
+        if (ok && old >= 0) counters().charge(-old, -1);
+        if (ok) ChangeLog.record(directory, origin, key, true);
+        return ok;
+    }
+
+    /**
+     * Returns the origin's storage usage counters.
+     */
+    public Quotas.Usage usage() {
+        sync();
+        return Quotas.usage(directory, origin, backend, true);
+    }
+
+    /**
+     * Returns the usage counters for charging a write.  Callers hold
+     * the key's lock, so are already in sync with other processes.
+     */
+    private Quotas.Usage counters() {
+        return Quotas.usage(directory, origin, backend, false);
+    }
+
+    /**
+     * Returns the keys changed or removed after a change sequence
+     * number.  See ChangeLog.since().
+     */
+    public Map<String,Object> changesSince(long since, int limit) {
+        sync();
+        return ChangeLog.since(directory, origin, since, limit);
+    }
+
+    /**
+     * Removes a key whose time to live has run out, unless it has been
+     * given a new deadline since.
+     *
+     * @param deadline The deadline which passed
+     * @return true if the key was removed
+     */
+    @SuppressWarnings("try")
+    boolean expire(String key, long deadline) {
+        boolean existed;
+        try (KeyLock locked = lock(key, true)) {
+            if (KeyExpiry.getDeadline(directory, origin, key) != deadline)
+                return false;
+            existed = WriteBehind.get(id(key)) != null
+                || backend.size(key) >= 0;
+            // a key which is already gone is expired all the same
+            if (!delete(key) && backend.size(key) >= 0) return false;
+            KeyExpiry.setDeadline(directory, origin, key, 0);
+        }
+        if (existed) KeyWatcher.changed(origin, key, "expire");
+        return true;
+    }
+
+    /**
+     * Applies a JSON Patch or merge patch (see JsonPatch) to the value
+     * of a key.  The read, patch and write happen under the key's lock,
+     * so concurrent patches to different parts of a value all apply.
+     *
+     * @param key The key
+     * @param patch The parsed patch
+     * @param expected If not null, the version (see version()) the
+     * value must still have; "" requires that the key not exist.
+     * @return The new version, or null if the value could not be stored
+     * @throws VersionConflict if the expected version does not match
+     * @throws Quotas.QuotaExceeded if the new value does not fit
+     * @throws IllegalArgumentException if the patch does not apply
+     * @throws IllegalStateException if the stored value is not JSON
+     */
+    @SuppressWarnings("try")
+    public String patch(String key, Object patch, String expected) {
+        String text;
+        try (KeyLock locked = lock(key, true)) {
+            if (!flushLocked(key)) return null;
+            dropIfExpired(key);
+            String current = backend.get(key);
+            if (expected != null) {
+                String version = version(current);
+                if (!expected.equals(version == null ? "" : version))
+                    throw new VersionConflict(version);
+            }
+
+            Object doc = current == null ? null : JSON.parse(current);
+            text = JSON.toString(JsonPatch.apply(doc, patch));
+
+            if (!write(key, text)) return null;
+        }
+        KeyWatcher.changed(origin, key, "patch");
+        return version(text);
+    }
+
+    /**
+     * Archives a key's current value for any snapshot in progress
+     * which has not yet archived it, before a write changes it.
+     * Callers hold the key's lock.
+     */
+    private void preserve(String key) {
+        List<Snapshot.Writer> snapshots = Snapshot.active(getId());
+        if (snapshots == null) return;
+        for (Snapshot.Writer s : snapshots) {
+            if (s.claim(key)) archive(s, key);
+        }
+    }
+
+    /** Adds a key's current value to a snapshot.  Callers hold its lock. */
+    private void archive(Snapshot.Writer s, String key) {
+        if (KeyExpiry.isExpired(directory, origin, key)) return;
+        long deadline = KeyExpiry.getDeadline(directory, origin, key);
+
+        String pending = WriteBehind.get(id(key));
+        if (pending != null) {
+            s.addText(key, deadline, pending);
+        } else if (backend instanceof FileIO) {
+            File file = ((FileIO) backend).storedFile(key);
+            if (file != null) s.addFile(key, deadline, backend.size(key), file);
+        } else {
+            String text = backend.get(key);
+            if (text != null) s.addText(key, deadline, text);
+        }
+    }
+
+    /**
+     * Returns the directory holding this origin's snapshots.
+     */
+    private File snapshotDir() {
+        return new File(directory, origin + ".snapshots");
+    }
+
+    /**
+     * Lists this origin's snapshots as {name, bytes, modified}.
+     */
+    public List<Object> snapshots() {
+        return Snapshot.list(snapshotDir());
+    }
+
+    /**
+     * Writes a snapshot of every key to an archive (see Snapshot).
+     *
+     * The archive holds the values as they were when the snapshot
+     * began.  Writers are not held up: a key written before the
+     * snapshot reaches it has its old value archived first.
+     *
+     * @param name Archive name, within this origin's snapshots
+     * @return {name, keys, bytes, seq, created}; "seq" is the change
+     * sequence (see ChangeLog) the snapshot reflects
+     */
+    @SuppressWarnings("try")
+    public Map<String,Object> snapshot(String name) throws IOException {
+        File dir = snapshotDir();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        File target = new File(dir, FileIO.cleanFileName(name));
+
+        long start = System.currentTimeMillis();
+        Map<String,Object> result = new HashMap<String,Object>();
+        try (Snapshot.Writer s = new Snapshot.Writer(getId(), target,
+                ChangeLog.sequence(directory, origin))) {
+
+            // keys created after the snapshot began were claimed by
+            // their first write, so are skipped here
+            String[] keys = keys(null);
+            if (keys != null) {
+                for (String key : keys) {
+                    try (KeyLock locked = lock(key, false)) {
+                        if (s.claim(key)) archive(s, key);
+                    }
+                }
+            }
+
+            result.put("keys", s.finish());
+            result.put("seq", s.getSeq());
+            result.put("created", s.getCreated());
+        }
+
+        result.put("name", target.getName());
+        result.put("bytes", target.length());
+        logger.info("Snapshot " + target.getName() + " of " + origin + ": "
+            + result.get("keys") + " keys in "
+            + (System.currentTimeMillis() - start) + "ms");
+        return result;
+    }
+
+    /**
+     * Restores a snapshot.  Each key is written as a set would be, so
+     * quotas, watchers and the change log see it.  With the file
+     * backend, archived files are copied back as they were stored.
+     *
+     * @param name Archive name, within this origin's snapshots
+     * @param merge If false, keys not in the archive are removed
+     * @return {keys, removed}
+     * @throws Quotas.QuotaExceeded if the archive does not fit the
+     * quota; keys restored until then remain
+     */
+    public Map<String,Object> restore(String name, boolean merge)
+        throws IOException {
+
+        File source = new File(snapshotDir(), FileIO.cleanFileName(name));
+        if (!source.isFile()) throw new IOException("No snapshot " + name);
+
+        // check that the archive is whole before changing anything
+        try (Snapshot.Reader r = new Snapshot.Reader(source)) {
+            while (r.next()) continue;
+        }
+
+        long now = System.currentTimeMillis();
+        Set<String> restored = new HashSet<String>();
+        try (Snapshot.Reader r = new Snapshot.Reader(source)) {
+            while (r.next()) {
+                if (r.deadline != 0 && r.deadline <= now) continue;
+                if (restoreEntry(r)) {
+                    restored.add(r.key);
+                    KeyWatcher.changed(origin, r.key, "set");
+                }
+            }
+        }
+
+        int removed = 0;
+        String[] keys = merge ? null : keys(null);
+        if (keys != null) {
+            for (String key : keys) {
+                if (!restored.contains(key) && remove(key)) removed++;
+            }
+        }
+
+        Map<String,Object> result = new HashMap<String,Object>();
+        result.put("keys", restored.size());
+        result.put("removed", removed);
+        return result;
+    }
+
+    /** Writes the current entry of an archive to its key */
+    @SuppressWarnings("try")
+    private boolean restoreEntry(Snapshot.Reader r) throws IOException {
+        String key = r.key;
+        try (KeyLock locked = lock(key, true)) {
+            preserve(key);
+            if (!flushLocked(key)) return false;
+            long old = backend.size(key);
+            long bytes = r.size - Math.max(old, 0);
+            long keys = old < 0 ? 1 : 0;
+            Quotas.Usage usage = counters();
+            usage.charge(bytes, keys);
+
+            // plain text and stored files are the same bytes on disk
+            boolean ok = backend instanceof FileIO ?
+                ((FileIO) backend).setStored(
+                    key, r.getChannel(), r.dataPosition, r.dataLength) :
+                backend.set(key, r.text());
+
+            DocCache.invalidate(origin, key);
+            if (!ok) {
+                usage.charge(-bytes, -keys);
+                return false;
+            }
+            ChangeLog.record(directory, origin, key, false);
+            KeyExpiry.setDeadline(directory, origin, key, r.deadline);
+            return true;
+        }
+    }
+
+    /**
+     * A value read by byte range: a plain file, read in place, or the
+     * bytes of any other stored value.
+     */
+    private static abstract class RangeSource {
+        abstract long size();
+        abstract byte[] read(long offset, int length) throws IOException;
+        abstract long[] recordStarts(int last) throws IOException;
+        abstract Charset charset();
+    }
+
+    /**
+     * Reads part of a value: a byte range, or its last records
+     * (lines), as written by a series of appends.  Plain files are read
+     * with positioned reads, so only the requested part is loaded.
+     *
+     * @param offset First byte to read
+     * @param length Most bytes to read (capped at maxRangeBytes)
+     * @param tail If greater than 0, read the last tail records
+     * instead of a byte range
+     * @return For a byte range {length, offset, next, data}; for
+     * records {length, offset, records}.  "length" is the size of the
+     * whole value.  Null if the key does not exist.
+     */
+    public Map<String,Object> readRange(String key, long offset, int length,
+        int tail) throws IOException {
+
+        sync();
+        if (KeyExpiry.isExpired(directory, origin, key)) return null;
+        flush(key);
+
+        RangeSource source = rangeSource(key);
+        if (source == null) return null;
+
+        long total = source.size();
+        Map<String,Object> result = new HashMap<String,Object>();
+        result.put("length", total);
+
+        if (tail > 0) {
+            long[] starts = source.recordStarts(tail);
+            // as many of the last records as fit
+            int first = 0;
+            while (first < starts.length && total - starts[first] > maxRangeBytes)
+                first++;
+            long start = first < starts.length ? starts[first] :
+                (starts.length > 0 ? starts[starts.length - 1] : total);
+
+            List<String> records = new ArrayList<String>();
+            if (first < starts.length) {
+                byte[] bytes = source.read(start, (int) (total - start));
+                int from = 0;
+                for (int i = 0; i <= bytes.length; i++) {
+                    if (i == bytes.length || bytes[i] == '\n') {
+                        if (i > from || i < bytes.length) {
+                            records.add(new String(
+                                bytes, from, i - from, source.charset()));
+                        }
+                        from = i + 1;
+                    }
+                }
+            }
+            result.put("offset", start);
+            result.put("records", records);
+            return result;
+        }
+
+        byte[] bytes = source.read(offset, Math.min(length, maxRangeBytes));
+        int len = bytes.length;
+        if (offset + len < total
+            && source.charset().equals(StandardCharsets.UTF_8)) {
+            // don't split a character; the client resumes at "next"
+            int end = len;
+            while (end > 0 && (bytes[end - 1] & 0xC0) == 0x80) end--;
+            if (end > 0 && (bytes[end - 1] & 0x80) != 0) {
+                int lead = bytes[end - 1] & 0xff;
+                int need = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+                if (len - (end - 1) < need) len = end - 1;
+            }
+        }
+        result.put("offset", offset);
+        result.put("next", offset + len);
+        result.put("data", new String(bytes, 0, len, source.charset()));
+        return result;
+    }
+
+    private RangeSource rangeSource(String key) throws IOException {
+        // a value whose flush failed is still only in memory
+        String pending = WriteBehind.get(id(key));
+        if (backend instanceof FileIO && pending == null) {
+            final File file = ((FileIO) backend).plainFile(key);
+            if (file != null) {
+                final Charset charset = FileIO.charset(file);
+                return new RangeSource() {
+                    long size() {
+                        return file.length();
+                    }
+                    byte[] read(long offset, int length) throws IOException {
+                        return FileIO.readRange(file, offset, length);
+                    }
+                    long[] recordStarts(int last) throws IOException {
+                        return FileIO.recordStarts(file, last);
+                    }
+                    Charset charset() {
+                        return charset;
+                    }
+                };
+            }
+        }
+
+        String text = pending != null ? pending : backend instanceof FileIO ?
+            ((FileIO) backend).getRaw(key) : backend.get(key);
+        if (text == null) return null;
+
+        final byte[] value = text.getBytes(StandardCharsets.UTF_8);
+        return new RangeSource() {
+            long size() {
+                return value.length;
+            }
+            byte[] read(long offset, int length) {
+                if (offset >= value.length) return new byte[0];
+                return Arrays.copyOfRange(value, (int) offset,
+                    (int) Math.min(value.length, offset + length));
+            }
+            long[] recordStarts(int last) {
+                List<Long> starts = new ArrayList<Long>();
+                for (int i = 0; i < value.length; i++) {
+                    if (i == 0 || value[i - 1] == '\n') starts.add((long) i);
+                }
+                int from = Math.max(0, starts.size() - last);
+                long[] out = new long[starts.size() - from];
+                for (int i = 0; i < out.length; i++) out[i] = starts.get(from + i);
+                return out;
+            }
+            Charset charset() {
+                return StandardCharsets.UTF_8;
+            }
+        };
+    }
+
+    /**
+     * Returns the version of a stored value: a hash of its text, so it
+     * changes whenever the value does, whichever backend stores it.
+     *
+     * @return The version, or null for a missing value
+     */
+    public static String version(String text) {
+        if (text == null) return null;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1")
+                .digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+                buf.append(String.format("%02x", hash[i] & 0xff));
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String get(String key) {
+        sync();
+        if (KeyExpiry.isExpired(directory, origin, key)) return null;
+        String text = WriteBehind.get(id(key));
+        return text != null ? text : backend.get(key);
+    }
+
+    /**
+     * Returns the parsed JSON value of a key, from the DocCache when
+     * possible.  The returned value is shared and must not be modified.
+     *
+     * @return The value, or null if the key does not exist
+     * @throws IllegalStateException if the value is not valid JSON
+     */
+    public Object getParsed(String key) {
+        sync();
+        if (KeyExpiry.isExpired(directory, origin, key)) return null;
+        return DocCache.get(origin, this, key);
+    }
+
+    @SuppressWarnings("try")
+    public boolean remove(String key) {
+        boolean ok;
+        boolean existed;
+        try (KeyLock locked = lock(key, true)) {
+            existed = WriteBehind.get(id(key)) != null
+                || backend.size(key) >= 0;
+            ok = delete(key);
+            if (ok) KeyExpiry.setDeadline(directory, origin, key, 0);
+        }
+        if (!ok) return false;
+        // removing a missing key changes nothing
+        if (existed) KeyWatcher.changed(origin, key, "remove");
+        return true;
+    }
+
+    public long size(String key) {
+        sync();
+        if (KeyExpiry.isExpired(directory, origin, key)) return -1;
+        String text = WriteBehind.get(id(key));
+        return text != null ? Quotas.utf8Length(text) : backend.size(key);
+    }
+
+    public String[] keys(String prefix) {
+        sync();
+        String[] keys = backend.keys(prefix);
+
+        // keys set behind which have not reached the backend yet
+        List<String> behind = WriteBehind.keys(getId(), prefix);
+        if (!behind.isEmpty()) {
+            Set<String> all = new LinkedHashSet<String>();
+            if (keys != null) all.addAll(Arrays.asList(keys));
+            all.addAll(behind);
+            keys = all.toArray(new String[all.size()]);
+        }
+
+        if (keys == null || !KeyExpiry.hasDeadlines(directory, origin))
+            return keys;
+
+        List<String> live = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            if (!KeyExpiry.isExpired(directory, origin, key)) live.add(key);
+        }
+        return live.toArray(new String[live.size()]);
+    }
+}
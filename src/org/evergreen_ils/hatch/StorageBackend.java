@@ -0,0 +1,64 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+/**
+ * Key / value storage for a single origin.
+ *
+ * Implementations: FileIO (one file per key) and KVStore (a single
+ * B-tree file per origin).  Request handlers go through Storage, which
+ * picks the backend configured for the origin.
+ */
+public interface StorageBackend {
+
+    /**
+     * Replaces the value of a key.
+     *
+     * @return success or failure
+     */
+    boolean set(String key, String text);
+
+    /**
+     * Appends to the value of a key, creating it if needed.
+     *
+     * @return success or failure
+     */
+    boolean append(String key, String text);
+
+    /**
+     * Returns the value of a key, or null if it does not exist.
+     */
+    String get(String key);
+
+    /**
+     * Returns the size of a key's value in bytes, or -1 if the key does
+     * not exist.  Cheaper than get(), since the value is not read.
+     */
+    long size(String key);
+
+    /**
+     * Removes a key.  Removing a key which does not exist succeeds.
+     *
+     * @return success or failure
+     */
+    boolean remove(String key);
+
+    /**
+     * Returns all keys beginning with the prefix, or all keys if the
+     * prefix is null.
+     */
+    String[] keys(String prefix);
+}
@@ -0,0 +1,182 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel.
+ *
+ * Four wheels of 64 slots each cover 64, 64^2, 64^3 and 64^4 ticks;
+ * timers further out wait in an overflow list.  Adding a timer and
+ * firing it are O(1), however many timers are pending: each timer is
+ * moved down a wheel at most three times on its way to firing.
+ *
+ * Cancelling is left to the caller, who ignores fired timers which
+ * are no longer wanted.  Not thread safe.
+ */
+public class TimerWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private static class Timer<T> {
+        final T item;
+        final long tick;
+        Timer(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Timer<T>>> slots;
+    private List<Timer<T>> overflow = new ArrayList<Timer<T>>();
+
+    /** The last tick processed */
+    private long current;
+    private int size = 0;
+
+    /**
+     * @param tickMillis Timer resolution
+     * @param now The current time in milliseconds
+     */
+    public TimerWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.current = now / tickMillis;
+        slots = new ArrayList<List<Timer<T>>>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++) slots.add(null);
+    }
+
+    /**
+     * Adds a timer.  Timers already due fire on the next tick.
+     *
+     * @param item The value returned when the timer fires
+     * @param deadline Time in milliseconds at which to fire
+     */
+    public void add(T item, long deadline) {
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        if (tick <= current) tick = current + 1;
+        place(new Timer<T>(item, tick));
+        size++;
+    }
+
+    private void place(Timer<T> timer) {
+        long tick = timer.tick;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = BITS * (level + 1);
+            // within the same turn of the next wheel up, this wheel's
+            // slot for the tick has not been passed yet
+            if ((tick >> shift) == (current >> shift)) {
+                int slot = (int) (tick >> (BITS * level)) & MASK;
+                List<Timer<T>> list = slots.get(level * SLOTS + slot);
+                if (list == null) {
+                    list = new ArrayList<Timer<T>>();
+                    slots.set(level * SLOTS + slot, list);
+                }
+                list.add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+
+    /** Re-places the timers of one slot against the current tick */
+    private void cascade(int level, int slot) {
+        List<Timer<T>> list = slots.get(level * SLOTS + slot);
+        if (list == null) return;
+        slots.set(level * SLOTS + slot, null);
+        for (Timer<T> timer : list) place(timer);
+    }
+
+    /**
+     * Advances to the given time, collecting every timer which fires.
+     *
+     * @param now The current time in milliseconds
+     * @param fired Receives the items of fired timers
+     */
+    public void advance(long now, List<T> fired) {
+        long target = now / tickMillis;
+
+        // after a long gap (a suspended machine, say) collecting every
+        // timer once is cheaper than turning the wheels tick by tick
+        if (target - current > SLOTS * SLOTS) {
+            List<Timer<T>> all = new ArrayList<Timer<T>>(overflow);
+            overflow = new ArrayList<Timer<T>>();
+            for (int i = 0; i < slots.size(); i++) {
+                if (slots.get(i) != null) all.addAll(slots.get(i));
+                slots.set(i, null);
+            }
+            current = target;
+            for (Timer<T> timer : all) {
+                if (timer.tick <= target) {
+                    fired.add(timer.item);
+                    size--;
+                } else {
+                    place(timer);
+                }
+            }
+            return;
+        }
+
+        while (current < target) {
+            // with nothing pending, skip straight to the target
+            if (size == 0) {
+                current = target;
+                break;
+            }
+
+            current++;
+
+            if ((current & MASK) == 0) {
+                // higher wheels first, so their timers cascade through
+                // the lower wheels' slots for this tick
+                int top = 1;
+                while (top < LEVELS
+                    && ((current >> (BITS * top)) & MASK) == 0) top++;
+
+                if (top == LEVELS) {
+                    List<Timer<T>> far = overflow;
+                    overflow = new ArrayList<Timer<T>>();
+                    for (Timer<T> timer : far) place(timer);
+                    top = LEVELS - 1;
+                }
+                for (int level = top; level >= 1; level--) {
+                    cascade(level, (int) (current >> (BITS * level)) & MASK);
+                }
+            }
+
+            int slot = (int) current & MASK;
+            List<Timer<T>> due = slots.get(slot);
+            if (due != null) {
+                slots.set(slot, null);
+                for (Timer<T> timer : due) fired.add(timer.item);
+                size -= due.size();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pending timers, including any the caller
+     * has since abandoned.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,600 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+// logging
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+// printing
+import javafx.application.Platform;
+import javafx.geometry.Bounds;
+import javafx.geometry.Rectangle2D;
+import javafx.print.PageOrientation;
+import javafx.print.Paper;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.transform.Transform;
+import javafx.scene.web.WebView;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A printer which exists only inside Hatch.
+ *
+ * Virtual printers are listed next to the real printers and accept the
+ * same print requests, but instead of handing the WebEngine to a
+ * PrinterJob they lay the page out at the requested paper size, render
+ * it to an image and write the pages to PDF or PNG files (or discard
+ * them).  An optional spool latency simulates a slow physical printer.
+ *
+ * This allows the print pipeline to be benchmarked and regression-tested
+ * on machines which have no printers attached.
+ *
+ * Virtual printers are registered from hatch.xml:
+ *
+ * <pre>
+ *   &lt;Call class="org.evergreen_ils.hatch.VirtualPrinter" name="register"&gt;
+ *     &lt;Arg&gt;Hatch PDF&lt;/Arg&gt;      &lt;!-- printer name --&gt;
+ *     &lt;Arg&gt;pdf&lt;/Arg&gt;            &lt;!-- pdf, png or discard --&gt;
+ *     &lt;Arg&gt;/tmp/hatch-print&lt;/Arg&gt; &lt;!-- output directory --&gt;
+ *     &lt;Arg type="long"&gt;0&lt;/Arg&gt;    &lt;!-- spool latency (ms) --&gt;
+ *   &lt;/Call&gt;
+ * </pre>
+ */
+public class VirtualPrinter {
+
+    /** Our logger instance */
+    static final Logger logger = Log.getLogger("VirtualPrinter");
+
+    /** Registered virtual printers by name, in registration order */
+    private static final Map<String,VirtualPrinter> printers =
+        new LinkedHashMap<String,VirtualPrinter>();
+
+    /** Papers which may be requested by name in the page layout */
+    private static final Paper[] papers = {
+        Paper.NA_LETTER, Paper.LEGAL, Paper.EXECUTIVE, Paper.TABLOID,
+        Paper.NA_8X10, Paper.A3, Paper.A4, Paper.A5, Paper.A6,
+        Paper.JIS_B5, Paper.JIS_B6, Paper.NA_NUMBER_10_ENVELOPE,
+        Paper.MONARCH_ENVELOPE, Paper.JAPANESE_POSTCARD
+    };
+
+    /** Default margin, in points, when no page layout is provided */
+    private static final double DEFAULT_MARGIN = 36;
+
+    /**
+     * Writes rendered pages to disk and applies the simulated latency.
+     * Like a real spooler, jobs are processed one at a time in order.
+     */
+    private static final ExecutorService spooler =
+        Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "VirtualPrinterSpool");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final String name;
+    private final String output;
+    private final File directory;
+    private final long spoolLatency;
+    private final AtomicLong jobCount = new AtomicLong();
+
+    /** Rendering resolution; 72 renders one pixel per point */
+    private static double dpi = 72;
+
+    private VirtualPrinter(
+        String name, String output, File directory, long spoolLatency) {
+        this.name = name;
+        this.output = output;
+        this.directory = directory;
+        this.spoolLatency = spoolLatency;
+    }
+
+    /**
+     * Registers a virtual printer.
+     *
+     * @param name The printer name, as reported by the "printers" action.
+     * @param output One of "pdf", "png" or "discard".
+     * @param directory Directory where output files are written.
+     * Ignored for "discard".
+     * @param spoolLatency Milliseconds to wait before each job is reported
+     * as complete, simulating a physical spooler.
+     */
+    public static void register(String name, String output,
+        String directory, long spoolLatency) {
+
+        if (!"pdf".equals(output) && !"png".equals(output)
+            && !"discard".equals(output)) {
+            throw new IllegalArgumentException(
+                "Invalid virtual printer output: " + output);
+        }
+
+        File dir = directory == null ? null : new File(directory);
+        if (dir != null && !"discard".equals(output) && !dir.exists())
+            dir.mkdirs();
+
+        logger.info("Registering virtual printer '" + name + "' => " + output);
+
+        synchronized (printers) {
+            printers.put(name,
+                new VirtualPrinter(name, output, dir, spoolLatency));
+        }
+    }
+
+    /**
+     * Sets the resolution at which pages are rendered.
+     *
+     * @param resolution Dots per inch.
+     */
+    public static void setDpi(double resolution) {
+        dpi = resolution;
+    }
+
+    static double getDpi() {
+        return dpi;
+    }
+
+    /**
+     * Returns the virtual printer with the given name, or null.
+     */
+    public static VirtualPrinter getByName(String name) {
+        synchronized (printers) {
+            return printers.get(name);
+        }
+    }
+
+    /**
+     * Returns all registered virtual printers.
+     */
+    public static Collection<VirtualPrinter> getPrinters() {
+        synchronized (printers) {
+            return new ArrayList<VirtualPrinter>(printers.values());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Renders the loaded page and spools it to our output.
+     *
+     * Must be called from the FX thread.  The reply is sent from the
+     * spool thread once the (simulated) printing has completed.
+     *
+     * @param view The WebView whose page has finished loading.
+     * @param settings The printer configuration map.
+     * @param socket Where to send the reply.
+     * @param msgid The request message ID.
+     */
+    public void print(WebView view, Map<String,Object> settings,
+        HatchWebSocketHandler socket, Long msgid) {
+        print(view, settings, socket, msgid, null);
+    }
+
+    /**
+     * Renders the loaded page and spools it to our output, keeping the
+     * rendering in the PageCache if the request has a cache key.
+     *
+     * @param request The print request, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public void print(WebView view, Map<String,Object> settings,
+        HatchWebSocketHandler socket, Long msgid, Map<String,Object> request) {
+
+        Map<String,Object> layout = settings == null ? null :
+            (Map<String,Object>) settings.get("pageLayout");
+
+        Paper paper = Paper.NA_LETTER;
+        boolean landscape = false;
+        double left = DEFAULT_MARGIN, right = DEFAULT_MARGIN;
+        double top = DEFAULT_MARGIN, bottom = DEFAULT_MARGIN;
+
+        if (layout != null) {
+            String paperName = (String) layout.get("paper");
+            for (Paper p : papers) {
+                if (p.getName().equals(paperName)) paper = p;
+            }
+            Object orient = layout.get("pageOrientation");
+            if (orient != null) {
+                try {
+                    landscape = PageOrientation.valueOf(orient.toString())
+                        == PageOrientation.LANDSCAPE;
+                } catch (IllegalArgumentException e) {
+                    socket.reply("Invalid pageOrientation: " + orient,
+                        msgid, false);
+                    return;
+                }
+            }
+            left = margin(layout, "leftMargin");
+            right = margin(layout, "rightMargin");
+            top = margin(layout, "topMargin");
+            bottom = margin(layout, "bottomMargin");
+        }
+
+        double pageWidth = landscape ? paper.getHeight() : paper.getWidth();
+        double pageHeight = landscape ? paper.getWidth() : paper.getHeight();
+        double printWidth = Math.max(1, pageWidth - left - right);
+        double printHeight = Math.max(1, pageHeight - top - bottom);
+
+        // lay the document out at the printable width, then grow the
+        // view to the full document height so every page can be
+        // rendered from it.
+        view.setPrefWidth(printWidth);
+        view.resize(printWidth, view.getHeight());
+
+        Object docHeight = view.getEngine().executeScript(
+            "Math.max(document.body ? document.body.scrollHeight : 0," +
+            " document.documentElement.scrollHeight)");
+        double height = Math.max(printHeight,
+            docHeight instanceof Number ? ((Number) docHeight).doubleValue() : 0);
+
+        view.setPrefHeight(height);
+        view.resize(printWidth, height);
+
+        final Page page = new Page(
+            pageWidth, pageHeight, left, top, printWidth, printHeight);
+
+        // snapshot on the next pulse so the resized view has been painted.
+        // Each page is rendered on its own: a single image of a long
+        // document would exceed the largest texture the GPU allows.
+        Platform.runLater(() -> {
+            double scale = dpi / 72;
+            int width = Math.max(1, (int) Math.ceil(printWidth * scale));
+            int rows = Math.max(1, (int) Math.ceil(height * scale));
+            int pageRows = Math.max(1, (int) Math.round(printHeight * scale));
+
+            // viewports are in the scaled coordinates of the view's parent
+            Bounds bounds = view.getBoundsInParent();
+            SnapshotParameters params = new SnapshotParameters();
+            params.setTransform(Transform.scale(scale, scale));
+
+            List<int[]> bands = new ArrayList<int[]>();
+            for (int start = 0; start < rows; start += pageRows) {
+                int count = Math.min(pageRows, rows - start);
+                params.setViewport(new Rectangle2D(bounds.getMinX() * scale,
+                    bounds.getMinY() * scale + start, width, count));
+                WritableImage image = view.snapshot(params, null);
+
+                int[] band = new int[width * count];
+                image.getPixelReader().getPixels(0, 0, width, count,
+                    PixelFormat.getIntArgbInstance(), band, 0, width);
+                bands.add(band);
+            }
+
+            final long jobId = jobCount.incrementAndGet();
+            logger.info("Virtual printer " + name + " rendered job " +
+                jobId + " (" + bands.size() + " x " + width + "x" + pageRows
+                + " px)");
+
+            Render render = new Render(page, bands, width, pageRows, scale);
+            if (request != null) PageCache.put(request, render);
+            spooler.execute(() -> spool(jobId, render, socket, msgid));
+        });
+    }
+
+    /**
+     * Spools a page rendered earlier (see PageCache) to our output.
+     * The reply is sent from the spool thread.
+     */
+    void print(Render render, HatchWebSocketHandler socket, Long msgid) {
+        final long jobId = jobCount.incrementAndGet();
+        logger.info("Virtual printer " + name + " reprints job " +
+            jobId + " from a cached rendering");
+        spooler.execute(() -> spool(jobId, render, socket, msgid));
+    }
+
+    private static double margin(Map<String,Object> layout, String key) {
+        Object value = layout.get(key);
+        return value instanceof Number ?
+            ((Number) value).doubleValue() : DEFAULT_MARGIN;
+    }
+
+    /**
+     * Page geometry in points.
+     */
+    private static class Page {
+        final double width, height, left, top, printWidth, printHeight;
+
+        Page(double width, double height, double left, double top,
+            double printWidth, double printHeight) {
+            this.width = width;
+            this.height = height;
+            this.left = left;
+            this.top = top;
+            this.printWidth = printWidth;
+            this.printHeight = printHeight;
+        }
+    }
+
+    /**
+     * A rendered document: its page geometry and the ARGB pixels of
+     * each page, at scale pixels per point.  The last page may have
+     * fewer than pageRows rows.  Never modified once built.
+     */
+    static class Render {
+        final Page page;
+        final List<int[]> pages;
+        final int width, pageRows;
+        final double scale;
+
+        Render(Page page, List<int[]> pages, int width, int pageRows,
+            double scale) {
+            this.page = page;
+            this.pages = pages;
+            this.width = width;
+            this.pageRows = pageRows;
+            this.scale = scale;
+        }
+
+        /** Memory held by the pixels */
+        long bytes() {
+            long bytes = 0;
+            for (int[] pixels : pages) bytes += (long) pixels.length * 4;
+            return bytes;
+        }
+    }
+
+    /**
+     * Slices the rendered document into pages and writes them out.
+     * Runs in the spool thread.
+     */
+    private void spool(long jobId, Render render,
+        HatchWebSocketHandler socket, Long msgid) {
+
+        Page page = render.page;
+        int width = render.width;
+        int pageRows = render.pageRows;
+
+        try {
+            if (spoolLatency > 0) Thread.sleep(spoolLatency);
+
+            int pageCount = render.pages.size();
+            List<byte[]> pages = new ArrayList<byte[]>();
+
+            for (int[] pixels : render.pages) {
+                pages.add(toRgb(pixels, width, pixels.length / width, pageRows));
+            }
+
+            String base = name.replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + jobId;
+
+            switch (output) {
+                case "pdf":
+                    File pdf = new File(directory, base + ".pdf");
+                    try (OutputStream out = new FileOutputStream(pdf)) {
+                        writePdf(out, page, pages, width, pageRows);
+                    }
+                    break;
+
+                case "png":
+                    for (int i = 0; i < pages.size(); i++) {
+                        File png = new File(directory,
+                            base + "-" + (i + 1) + ".png");
+                        try (OutputStream out = new FileOutputStream(png)) {
+                            writePng(out, pages.get(i), width, pageRows);
+                        }
+                    }
+                    break;
+
+                default: // discard
+            }
+
+            logger.info("Virtual printer " + name + " completed job " +
+                jobId + " with " + pageCount + " page(s)");
+            socket.reply("Print job succeeded", msgid);
+
+        } catch (InterruptedException e) {
+            socket.reply("Print job interrupted", msgid, false);
+        } catch (IOException e) {
+            logger.warn(e);
+            socket.reply("Virtual printer error: " + e, msgid, false);
+        }
+    }
+
+    /**
+     * Converts a page of ARGB pixels to packed RGB.  Rows past the end
+     * of the document are left white.
+     */
+    private static byte[] toRgb(
+        int[] pixels, int width, int rowCount, int pageRows) {
+
+        byte[] rgb = new byte[width * pageRows * 3];
+        java.util.Arrays.fill(rgb, (byte) 0xff);
+        int out = 0;
+        for (int y = 0; y < rowCount; y++) {
+            int in = y * width;
+            for (int x = 0; x < width; x++) {
+                int argb = pixels[in + x];
+                rgb[out++] = (byte) (argb >> 16);
+                rgb[out++] = (byte) (argb >> 8);
+                rgb[out++] = (byte) argb;
+            }
+        }
+        return rgb;
+    }
+
+    private static byte[] deflate(byte[] data, int off, int len)
+        throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(len / 4 + 64);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(buf, deflater)) {
+            out.write(data, off, len);
+        } finally {
+            deflater.end();
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * Writes a single RGB image as a PNG file.
+     */
+    static void writePng(OutputStream out, byte[] rgb, int width, int height)
+        throws IOException {
+
+        // each scanline is prefixed with filter type 0 (none)
+        byte[] raw = new byte[(width * 3 + 1) * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(rgb, y * width * 3,
+                raw, y * (width * 3 + 1) + 1, width * 3);
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(new byte[] {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream hdr = new DataOutputStream(header);
+        hdr.writeInt(width);
+        hdr.writeInt(height);
+        hdr.write(new byte[] {8, 2, 0, 0, 0}); // 8-bit RGB
+
+        writePngChunk(data, "IHDR", header.toByteArray());
+        writePngChunk(data, "IDAT", deflate(raw, 0, raw.length));
+        writePngChunk(data, "IEND", new byte[0]);
+        data.flush();
+    }
+
+    private static void writePngChunk(
+        DataOutputStream out, String type, byte[] body) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(body);
+        out.writeInt(body.length);
+        out.write(typeBytes);
+        out.write(body);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes the page images as a PDF document, one image per page,
+     * placed within the page margins.
+     */
+    static void writePdf(OutputStream stream, Page page, List<byte[]> images,
+        int width, int height) throws IOException {
+
+        PdfWriter pdf = new PdfWriter(stream);
+        int pageCount = images.size();
+
+        // object numbering: 1 catalog, 2 page tree, then three
+        // objects (page, content, image) per page.
+        pdf.header();
+        pdf.object(1, "<< /Type /Catalog /Pages 2 0 R >>");
+
+        StringBuilder kids = new StringBuilder();
+        for (int i = 0; i < pageCount; i++)
+            kids.append(3 + i * 3).append(" 0 R ");
+        pdf.object(2, "<< /Type /Pages /Count " + pageCount +
+            " /Kids [" + kids + "] >>");
+
+        for (int i = 0; i < pageCount; i++) {
+            int pageObj = 3 + i * 3;
+            String content = String.format(java.util.Locale.ROOT,
+                "q %.2f 0 0 %.2f %.2f %.2f cm /Im0 Do Q",
+                page.printWidth, page.printHeight,
+                page.left, page.height - page.top - page.printHeight);
+
+            pdf.object(pageObj, String.format(java.util.Locale.ROOT,
+                "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 %.2f %.2f]" +
+                " /Contents %d 0 R /Resources << /XObject << /Im0 %d 0 R >> >> >>",
+                page.width, page.height, pageObj + 1, pageObj + 2));
+
+            pdf.stream(pageObj + 1, "",
+                content.getBytes(StandardCharsets.US_ASCII));
+
+            byte[] image = images.get(i);
+            pdf.stream(pageObj + 2, "/Type /XObject /Subtype /Image" +
+                " /Width " + width + " /Height " + height +
+                " /ColorSpace /DeviceRGB /BitsPerComponent 8" +
+                " /Filter /FlateDecode", deflate(image, 0, image.length));
+        }
+
+        pdf.trailer(1);
+    }
+
+    /**
+     * Minimal PDF object writer which tracks offsets for the xref table.
+     */
+    private static class PdfWriter {
+        private final OutputStream out;
+        private final List<Long> offsets = new ArrayList<Long>();
+        private long position = 0;
+
+        PdfWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(String text) throws IOException {
+            write(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        void header() throws IOException {
+            write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+        }
+
+        void begin(int num) throws IOException {
+            while (offsets.size() < num) offsets.add(0L);
+            offsets.set(num - 1, position);
+            write(num + " 0 obj\n");
+        }
+
+        void object(int num, String body) throws IOException {
+            begin(num);
+            write(body + "\nendobj\n");
+        }
+
+        void stream(int num, String dict, byte[] data) throws IOException {
+            begin(num);
+            write("<< " + dict + " /Length " + data.length + " >>\nstream\n");
+            write(data);
+            write("\nendstream\nendobj\n");
+        }
+
+        void trailer(int root) throws IOException {
+            long xref = position;
+            write("xref\n0 " + (offsets.size() + 1) + "\n");
+            write("0000000000 65535 f \n");
+            for (long offset : offsets)
+                write(String.format("%010d 00000 n \n", offset));
+            write("trailer\n<< /Size " + (offsets.size() + 1) +
+                " /Root " + root + " 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/* -----------------------------------------------------------------------
+ * Copyright 2014 Equinox Software, Inc.
+ * Bill Erickson <berick@esilibrary.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * -----------------------------------------------------------------------
+ */
+package org.evergreen_ils.hatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind buffer for chatty keys.
+ *
+ * A "set" of a key under one of the configured prefixes is held in
+ * memory and answered at once; the first such set schedules a flush
+ * flushMillis later, and sets in between only replace the pending
+ * value, so the disk sees one write per window.  Storage reads pending
+ * values before the disk, and flushes a key's pending value before any
+ * other kind of write to it.
+ *
+ * Values are queued as FileIO.get() would read them back, so a key
+ * reads and versions the same before and after its flush.  Flushes run
+ * on the scheduler's I/O thread.  A value which cannot be written stays
+ * pending and is tried again a window later; until it is written, other
+ * writes to the key fail rather than overtake it.
+ *
+ * Pending values are written at shutdown and by the "flush" action; a
+ * crash loses at most one window of them.
+ */
+public class WriteBehind {
+
+    /** A value waiting to be written */
+    static class Pending {
+        final Storage storage;
+        final String key;
+        String text;
+        Pending(Storage storage, String key, String text) {
+            this.storage = storage;
+            this.key = key;
+            this.text = text;
+        }
+    }
+
+    /** Key prefixes written behind; none by default */
+    private static final List<String> prefixes =
+        new CopyOnWriteArrayList<String>();
+
+    /** How long a set may wait in memory */
+    private static long flushMillis = 1000;
+
+    /** storage id + "\0" + key => pending value */
+    private static final ConcurrentHashMap<String,Pending> pending =
+        new ConcurrentHashMap<String,Pending>();
+
+    /** ids with a flush scheduled */
+    private static final Set<String> scheduled =
+        Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    private static final AtomicLong buffered = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Writes sets of keys starting with the prefix behind.
+     */
+    public static void addPrefix(String prefix) {
+        prefixes.add(prefix);
+    }
+
+    /**
+     * Sets how long a set may wait in memory before it is written.
+     */
+    public static void setFlushMillis(long millis) {
+        flushMillis = millis;
+    }
+
+    /**
+     * Returns true if sets of the key are written behind.
+     */
+    public static boolean applies(String key) {
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the pending value of a key, or null if it has none.
+     */
+    static String get(String id) {
+        Pending p = pending.get(id);
+        return p == null ? null : p.text;
+    }
+
+    /**
+     * Holds a value for writing.  Callers hold the key's Storage lock.
+     */
+    static void put(String id, Storage storage, String key, String text) {
+        buffered.incrementAndGet();
+        Pending p = pending.get(id);
+        if (p != null) {
+            p.text = text;
+            return;
+        }
+
+        pending.put(id, new Pending(storage, key, text));
+        scheduleFlush(id);
+    }
+
+    private static void scheduleFlush(final String id) {
+        if (!scheduled.add(id)) return;
+        HatchScheduler.scheduleIO(new Runnable() {
+            public void run() {
+                scheduled.remove(id);
+                flush(id);
+            }
+        }, flushMillis);
+    }
+
+    /**
+     * Removes and returns a key's pending value.  Callers hold the
+     * key's Storage lock.
+     */
+    static String take(String id) {
+        Pending p = pending.remove(id);
+        if (p == null) return null;
+        written.incrementAndGet();
+        return p.text;
+    }
+
+    /**
+     * Puts back a value which take() returned but could not be written,
+     * to be tried again a window later.  Callers hold the key's Storage
+     * lock, as they have since take().
+     */
+    static void retry(String id, Storage storage, String key, String text) {
+        written.decrementAndGet();
+        failed.incrementAndGet();
+        pending.put(id, new Pending(storage, key, text));
+        scheduleFlush(id);
+    }
+
+    /**
+     * Returns the keys with pending values for a storage id, beginning
+     * with the prefix (all if null).
+     */
+    static List<String> keys(String storageId, String prefix) {
+        List<String> keys = new ArrayList<String>();
+        if (pending.isEmpty()) return keys;
+        for (Pending p : pending.values()) {
+            if (p.storage.getId().equals(storageId)
+                && (prefix == null || p.key.startsWith(prefix)))
+                keys.add(p.key);
+        }
+        return keys;
+    }
+
+    private static void flush(String id) {
+        Pending p = pending.get(id);
+        if (p != null) p.storage.flush(p.key);
+    }
+
+    /**
+     * Writes every pending value of one storage id, or of all if null.
+     *
+     * @return The number of values written
+     */
+    public static int flushAll(String storageId) {
+        int count = 0;
+        for (Pending p : new ArrayList<Pending>(pending.values())) {
+            if (storageId == null || p.storage.getId().equals(storageId)) {
+                if (p.storage.flush(p.key)) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns write-behind statistics.
+     */
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("pending", pending.size());
+        stats.put("buffered", buffered.get());
+        stats.put("written", written.get());
+        stats.put("failed", failed.get());
+        stats.put("flushMillis", flushMillis);
+        return stats;
+    }
+}